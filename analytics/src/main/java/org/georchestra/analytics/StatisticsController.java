@@ -30,11 +30,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
+import org.georchestra.analytics.util.CombinedRequestsCache;
 import org.georchestra.analytics.util.DBConnection;
 import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.joda.time.DateTime;
@@ -176,6 +179,17 @@ public class StatisticsController {
 	private DateTimeFormatter dbMonthOutputFormatter;
 	private DateTimeFormatter dbDayInputFormatter;
 
+	/** rows fetched at once by the exports, which are streamed to the response */
+	private static final int EXPORT_FETCH_SIZE = 1000;
+
+	/**
+	 * delay after which a time bucket is considered over, leaving time to the security-proxy to write its last
+	 * logs
+	 */
+	private static final long CLOSING_DELAY = 5 * 60 * 1000;
+
+	private CombinedRequestsCache combinedRequestsCache = new CombinedRequestsCache(1000);
+
 	private static enum FORMAT { JSON, CSV }
 	private static enum REQUEST_TYPE { USAGE, EXTRACTION }
 
@@ -226,6 +240,13 @@ public class StatisticsController {
 		this.db = db;
 	}
 
+	/**
+	 * @param size maximum number of combinedRequests results kept in cache, 0 to disable the cache
+	 */
+	public void setCombinedRequestsCacheSize(int size) {
+		this.combinedRequestsCache = new CombinedRequestsCache(size);
+	}
+
 
 
 	/** Granularity used for the returned date type in combined requests statistics */
@@ -347,12 +368,12 @@ public class StatisticsController {
 		if (input.has("group"))
 			sql += " AND {group} = ANY (roles) ";
 
-		sql += "GROUP BY to_char(date, {aggregateDateExpression}) " +
-				"ORDER BY to_char(date, {aggregateDateExpression})";
+		// each occurrence of a parameter is bound separately, so the aggregated date is grouped by its alias:
+		// the database can not tell that repeated to_char(date, ?) expressions are the same
+		sql += "GROUP BY aggregate_date " +
+				"ORDER BY aggregate_date";
 
 		// Fetch and format results
-		ResultSet res = db.execute(db.generateQuery(sql,sqlValues));
-
 		response.setCharacterEncoding("utf-8");
 
 		if("json".equals(format)) {
@@ -367,9 +388,32 @@ public class StatisticsController {
 		StringBuilder csv = new StringBuilder();
 		csv.append("date,count\n");
 
-		while (res.next()) {
-			String date = this.convertUTCDateToLocal(res.getString("aggregate_date"), g);
-			int count = res.getInt("count");
+		// The counts of the buckets which are over come from the cache, only the open ones are queried
+		String startDate = (String) sqlValues.get("startDate");
+		String endDate = (String) sqlValues.get("endDate");
+		String closedUntil = this.closedUntil(g, startDate, endDate, System.currentTimeMillis());
+		CombinedRequestsCache.Key key = new CombinedRequestsCache.Key(startDate, endDate, g.name(),
+				(String) sqlValues.get("user"), (String) sqlValues.get("group"));
+
+		SortedMap<String, Long> counts = new TreeMap<String, Long>();
+		String from = startDate;
+		CombinedRequestsCache.Entry cached = this.combinedRequestsCache.get(key);
+		if (cached != null) {
+			counts.putAll(cached.getCounts());
+			from = cached.getClosedUntil();
+		}
+		if (from.compareTo(closedUntil) < 0) {
+			this.countRequests(sql, sqlValues, from, closedUntil, counts);
+			this.combinedRequestsCache.put(key, closedUntil, counts);
+			from = closedUntil;
+		}
+		if (from.compareTo(endDate) < 0) {
+			this.countRequests(sql, sqlValues, from, endDate, counts);
+		}
+
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			String date = this.convertUTCDateToLocal(entry.getKey(), g);
+			long count = entry.getValue();
 			if("json".equals(format)) {
 				results.put(new JSONObject().put("count", count).put("date", date));
 			} else if("csv".equals(format)) {
@@ -389,49 +433,116 @@ public class StatisticsController {
 
 	}
 
+	/**
+	 * Adds the counts of the combinedRequests query between the given UTC dates to the counts per aggregated date.
+	 */
+	private void countRequests(String sql, Map<String, Object> sqlValues, String startDate, String endDate,
+			SortedMap<String, Long> counts) throws SQLException {
+		Map<String, Object> values = new HashMap<String, Object>(sqlValues);
+		values.put("startDate", startDate);
+		values.put("endDate", endDate);
+
+		ResultSet res = db.execute(sql, values);
+		try {
+			while (res.next()) {
+				String date = res.getString("aggregate_date");
+				Long count = counts.get(date);
+				counts.put(date, (count == null ? 0 : count) + res.getLong("count"));
+			}
+		} finally {
+			db.close(res);
+		}
+	}
+
+	/**
+	 * Gets the UTC date until which the counts of a request can be cached: the beginning of the bucket which is
+	 * still open CLOSING_DELAY ago, within the dates of the request. Buckets are aligned on UTC dates, as the
+	 * aggregated dates computed by the database.
+	 */
+	String closedUntil(GRANULARITY granularity, String startDate, String endDate, long now) {
+		DateTime t = new DateTime(now - CLOSING_DELAY, DateTimeZone.UTC);
+		switch (granularity) {
+			case HOUR:
+				t = t.hourOfDay().roundFloorCopy();
+				break;
+			case DAY:
+				t = t.dayOfMonth().roundFloorCopy();
+				break;
+			case WEEK:
+				t = t.weekOfWeekyear().roundFloorCopy();
+				break;
+			case MONTH:
+				t = t.monthOfYear().roundFloorCopy();
+				break;
+		}
+		String closedUntil = this.dbOutputFormatter.print(t);
+		if (closedUntil.compareTo(startDate) < 0)
+			return startDate;
+		if (closedUntil.compareTo(endDate) > 0)
+			return endDate;
+		return closedUntil;
+	}
+
+	/**
+	 * Gets the statistics of the combinedRequests cache.
+	 *
+	 * @param response the HttpServletResponse object.
+	 * @return a JSON string containing the size and hit counts of the cache.
+	 *
+	 * @throws JSONException
+	 */
+	@RequestMapping(value="/combinedRequestsCache.json", method=RequestMethod.GET, produces= "application/json; charset=utf-8")
+	@ResponseBody
+	@ApiMethod(description="Returns the size, hits, partial hits (only the current period was queried), misses "
+			+ "and hit rate of the combinedRequests cache.")
+	public String combinedRequestsCacheStats(HttpServletResponse response) throws JSONException {
+		CombinedRequestsCache cache = this.combinedRequestsCache;
+		return new JSONObject().put("size", cache.size())
+				.put("maxSize", cache.getMaxEntries())
+				.put("hits", cache.getHits())
+				.put("partialHits", cache.getPartialHits())
+				.put("misses", cache.getMisses())
+				.put("hitRate", cache.getHitRate())
+				.toString(4);
+	}
+
 	/**
 	 * Gets statistics for layers consumption in JSON format. May be filtered by a user or a group and limited.
 	 *
 	 * @param payload the JSON object containing the input parameters
-	 * @param response the HttpServletResponse object.
-	 * @return a JSON string containing the requested aggregated statistics.
+	 * @param response the HttpServletResponse object, the statistics are written to.
 	 *
 	 * @throws JSONException 
 	 */
 	@RequestMapping(value="/layersUsage.json", method=RequestMethod.POST, produces= "application/json; charset=utf-8")
-	@ResponseBody
-	public String layersUsageJson(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException {
-		return this.generateStats(payload, REQUEST_TYPE.USAGE, response, FORMAT.JSON);
+	public void layersUsageJson(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException, IOException {
+		this.generateStats(payload, REQUEST_TYPE.USAGE, response, FORMAT.JSON);
 	}
 
 	/**
 	 * Gets statistics for layers consumption in CSV format. May be filtered by a user or a group and limited.
 	 *
 	 * @param payload the JSON object containing the input parameters
-	 * @param response the HttpServletResponse object.
-	 * @return a CSV string containing the requested aggregated statistics.
+	 * @param response the HttpServletResponse object, the statistics are written to.
 	 *
 	 * @throws JSONException
 	 */
 	@RequestMapping(value="/layersUsage.csv", method=RequestMethod.POST, produces= "application/csv; charset=utf-8")
-	@ResponseBody
-	public String layersUsage(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException {
-		return this.generateStats(payload, REQUEST_TYPE.USAGE, response, FORMAT.CSV);
+	public void layersUsage(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException, IOException {
+		this.generateStats(payload, REQUEST_TYPE.USAGE, response, FORMAT.CSV);
 	}
 
 	/**
 	 * Gets statistics for layers extraction in JSON format. May be filtered by a user or a group and limited.
 	 *
 	 * @param payload the JSON object containing the input parameters
-	 * @param response the HttpServletResponse object.
-	 * @return a JSON string containing the requested aggregated statistics.
+	 * @param response the HttpServletResponse object, the statistics are written to.
 	 *
 	 * @throws JSONException
 	 */
 	@RequestMapping(value="/layersExtraction.json", method=RequestMethod.POST, produces= "application/json; charset=utf-8")
-	@ResponseBody
-	public String layersExtractionJson(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException {
-		return this.generateStats(payload, REQUEST_TYPE.EXTRACTION, response, FORMAT.JSON);
+	public void layersExtractionJson(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException, IOException {
+		this.generateStats(payload, REQUEST_TYPE.EXTRACTION, response, FORMAT.JSON);
 	}
 
 	/**
@@ -440,23 +551,21 @@ public class StatisticsController {
 	 *
 	 * @param startDate minimum date for stats
 	 * @param endDate maximum date for stats
-	 * @param response the HttpServletResponse object.
-	 * @return a JSON string containing the requested statistics.
+	 * @param response the HttpServletResponse object, the CSV statistics are streamed to.
 	 *
 	 * @throws JSONException
 	 */
 	@RequestMapping(value="/fullLayersExtraction.csv", method=RequestMethod.GET, produces= "application/csv; charset=utf-8")
-	@ResponseBody
-	public String fullLayersExtractionStats(@RequestParam String startDate, @RequestParam String endDate, HttpServletResponse response) throws JSONException, SQLException {
+	public void fullLayersExtractionStats(@RequestParam String startDate, @RequestParam String endDate, HttpServletResponse response) throws JSONException, SQLException, IOException {
 
 		try {
 			if (startDate == null || endDate == null) {
 				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				return null;
+				return;
 			}
 		} catch (Throwable e) {
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-			return null;
+			return;
 		}
 
 		response.setHeader("Content-Disposition", "attachment; filename=data.csv");
@@ -475,42 +584,44 @@ public class StatisticsController {
 		sqlValues.put("startDate", startDate);
 		sqlValues.put("endDate", endDate);
 
-		ResultSet sqlRes = this.db.execute(this.db.generateQuery(sql, sqlValues));
+		ResultSet sqlRes = this.db.execute(sql, sqlValues, EXPORT_FETCH_SIZE);
 
-		StringBuilder res = new StringBuilder("username;organization;creation_date;duration;end_date;layer_name;is_successful;bbox;area_km2\n");
-		while(sqlRes.next()){
-			for(int i=1; i<9; i++)
-				res.append(sqlRes.getString(i) + ";");
-			res.append(sqlRes.getString(9) + "\n");
+		try {
+			PrintWriter writer = response.getWriter();
+			writer.print("username;organization;creation_date;duration;end_date;layer_name;is_successful;bbox;area_km2\n");
+			while(sqlRes.next()){
+				for(int i=1; i<9; i++)
+					writer.print(sqlRes.getString(i) + ";");
+				writer.print(sqlRes.getString(9) + "\n");
+			}
+			writer.close();
+		} finally {
+			this.db.close(sqlRes);
 		}
-		return res.toString();
 	}
 
 	/**
 	 * Gets statistics for layers extraction in CSV format. May be filtered by a user or a group and limited.
 	 *
 	 * @param payload the JSON object containing the input parameters
-	 * @param response the HttpServletResponse object.
-	 * @return a CSV string containing the requested aggregated statistics.
+	 * @param response the HttpServletResponse object, the statistics are written to.
 	 *
 	 * @throws JSONException
 	 */
 	@RequestMapping(value="/layersExtraction.csv", method=RequestMethod.POST, produces= "application/csv; charset=utf-8")
-	@ResponseBody
-	public String layersExtractionCsv(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException {
-		return this.generateStats(payload, REQUEST_TYPE.EXTRACTION, response, FORMAT.CSV);
+	public void layersExtractionCsv(@RequestBody String payload, HttpServletResponse response) throws JSONException, SQLException, IOException {
+		this.generateStats(payload, REQUEST_TYPE.EXTRACTION, response, FORMAT.CSV);
 	}
 
 	/**
-	 *  This method generates stats for layer usage or extraction and return results in CSV or JSON format
+	 *  This method generates stats for layer usage or extraction and streams results in CSV or JSON format
 	 * @param payload JSON payload, should contain 'startDate', 'endDate', 'limit', 'group'
 	 * @param type either layer usage 'USAGE' or layer extraction 'EXTRACTION'
 	 * @param response response
 	 * @param format
-	 * @return
 	 * @throws JSONException
 	 */
-	private String generateStats(String payload, REQUEST_TYPE type, HttpServletResponse response, FORMAT format) throws JSONException,SQLException {
+	private void generateStats(String payload, REQUEST_TYPE type, HttpServletResponse response, FORMAT format) throws JSONException, SQLException, IOException {
 
 		JSONObject input;
 		String userId, groupId;
@@ -532,12 +643,12 @@ public class StatisticsController {
 
 			if (sqlValues.get("startDate") == null || sqlValues.get("endDate") == null) {
 				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-				return null;
+				return;
 			}
 
 		} catch (Throwable e) {
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-			return null;
+			return;
 		}
 
 		String sql;
@@ -584,23 +695,36 @@ public class StatisticsController {
 		if(limit != null)
 			sql += " LIMIT {limit}";
 
-		ResultSet sqlRes = db.execute(db.generateQuery(sql,sqlValues));
-
 		switch (format){
 			case JSON:
-				JSONArray results = new JSONArray();
-				while(sqlRes.next())
-					results.put(new JSONObject().put("layer", sqlRes.getString("layer")).put("count", sqlRes.getInt("count")));
-				return new JSONObject().put("results", results)
-						.toString(4);
+				response.setContentType("application/json; charset=utf-8");
+				break;
 			case CSV:
-				StringBuilder res = new StringBuilder("layer,count\n");
-				while(sqlRes.next())
-					res.append(sqlRes.getString("layer") + "," + sqlRes.getInt("count") + "\n");
-				return res.toString();
+				response.setContentType("application/csv; charset=utf-8");
+				break;
 			default:
 				throw new JSONException("Invalid format " + format);
 		}
+
+		ResultSet sqlRes = db.execute(sql, sqlValues, EXPORT_FETCH_SIZE);
+
+		try {
+			PrintWriter writer = response.getWriter();
+			if (format == FORMAT.JSON) {
+				boolean first = this.startResults(writer);
+				while(sqlRes.next())
+					first = this.writeResult(writer, first,
+							new JSONObject().put("layer", sqlRes.getString("layer")).put("count", sqlRes.getInt("count")));
+				this.endResults(writer);
+			} else {
+				writer.print("layer,count\n");
+				while(sqlRes.next())
+					writer.print(sqlRes.getString("layer") + "," + sqlRes.getInt("count") + "\n");
+			}
+			writer.close();
+		} finally {
+			db.close(sqlRes);
+		}
 	}
 
 
@@ -695,23 +819,47 @@ public class StatisticsController {
 		}
 
 		// Fetch and format results
-		ResultSet res = this.db.execute(this.db.generateQuery(sql, sqlValues));
-		JSONArray results = new JSONArray();
-		while (res.next()) {
-			if (excluded_users.contains(res.getString("user_name")))
-				continue;
-			JSONObject row = new JSONObject();
-			row.put("user", res.getString("user_name"));
-			row.put("organization", res.getString("org"));
-			row.put("nb_requests", res.getInt("count"));
-			results.put(row);
+		ResultSet res = this.db.execute(sql, sqlValues, EXPORT_FETCH_SIZE);
+		try {
+			PrintWriter writer = response.getWriter();
+			boolean first = this.startResults(writer);
+			while (res.next()) {
+				if (excluded_users.contains(res.getString("user_name")))
+					continue;
+				JSONObject row = new JSONObject();
+				row.put("user", res.getString("user_name"));
+				row.put("organization", res.getString("org"));
+				row.put("nb_requests", res.getInt("count"));
+				first = this.writeResult(writer, first, row);
+			}
+			this.endResults(writer);
+			writer.close();
+		} finally {
+			this.db.close(res);
 		}
-		String jsonOutput = new JSONObject().put("results", results)
-				.toString(4);
+	}
+
+	/**
+	 * Starts a JSON object of the form <code>{ "results": [ ... ] }</code>, the results being written one at a time
+	 * so that large exports are not held in memory.
+	 *
+	 * @return true, meaning the next result is the first one
+	 */
+	private boolean startResults(PrintWriter writer) {
+		writer.print("{\"results\": [");
+		return true;
+	}
+
+	private boolean writeResult(PrintWriter writer, boolean first, JSONObject result) {
+		if (!first)
+			writer.print(",");
+		writer.print("\n    ");
+		writer.print(result.toString());
+		return false;
+	}
 
-		PrintWriter writer = response.getWriter();
-		writer.print(jsonOutput);
-		writer.close();
+	private void endResults(PrintWriter writer) {
+		writer.print("\n]}");
 	}
 	
 	/**
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.analytics.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the request counts of the combinedRequests statistics for the periods which are over.
+ *
+ * An entry holds the counts per aggregated date from the start date of the request up to a date, the beginning of
+ * the first time bucket still open when the counts were computed. These counts never change, so only the remaining
+ * buckets have to be queried again, and once a request only covers closed buckets it is fully served by the cache.
+ *
+ * The cache holds at most maxEntries entries, the least recently used ones being evicted first.
+ *
+ * @see org.georchestra.analytics.StatisticsController#combinedRequests
+ */
+public class CombinedRequestsCache {
+
+    private final int maxEntries;
+    private final Map<Key, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong partialHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries maximum number of cached requests, 0 to disable the cache
+     */
+    public CombinedRequestsCache(final int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > CombinedRequestsCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cached counts of the request, null if none
+     */
+    public Entry get(Key key) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry == null)
+            this.misses.incrementAndGet();
+        else if (entry.getClosedUntil().equals(key.endDate))
+            this.hits.incrementAndGet();
+        else
+            this.partialHits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Caches the counts of the request up to closedUntil.
+     *
+     * @param closedUntil UTC date where the first open bucket starts, or the end date of the request
+     * @param counts counts per aggregated date, copied
+     */
+    public void put(Key key, String closedUntil, SortedMap<String, Long> counts) {
+        if (this.maxEntries == 0)
+            return;
+        Entry entry = new Entry(closedUntil, counts);
+        synchronized (this.entries) {
+            this.entries.put(key, entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /** @return number of requests fully served by the cache */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /** @return number of requests for which only the open buckets were queried */
+    public long getPartialHits() {
+        return this.partialHits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return ratio of the requests fully served by the cache, 0 if there was no request
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + this.partialHits.get() + this.misses.get();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    public static final class Key {
+
+        private final String startDate;
+        private final String endDate;
+        private final String granularity;
+        private final String user;
+        private final String group;
+
+        public Key(String startDate, String endDate, String granularity, String user, String group) {
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.granularity = granularity;
+            this.user = user;
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return equals(this.startDate, other.startDate) && equals(this.endDate, other.endDate)
+                    && equals(this.granularity, other.granularity) && equals(this.user, other.user)
+                    && equals(this.group, other.group);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 17;
+            for (String s : new String[] { this.startDate, this.endDate, this.granularity, this.user, this.group })
+                h = 31 * h + ((s == null) ? 0 : s.hashCode());
+            return h;
+        }
+
+        private static boolean equals(String s1, String s2) {
+            return (s1 == null) ? (s2 == null) : s1.equals(s2);
+        }
+    }
+
+    public static final class Entry {
+
+        private final String closedUntil;
+        private final SortedMap<String, Long> counts;
+
+        Entry(String closedUntil, SortedMap<String, Long> counts) {
+            this.closedUntil = closedUntil;
+            this.counts = Collections.unmodifiableSortedMap(new TreeMap<String, Long>(counts));
+        }
+
+        /**
+         * @return UTC date up to which the counts are final
+         */
+        public String getClosedUntil() {
+            return this.closedUntil;
+        }
+
+        /**
+         * @return counts per aggregated date, as returned by the database
+         */
+        public SortedMap<String, Long> getCounts() {
+            return this.counts;
+        }
+    }
+}
@@ -1,27 +1,31 @@
 package org.georchestra.analytics.util;
 
 import javax.sql.DataSource;
-import java.beans.PropertyVetoException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * The purpose of this class is to keep parameter replacment feature without using SQL prepared statements.
+ * Runs SQL queries with named parameters: '?' is replaced by the parameter name in braces : {\w+}
  *
- * Prepared statements implies that SQL plan execution is computed before parameters values are known. So with
- * partitioned table, execution plan is always wrong and all tables are scanned. This lead to very long query.
- * To fix this issue, this class, use a standard Statement instance to use parameter remplacment and then get raw SQL
- * query with toString() method. Then a second method provide a reconnection feature and test db connection before
- * sending real query to the database. If test fails, one reconnection is tried.
- * Another feature of this class, it adds a name on sql parameter: '?' is replaced by parameter name in braces : {\w+}
+ * Each query borrows a connection from the pooled DataSource, so that concurrent requests do not share a single
+ * connection, and the connection is validated by the pool when it is borrowed. Parameters are bound to a real
+ * prepared statement. The DataSource pools the prepared statements of each connection
+ * (poolPreparedStatements), so the PostgreSQL driver switches them to server side statements after a few
+ * executions and the database can reuse their plan. PostgreSQL still plans the first executions with the actual
+ * parameter values, and only keeps a generic plan if it is not more expensive than the custom ones: queries on
+ * partitioned tables are thus not forced to scan all the partitions.
+ *
+ * The named parameters of a query are parsed once and cached.
  *
  * Example :
  *
@@ -31,74 +35,159 @@ import java.util.regex.Pattern;
  * sqlValues.put("count", 100);
  *
  * DBConnection db = new DBConnection(jpaDataSource);
- * String rawSql = db.generateQuery(sql, sqlValues);
- * ResultSet res = db.execute(rawSql);
+ * ResultSet res = db.execute(sql, sqlValues);
+ * try {
+ *     while (res.next()) { ... }
+ * } finally {
+ *     db.close(res);
+ * }
  *
  */
 public class DBConnection {
 
-    private DataSource dataSource;
-    private Pattern namedParameterPattern;
-    private Connection nativeConnection;
+    private static final Pattern NAMED_PARAMETER_PATTERN = Pattern.compile("\\{(\\w+)\\}");
 
-    public DBConnection(DataSource jpaDataSource) throws PropertyVetoException, SQLException {
+    private DataSource dataSource;
+    private Map<String, NamedQuery> queries = new ConcurrentHashMap<String, NamedQuery>();
 
-        this.namedParameterPattern = Pattern.compile("\\{(\\w+)\\}");
-        this.nativeConnection = jpaDataSource.getConnection();
+    public DBConnection(DataSource jpaDataSource) {
         this.dataSource = jpaDataSource;
     }
 
-    private void checkConnection() throws SQLException {
+    /**
+     * Executes the query with the given parameter values. The returned ResultSet holds a pooled connection, which
+     * is released by {@link #close(ResultSet)}.
+     *
+     * @throws IllegalArgumentException if no value is specified for a parameter of the query
+     */
+    public ResultSet execute(String sql, Map<String, Object> values) throws SQLException {
+        return this.execute(sql, values, 0);
+    }
 
+    /**
+     * Executes the query with the given parameter values, fetching the rows by batches of fetchSize through a
+     * forward-only cursor, so that large results can be streamed in constant memory. The cursor lives in a
+     * transaction, which is ended by {@link #close(ResultSet)}.
+     *
+     * @param fetchSize number of rows fetched at once, 0 to fetch the whole result
+     * @throws IllegalArgumentException if no value is specified for a parameter of the query
+     */
+    public ResultSet execute(String sql, Map<String, Object> values, int fetchSize) throws SQLException {
+
+        NamedQuery query = this.parse(sql);
+        for (String parameterName : query.parameterNames) {
+            // Check if parameter is defined
+            if (!values.containsKey(parameterName))
+                throw new IllegalArgumentException("No value specified for parameter : "
+                        + parameterName + " in " + sql);
+        }
+
+        Connection connection = this.dataSource.getConnection();
+        PreparedStatement st = null;
         try {
-            Statement st = this.nativeConnection.createStatement();
-            st.executeQuery("SELECT 1");
+            st = connection.prepareStatement(query.sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if (fetchSize > 0) {
+                // the PostgreSQL driver only uses a cursor outside of autocommit mode
+                connection.setAutoCommit(false);
+                st.setFetchSize(fetchSize);
+            }
+            for (int i = 0; i < query.parameterNames.size(); i++)
+                st.setObject(i + 1, values.get(query.parameterNames.get(i)));
+            return st.executeQuery();
         } catch (SQLException e) {
-            try{
-                this.nativeConnection.close();
-            } catch(SQLException ex){}
-
-            // Try to reconnect to DB one time
-            this.nativeConnection = this.dataSource.getConnection();
+            closeQuietly(st);
+            release(connection);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(st);
+            release(connection);
+            throw e;
         }
     }
 
-    public String generateQuery(String sql, Map<String, Object> values) throws SQLException {
-
-        // Check connection to database
-        this.checkConnection();
+    /**
+     * Closes a ResultSet returned by {@link #execute(String, Map)}, with its statement, and gives its connection
+     * back to the pool.
+     */
+    public void close(ResultSet res) {
 
-        List<String> parameterNames = new LinkedList<String>();
+        if (res == null)
+            return;
+        Statement st = null;
+        Connection connection = null;
+        try {
+            st = res.getStatement();
+            if (st != null)
+                connection = st.getConnection();
+        } catch (SQLException e) {}
+        closeQuietly(res);
+        closeQuietly(st);
+        release(connection);
+    }
 
-        // Replace named parameter with standard prepared statement parameter : '?'
-        Matcher m = this.namedParameterPattern.matcher(sql);
-        while(m.find()){
-            String parameterName = m.group(1);
-            parameterNames.add(parameterName);
-            sql = sql.replaceFirst("\\{" + parameterName + "\\}","?");
-            m = this.namedParameterPattern.matcher(sql);
+    /**
+     * Replaces the named parameters of the query with standard prepared statement parameters : '?'
+     */
+    NamedQuery parse(String sql) {
+
+        NamedQuery query = this.queries.get(sql);
+        if (query == null) {
+            List<String> parameterNames = new ArrayList<String>();
+            StringBuffer jdbcSql = new StringBuffer(sql.length());
+            Matcher m = NAMED_PARAMETER_PATTERN.matcher(sql);
+            while (m.find()) {
+                parameterNames.add(m.group(1));
+                m.appendReplacement(jdbcSql, "?");
+            }
+            m.appendTail(jdbcSql);
+            query = new NamedQuery(jdbcSql.toString(), parameterNames);
+            this.queries.put(sql, query);
         }
+        return query;
+    }
 
-        // Create statement
-        PreparedStatement st = this.nativeConnection.prepareStatement(sql);
-
-        for(int i=0;i<parameterNames.size();i++){
-            // Check if parameter is defined
-            if(!values.containsKey(parameterNames.get(i)))
-                throw new IllegalArgumentException("No value specified for parameter : "
-                        + parameterNames.get(i) + " in " + sql);
-            st.setObject(i + 1, values.get(parameterNames.get(i)));
-        }
-        return st.toString();
+    private static void closeQuietly(ResultSet res) {
+        try {
+            res.close();
+        } catch (SQLException e) {}
     }
 
-    public ResultSet execute(String query) throws SQLException {
-        // Check connection to database :
-        this.checkConnection();
-        return this.nativeConnection.createStatement().executeQuery(query);
+    private static void closeQuietly(Statement st) {
+        if (st == null)
+            return;
+        try {
+            st.close();
+        } catch (SQLException e) {}
+    }
 
+    /**
+     * Ends the transaction of a cursor, if any, and gives the connection back to the pool.
+     */
+    private static void release(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            if (!connection.getAutoCommit()) {
+                // read only queries, nothing to keep
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {}
+        }
     }
 
+    static final class NamedQuery {
 
+        final String sql;
+        final List<String> parameterNames;
 
+        NamedQuery(String sql, List<String> parameterNames) {
+            this.sql = sql;
+            this.parameterNames = Collections.unmodifiableList(parameterNames);
+        }
+    }
 }
@@ -3,6 +3,7 @@ package org.georchestra.analytics;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.matchers.JUnitMatchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -19,6 +20,9 @@ import org.georchestra.analytics.StatisticsController.GRANULARITY;
 
 import org.georchestra.analytics.util.DBConnection;
 import org.georchestra.commons.configuration.GeorchestraConfiguration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -40,8 +44,8 @@ public class StatisticsControllerTest {
 		this.db = Mockito.mock(DBConnection.class);
 		this.res = Mockito.mock(ResultSet.class);
 		Mockito.when(this.res.next()).thenReturn(false);
-		Mockito.when(this.db.generateQuery(Mockito.anyString(), Mockito.anyMap())).thenReturn(new String());
-		Mockito.when(this.db.execute(Mockito.anyString())).thenReturn(this.res);
+		Mockito.when(this.db.execute(Mockito.anyString(), Mockito.anyMap())).thenReturn(this.res);
+		Mockito.when(this.db.execute(Mockito.anyString(), Mockito.anyMap(), Mockito.anyInt())).thenReturn(this.res);
 
 		this.ctrl = new StatisticsController("UTC");
 		this.mockMvc = standaloneSetup(ctrl).build();
@@ -104,7 +108,52 @@ public class StatisticsControllerTest {
 		mockMvc.perform(post("/combinedRequests.json").content(posted.put("endDate", "2016-12-01").toString()))
 			.andExpect(content().string(containsString("granularity\": \"MONTH\"")))
 			.andExpect(status().isOk());
-		
+
+		// the pooled connections are given back, the empty period is not queried
+		Mockito.verify(this.db, Mockito.times(3)).close(this.res);
+	}
+
+	@Test
+	public final void testCombinedRequestsCache() throws Exception {
+		Mockito.when(this.res.next()).thenReturn(true, false);
+		Mockito.when(this.res.getString("aggregate_date")).thenReturn("2015-01-05");
+		Mockito.when(this.res.getLong("count")).thenReturn(42L);
+
+		JSONObject posted = new JSONObject("{\"user\": \"testadmin\", \"startDate\": \"2015-01-01\", \"endDate\": \"2015-02-01\" }");
+		for (int i = 0; i < 2; i++) {
+			mockMvc.perform(post("/combinedRequests.json").content(posted.toString()))
+				.andExpect(content().string(containsString("\"count\": 42")))
+				.andExpect(status().isOk());
+		}
+
+		// the period is over, the second request is served by the cache
+		Mockito.verify(this.db, Mockito.times(1)).execute(Mockito.anyString(), Mockito.anyMap());
+		mockMvc.perform(get("/combinedRequestsCache.json"))
+			.andExpect(content().string(containsString("\"hits\": 1")))
+			.andExpect(content().string(containsString("\"misses\": 1")));
+	}
+
+	@Test
+	public final void testClosedUntil() throws Exception {
+		long now = new DateTime(2018, 3, 15, 10, 3, DateTimeZone.UTC).getMillis();
+
+		assertEquals("2018-03-15 00:00:00",
+				ctrl.closedUntil(GRANULARITY.DAY, "2018-02-28 23:00:00", "2018-03-31 22:00:00", now));
+		// the last hour may still receive logs
+		assertEquals("2018-03-15 09:00:00",
+				ctrl.closedUntil(GRANULARITY.HOUR, "2018-03-14 23:00:00", "2018-03-15 23:00:00", now));
+		// monday
+		assertEquals("2018-03-12 00:00:00",
+				ctrl.closedUntil(GRANULARITY.WEEK, "2017-12-31 23:00:00", "2018-05-31 22:00:00", now));
+		assertEquals("2018-03-01 00:00:00",
+				ctrl.closedUntil(GRANULARITY.MONTH, "2016-12-31 23:00:00", "2018-12-31 23:00:00", now));
+		// within the dates of the request
+		assertEquals("2018-01-31 23:00:00",
+				ctrl.closedUntil(GRANULARITY.MONTH, "2017-12-31 23:00:00", "2018-01-31 23:00:00", now));
+		assertEquals("2018-03-15 00:00:00",
+				ctrl.closedUntil(GRANULARITY.DAY, "2018-03-15 00:00:00", "2018-03-16 00:00:00", now));
+		assertEquals("2018-03-20 00:00:00",
+				ctrl.closedUntil(GRANULARITY.DAY, "2018-03-20 00:00:00", "2018-03-21 00:00:00", now));
 	}
 
 	@Test
@@ -189,6 +238,25 @@ public class StatisticsControllerTest {
 				.andExpect(content().string(containsString("results"))).andExpect(status().isOk());
 	}
 	
+	@Test
+	public final void testLayersUsageStreamed() throws Exception {
+		Mockito.when(this.res.next()).thenReturn(true, true, false);
+		Mockito.when(this.res.getString("layer")).thenReturn("topp:states", "tiger:roads");
+		Mockito.when(this.res.getInt("count")).thenReturn(12, 3);
+
+		String json = mockMvc.perform(post("/layersUsage.json")
+				.content(new JSONObject().put("startDate", "2015-01-01")
+						.put("endDate", "2015-12-01").toString()))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+
+		JSONArray results = new JSONObject(json).getJSONArray("results");
+		assertEquals(2, results.length());
+		assertEquals("topp:states", results.getJSONObject(0).getString("layer"));
+		assertEquals(3, results.getJSONObject(1).getInt("count"));
+		Mockito.verify(this.db).close(this.res);
+	}
+
 	@Test
 	public final void testLayersUsageNoDate() throws Exception {
 		JSONObject posted = new JSONObject("{\"user\": \"testadmin\"}");
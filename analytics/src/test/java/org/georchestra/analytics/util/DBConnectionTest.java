@@ -2,28 +2,69 @@ package org.georchestra.analytics.util;
 
 import org.apache.commons.dbcp.BasicDataSource;
 import org.georchestra.analytics.util.DBConnection;
-import org.georchestra.commons.configuration.GeorchestraConfiguration;
-import org.joda.time.DateTime;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.mockito.Mockito;
 
-import java.beans.PropertyVetoException;
-import java.lang.reflect.InvocationTargetException;
-import java.sql.Date;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
 public class DBConnectionTest {
 
-    @Autowired
-    private GeorchestraConfiguration georConfig;
+    private static final String SQL = "SELECT CAST(COUNT(*) AS integer) AS count, to_char(date, {aggregateDate}) " +
+            "FROM ogcstatistics.ogc_services_log " +
+            "WHERE date >= CAST({startDate} AS timestamp without time zone) AND date < CAST({endDate} AS timestamp without time zone) " +
+            "AND user = {user} " +
+            "GROUP BY to_char(date, {aggregateDate}) " +
+            "ORDER BY to_char(date, {aggregateDate})";
 
     @Test
     // Test parameter remplacment
-    public void testParameter() throws PropertyVetoException, SQLException, NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    public void testParameter() {
+
+        DBConnection conn = new DBConnection(Mockito.mock(DataSource.class));
+
+        DBConnection.NamedQuery query = conn.parse(SQL);
+
+        String sqlWithReplacments = "SELECT CAST(COUNT(*) AS integer) AS count, to_char(date, ?) " +
+                "FROM ogcstatistics.ogc_services_log " +
+                "WHERE date >= CAST(? AS timestamp without time zone) AND date < CAST(? AS timestamp without time zone) " +
+                "AND user = ? " +
+                "GROUP BY to_char(date, ?) " +
+                "ORDER BY to_char(date, ?)";
+
+        Assert.assertEquals(sqlWithReplacments, query.sql);
+        Assert.assertEquals(Arrays.asList("aggregateDate", "startDate", "endDate", "user", "aggregateDate", "aggregateDate"),
+                query.parameterNames);
+        // parsed once
+        Assert.assertSame(query, conn.parse(SQL));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingParameter() throws SQLException {
+
+        DataSource dataSource = Mockito.mock(DataSource.class);
+        DBConnection conn = new DBConnection(dataSource);
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("startDate", "2017-08-15");
+
+        try {
+            conn.execute(SQL, values);
+        } finally {
+            // no connection borrowed
+            Mockito.verifyZeroInteractions(dataSource);
+        }
+    }
+
+    @Test
+    public void testExecute() throws SQLException {
 
         Map<String, String> env = System.getenv();
         Assume.assumeTrue(env.containsKey("JDBC_TEST_URL"));
@@ -40,28 +81,38 @@ public class DBConnectionTest {
 
         DBConnection conn = new DBConnection(dataSource);
 
-        String sql = "SELECT CAST(COUNT(*) AS integer) AS count, to_char(date, {aggregateDate}) " +
-                "FROM ogcstatistics.ogc_services_log " +
-                "WHERE date >= CAST({startDate} AS timestamp without time zone) AND date < CAST({endDate} AS timestamp without time zone) " +
-                "AND user = {user} " +
-                "GROUP BY to_char(date, {aggregateDate}) " +
-                "ORDER BY to_char(date, {aggregateDate})";
+        // same shape as the combinedRequests query of the StatisticsController, on 48 hourly rows
+        String sql = "SELECT COUNT(*) AS count, to_char(date, {aggregateDateExpression}) AS aggregate_date " +
+                "FROM (SELECT CAST({day} AS timestamp without time zone) + n * interval '1 hour' AS date " +
+                "      FROM generate_series(0, 47) AS n) AS log " +
+                "WHERE date >= CAST({startDate} AS timestamp without time zone) " +
+                "AND date < CAST({endDate} AS timestamp without time zone) " +
+                "GROUP BY aggregate_date " +
+                "ORDER BY aggregate_date";
 
         Map<String, Object> values = new HashMap<String, Object>();
-        values.put("startDate", "2017-08-15");
-        values.put("endDate", "2017-09-15");
-        values.put("aggregateDate", "YYYY-mm-dd HH24");
-        values.put("user","biloute");
+        values.put("day", "2017-08-15");
+        values.put("startDate", "2017-08-15 12:00");
+        values.put("endDate", "2017-08-17");
+        values.put("aggregateDateExpression", "YYYY-mm-dd");
 
-        String finalQuery = conn.generateQuery(sql, values);
-
-        String sqlWithReplacments = "SELECT CAST(COUNT(*) AS integer) AS count, to_char(date, 'YYYY-mm-dd HH24') " +
-                "FROM ogcstatistics.ogc_services_log " +
-                "WHERE date >= CAST('2017-08-15' AS timestamp without time zone) AND date < CAST('2017-09-15' AS timestamp without time zone) " +
-                "AND user = 'biloute' " +
-                "GROUP BY to_char(date, 'YYYY-mm-dd HH24') " +
-                "ORDER BY to_char(date, 'YYYY-mm-dd HH24')";
+        // more executions than the server side statement threshold of the driver
+        for (int i = 0; i < 10; i++) {
+            ResultSet res = conn.execute(sql, values);
+            try {
+                Assert.assertTrue(res.next());
+                Assert.assertEquals("2017-08-15", res.getString("aggregate_date"));
+                Assert.assertEquals(12, res.getLong("count"));
+                Assert.assertTrue(res.next());
+                Assert.assertEquals("2017-08-16", res.getString("aggregate_date"));
+                Assert.assertEquals(24, res.getLong("count"));
+                Assert.assertFalse(res.next());
+            } finally {
+                conn.close(res);
+            }
+        }
+        Assert.assertEquals(0, dataSource.getNumActive());
 
-        Assert.assertEquals(sqlWithReplacments, finalQuery);
+        dataSource.close();
     }
 }
@@ -46,6 +46,7 @@ public class ExpiredArchiveDaemon extends TimerTask implements FilenameFilter {
     private long                period = 10 * MINUTE;
     private long                expiry = 10 * DAYS;
     private ExtractionManager extractionManager;
+    private LayerCache layerCache;
 
     /**
      * This is the init-method in the spring configuration file so it
@@ -67,6 +68,10 @@ public class ExpiredArchiveDaemon extends TimerTask implements FilenameFilter {
 
         extractionManager.cleanExpiredTasks(expiry);
 
+        if (layerCache != null) {
+            layerCache.evictExpired();
+        }
+
         for (File f : storageFile.listFiles(this)) {
             if (f.lastModified() + expiry < System.currentTimeMillis()) {
                 if (f.delete()) {
@@ -111,4 +116,12 @@ public class ExpiredArchiveDaemon extends TimerTask implements FilenameFilter {
 		this.extractionManager = extractionManager;
 	}
 
+	/**
+	 * The cache of the extracted layers, whose expired layers are deleted by
+	 * the sweeps
+	 */
+	public void setLayerCache(LayerCache layerCache) {
+		this.layerCache = layerCache;
+	}
+
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Zip archive of an extraction, assembled as the layers are extracted.
+ *
+ * The files of each layer are added as soon as the layer is extracted, so
+ * they do not have to be gathered in a directory and read again once all the
+ * layers are done. The archive is written next to its storage file and only
+ * renamed to it by {@link #commit()}, so that an incomplete archive is never
+ * downloaded.
+ *
+ * Files in formats which are already compressed are stored without being
+ * compressed again.
+ *
+ * @see FileUtils#archiveToZip(File, File)
+ */
+public class ExtractionArchive {
+
+    private static final Log LOG = LogFactory.getLog(ExtractionArchive.class.getPackage().getName());
+
+    /** extensions of the formats which are already compressed */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "ecw", "jp2", "j2k", "jpg", "jpeg", "png", "gif", "zip", "kmz", "gz"));
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File storageFile;
+    private final File partFile;
+    private final String rootName;
+    private final ZipOutputStream zip;
+    private final Set<String> entryNames = new HashSet<String>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private boolean closed = false;
+
+    /**
+     * @param storageFile the final archive
+     * @param rootName name of the directory the files are archived in
+     */
+    public ExtractionArchive(File storageFile, String rootName) throws IOException {
+        this.storageFile = storageFile;
+        this.partFile = new File(storageFile.getParentFile(), "part-" + storageFile.getName());
+        this.rootName = rootName;
+        this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(this.partFile), BUFFER_SIZE));
+    }
+
+    /**
+     * Adds the content of the directory, keeping its structure.
+     */
+    public synchronized void addContent(File dir) throws IOException {
+        for (File file : dir.listFiles()) {
+            add(file, file.getName());
+        }
+    }
+
+    /**
+     * Adds a file at the root of the archive.
+     */
+    public synchronized void addFile(File file) throws IOException {
+        add(file, file.getName());
+    }
+
+    private void add(File file, String relativeName) throws IOException {
+        if (this.closed) {
+            throw new IOException("The archive " + this.storageFile + " is closed");
+        }
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                add(child, relativeName + "/" + child.getName());
+            }
+            return;
+        }
+
+        String name = uniqueEntryName(this.rootName + "/" + relativeName);
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+        this.zip.setLevel(COMPRESSED_EXTENSIONS.contains(extension) ? Deflater.NO_COMPRESSION
+                : Deflater.DEFAULT_COMPRESSION);
+        this.zip.putNextEntry(new ZipEntry(name));
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(this.buffer)) != -1) {
+                this.zip.write(this.buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        this.zip.closeEntry();
+    }
+
+    /**
+     * Layers may produce files with the same name, which can not be both
+     * archived with it.
+     */
+    private String uniqueEntryName(String name) {
+        String unique = name;
+        int dot = name.lastIndexOf('.');
+        if (dot <= name.lastIndexOf('/')) {
+            dot = name.length();
+        }
+        for (int i = 1; !this.entryNames.add(unique); i++) {
+            unique = name.substring(0, dot) + "_" + i + name.substring(dot);
+        }
+        if (!unique.equals(name)) {
+            LOG.warn("Duplicate archive entry " + name + " renamed " + unique);
+        }
+        return unique;
+    }
+
+    /**
+     * Completes the archive and moves it to its storage file.
+     *
+     * @return the storage file
+     */
+    public synchronized File commit() throws IOException {
+        this.closed = true;
+        this.zip.close();
+        if (this.storageFile.exists() && !this.storageFile.delete()) {
+            throw new IOException("Unable to replace the archive " + this.storageFile);
+        }
+        FileUtils.moveFile(this.partFile, this.storageFile);
+        this.partFile.delete();
+        return this.storageFile;
+    }
+
+    /**
+     * Discards the archive, if it was not committed.
+     */
+    public synchronized void abort() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.zip.close();
+        } catch (IOException e) {
+            LOG.debug("Unable to close the archive " + this.partFile, e);
+        }
+        this.partFile.delete();
+    }
+}
@@ -89,6 +89,12 @@ public class ExtractorController implements ServletContextAware {
     private UsernamePasswordCredentials adminCredentials;
     private String secureHost;
     private long maxCoverageExtractionSize = Long.MAX_VALUE;
+    private int wfsPageSize = 0;
+    private int maxParallelPages = 1;
+    /** layers read from their PostGIS database, null if none */
+    private PostgisLayers postgisLayers;
+    /** extracted layers reused by the following requests, may be null */
+    private LayerCache layerCache;
 
     private ExtractionManager extractionManager;
     private String userAgent;
@@ -109,11 +115,22 @@ public class ExtractorController implements ServletContextAware {
             remoteReproject = Boolean.parseBoolean(georConfig.getProperty("remoteReproject"));
             useCommandLineGDAL = Boolean.parseBoolean(georConfig.getProperty("useCommandLineGDAL"));
             extractionFolderPrefix = georConfig.getProperty("extractionFolderPrefix");
+            if (georConfig.getProperty("wfsPageSize") != null) {
+                wfsPageSize = Integer.parseInt(georConfig.getProperty("wfsPageSize"));
+            }
+            if (georConfig.getProperty("maxParallelPages") != null) {
+                maxParallelPages = Integer.parseInt(georConfig.getProperty("maxParallelPages"));
+            }
             String username = georConfig.getProperty("privileged_admin_name");
             String password = georConfig.getProperty("privileged_admin_pass");
             // Recreating a Credentials object
             adminCredentials = new UsernamePasswordCredentials(username, password);
             this.dataSource.setJdbcUrl(this.georConfig.getProperty("jdbcurl"));
+            try {
+                postgisLayers = new PostgisLayers(georConfig.loadCustomPropertiesFile(PostgisLayers.CONFIGURATION_FILE));
+            } catch (IOException e) {
+                LOG.info("No " + PostgisLayers.CONFIGURATION_FILE + " configuration, all the vector layers are extracted from WFS");
+            }
             LOG.info("geOrchestra datadir: done.");
         }
         if (extractionManager == null) {
@@ -127,6 +144,16 @@ public class ExtractorController implements ServletContextAware {
         }
     }
 
+    /**
+     * This is the destroy-method in the spring configuration file. Closes the
+     * connections of the PostGIS layers.
+     */
+    public void destroy() {
+        if (postgisLayers != null) {
+            postgisLayers.dispose();
+        }
+    }
+
     @RequestMapping(value = RESULTS_MAPPING, method = RequestMethod.GET)
     public void results(HttpServletRequest request, HttpServletResponse response) throws IOException {
         String uuid = request.getParameter(UUID_PARAM);
@@ -325,8 +352,11 @@ public class ExtractorController implements ServletContextAware {
             String roles = request.getHeader("sec-roles");
             String org = request.getHeader("sec-orgname");
             RequestConfiguration requestConfig = new RequestConfiguration(requests, requestUuid, email, servletContext, testing, username, roles, org,
-                    adminCredentials, secureHost, extractionFolderPrefix, maxCoverageExtractionSize, remoteReproject, useCommandLineGDAL, postData, this.userAgent);
+                    adminCredentials, secureHost, extractionFolderPrefix, maxCoverageExtractionSize, remoteReproject, useCommandLineGDAL, postData, this.userAgent,
+                    wfsPageSize, maxParallelPages);
             ExtractionTask extractor = new ExtractionTask(requestConfig, this.dataSource);
+            extractor.setPostgisLayers(postgisLayers);
+            extractor.setLayerCache(layerCache);
 
             LOG.info("Sending mail to user");
             try {
@@ -434,6 +464,18 @@ public class ExtractorController implements ServletContextAware {
         this.useCommandLineGDAL = useCommandLineGDAL;
     }
 
+    public void setLayerCache(LayerCache layerCache) {
+        this.layerCache = layerCache;
+    }
+
+    public void setWfsPageSize(int wfsPageSize) {
+        this.wfsPageSize = wfsPageSize;
+    }
+
+    public void setMaxParallelPages(int maxParallelPages) {
+        this.maxParallelPages = maxParallelPages;
+    }
+
     public void setExtractionFolderPrefix(String extractionFolderPrefix) {
         if (extractionFolderPrefix == null) {
             this.extractionFolderPrefix = "extraction-";
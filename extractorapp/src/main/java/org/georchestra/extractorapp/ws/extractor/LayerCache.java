@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.commons.configuration.GeorchestraConfiguration;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * On disk cache of the extracted layers, so that a layer requested again with
+ * the same parameters is not downloaded again.
+ *
+ * A layer is identified by the hash of its normalized request: service,
+ * layer, format, projection, resolution and bounding box, rounded to a small
+ * fraction of its size. Each layer is kept in a directory named
+ * after this hash, the least recently used layers being deleted once the
+ * layers take more than maxSize megabytes. The layers are also deleted
+ * maxAge hours after their extraction, by the {@link ExpiredArchiveDaemon}
+ * sweeps, as the cache can not know when the data of the servers change.
+ *
+ * The access to the layers is not checked by the cache: the permission of
+ * the user still has to be checked before reusing a layer. The metadata of the
+ * layers are not cached, as they are read with the permissions of each user.
+ *
+ * A layer in use is not deleted before it is released.
+ */
+public class LayerCache {
+
+    private static final Log LOG = LogFactory.getLog(LayerCache.class.getPackage().getName());
+
+    private static final long MB = 1024 * 1024;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    /** bounding boxes are rounded to this fraction of their size */
+    static final double BBOX_TOLERANCE = 1e-4;
+
+    private long maxSize = 0;
+    private long maxAge = 24 * HOUR;
+    private File directory;
+
+    /** the layers, from the least to the most recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size = 0;
+
+    @Autowired
+    private GeorchestraConfiguration georConfig;
+
+    /**
+     * This is the init-method in the spring configuration file. Indexes the
+     * layers cached before a restart.
+     */
+    public void init() {
+        if ((georConfig != null) && (georConfig.activated())) {
+            if (georConfig.getProperty("layerCacheSize") != null) {
+                setMaxSize(Long.parseLong(georConfig.getProperty("layerCacheSize")));
+            }
+            if (georConfig.getProperty("layerCacheMaxAge") != null) {
+                setMaxAge(Long.parseLong(georConfig.getProperty("layerCacheMaxAge")));
+            }
+        }
+        if (this.directory == null) {
+            this.directory = new File(FileUtils.getExtractorStorageDir(), "layercache");
+        }
+        if (!isEnabled()) {
+            FileUtils.delete(this.directory);
+            return;
+        }
+        this.directory.mkdirs();
+        File[] dirs = this.directory.listFiles();
+        if (dirs == null) {
+            LOG.warn("Unable to create the layer cache " + this.directory + ", the cache is disabled");
+            this.maxSize = 0;
+            return;
+        }
+        Arrays.sort(dirs, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.valueOf(f1.lastModified()).compareTo(Long.valueOf(f2.lastModified()));
+            }
+        });
+        synchronized (this) {
+            for (File dir : dirs) {
+                if (dir.isDirectory() && dir.getName().matches("[0-9a-f]{40}")) {
+                    add(new Entry(dir.getName(), dir, sizeOf(dir), dir.lastModified()));
+                } else {
+                    // not a cached layer
+                    FileUtils.delete(dir);
+                }
+            }
+        }
+        LOG.info("Layer cache in " + this.directory + ": " + this.entries.size() + " layers, "
+                + (this.size / MB) + " MB of " + (this.maxSize / MB) + " MB");
+        evict();
+    }
+
+    public boolean isEnabled() {
+        return this.maxSize > 0;
+    }
+
+    /**
+     * @return the cached layer of the request, to release once read, null if
+     *         the layer is not cached
+     */
+    public Entry acquire(ExtractorLayerRequest request) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = key(request);
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry == null || entry.evicted) {
+                return null;
+            }
+            entry.users++;
+            return entry;
+        }
+    }
+
+    /**
+     * Releases a layer returned by {@link #acquire(ExtractorLayerRequest)}.
+     */
+    public void release(Entry entry) {
+        boolean delete;
+        synchronized (this) {
+            entry.users--;
+            delete = entry.evicted && entry.users == 0;
+        }
+        if (delete) {
+            FileUtils.delete(entry.directory);
+        }
+    }
+
+    /**
+     * Moves the extracted layer to the cache. A layer extracted on another
+     * file system than the cache is first copied next to the cache, so that
+     * it appears in the cache at once.
+     *
+     * @param layerDir directory the layer was extracted to
+     * @return true if the layer was moved, false if it was left in place
+     */
+    public boolean put(ExtractorLayerRequest request, File layerDir) {
+        if (!isEnabled()) {
+            return false;
+        }
+        long layerSize = sizeOf(layerDir);
+        if (layerSize > this.maxSize) {
+            return false;
+        }
+        String key = key(request);
+        File dir = new File(this.directory, key);
+        boolean moved;
+        synchronized (this) {
+            if (this.entries.containsKey(key)) {
+                // already cached by a concurrent extraction
+                return false;
+            }
+            moved = layerDir.renameTo(dir);
+            if (moved) {
+                add(dir, key, layerSize);
+            }
+        }
+        if (moved) {
+            evict();
+            return true;
+        }
+        // the layer was not extracted on the file system of the cache (or an
+        // evicted copy is still being read): the name of the copy does not
+        // match a cached layer until it is renamed, and is deleted by init()
+        // if left over
+        File copy = new File(this.directory, key + ".tmp" + Thread.currentThread().getId());
+        try {
+            org.apache.commons.io.FileUtils.copyDirectory(layerDir, copy);
+        } catch (IOException e) {
+            LOG.warn("Unable to copy " + layerDir + " to the layer cache", e);
+            FileUtils.delete(copy);
+            return false;
+        }
+        synchronized (this) {
+            // within the cache directory, the rename only fails if the layer
+            // was cached by a concurrent extraction meanwhile, or if an
+            // evicted copy of it is still being read
+            moved = !this.entries.containsKey(key) && copy.renameTo(dir);
+            if (moved) {
+                add(dir, key, layerSize);
+            }
+        }
+        if (!moved) {
+            FileUtils.delete(copy);
+            return false;
+        }
+        FileUtils.delete(layerDir);
+        evict();
+        return true;
+    }
+
+    private void add(File dir, String key, long layerSize) {
+        dir.setLastModified(System.currentTimeMillis());
+        add(new Entry(key, dir, layerSize, System.currentTimeMillis()));
+    }
+
+    private void add(Entry entry) {
+        this.entries.put(entry.key, entry);
+        this.size += entry.size;
+    }
+
+    /**
+     * Deletes the least recently used layers while the cache is too large.
+     */
+    private void evict() {
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            Iterator<Entry> it = this.entries.values().iterator();
+            while (this.size > this.maxSize && it.hasNext()) {
+                remove(it, it.next(), evicted);
+            }
+        }
+        delete(evicted);
+    }
+
+    /**
+     * Deletes the layers extracted more than maxAge ago. Called by the
+     * {@link ExpiredArchiveDaemon} sweeps.
+     */
+    public void evictExpired() {
+        List<Entry> evicted = new ArrayList<Entry>();
+        long limit = System.currentTimeMillis() - this.maxAge;
+        synchronized (this) {
+            Iterator<Entry> it = this.entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.created < limit) {
+                    remove(it, entry, evicted);
+                }
+            }
+        }
+        delete(evicted);
+    }
+
+    /**
+     * Removes the entry of the iterator. A layer in use is only marked as
+     * evicted, it is deleted when it is released.
+     */
+    private void remove(Iterator<Entry> it, Entry entry, List<Entry> evicted) {
+        it.remove();
+        this.size -= entry.size;
+        entry.evicted = true;
+        if (entry.users == 0) {
+            evicted.add(entry);
+        }
+    }
+
+    private void delete(List<Entry> evicted) {
+        for (Entry entry : evicted) {
+            LOG.debug("Layer evicted from the cache: " + entry.key);
+            FileUtils.delete(entry.directory);
+        }
+    }
+
+    /**
+     * @return the hash of the normalized request
+     */
+    static String key(ExtractorLayerRequest request) {
+        StringBuilder key = new StringBuilder();
+        key.append(request._owsType).append('\n');
+        key.append(request._url.toExternalForm()).append('\n');
+        key.append(request._layerName).append('\n');
+        key.append(request._format.toLowerCase(Locale.ENGLISH)).append('\n');
+        key.append(request._epsg).append('\n');
+        key.append(request._resolution).append('\n');
+        key.append(bbox(request._bbox));
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the bounding box, its coordinates rounded to a power of ten
+     *         close to BBOX_TOLERANCE times its size
+     */
+    static String bbox(ReferencedEnvelope bbox) {
+        double span = Math.max(bbox.getWidth(), bbox.getHeight());
+        double tolerance = (span > 0) ? Math.pow(10, Math.floor(Math.log10(span * BBOX_TOLERANCE))) : 1;
+        return CRS.toSRS(bbox.getCoordinateReferenceSystem()) + " " + tolerance + " "
+                + Math.round(bbox.getMinX() / tolerance) + " " + Math.round(bbox.getMinY() / tolerance) + " "
+                + Math.round(bbox.getMaxX() / tolerance) + " " + Math.round(bbox.getMaxY() / tolerance);
+    }
+
+    private static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    public synchronized int getLayerCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the size of the cached layers, in bytes
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Maximum size of the cached layers in MB, 0 to disable the cache.
+     * Defaults to 0
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = Math.max(0, maxSize) * MB;
+    }
+
+    /**
+     * Number of hours after which a cached layer is deleted. Defaults to 24
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge * HOUR;
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Extracted layer, in the directory of the cache
+     */
+    public static final class Entry {
+
+        private final String key;
+        private final File directory;
+        private final long size;
+        private final long created;
+        /** number of extractions reading the layer */
+        private int users = 0;
+        private boolean evicted = false;
+
+        Entry(String key, File directory, long size, long created) {
+            this.key = key;
+            this.directory = directory;
+            this.size = size;
+            this.created = created;
+        }
+
+        public File getDirectory() {
+            return this.directory;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.geotools.data.Query;
+import org.geotools.data.QueryCapabilities;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.opengis.feature.FeatureVisitor;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.util.ProgressListener;
+
+/**
+ * Features of a query, retrieved page by page.
+ *
+ * The pages are requested with a start index and a maximum number of
+ * features, sorted in the natural order of the source (the feature ids) so
+ * that the pages neither overlap nor miss features. This relies on the server
+ * actually applying this order, and keeping it between the page requests:
+ * GeoServer does (it sorts on the primary key), but a server which advertises
+ * the sorting and ignores it, or whose data changes during the extraction,
+ * may return some features twice and miss others. This can not be detected
+ * from its capabilities, hence the paging is not enabled by default (see
+ * WfsExtractor#setPaging). Up to maxParallelPages
+ * pages are requested at the same time, and the features are returned in
+ * the order of the pages, so the feature writers are unaware of the paging.
+ * The pages are requested until one returns less than pageSize features:
+ * the number of features is never requested.
+ *
+ * At most maxParallelPages pages are held in memory.
+ *
+ * @see WfsExtractor
+ */
+class PagedFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+    private static final SortBy[] STABLE_ORDER = new SortBy[] { SortBy.NATURAL_ORDER };
+
+    private final SimpleFeatureSource source;
+    private final Query query;
+    private final int pageSize;
+    private final ExecutorService executor;
+    private final int maxParallelPages;
+
+    /**
+     * @param source the source, which must support paging
+     * @param query the query of all the features
+     * @param pageSize number of features per page
+     * @param executor runs the page requests
+     * @param maxParallelPages maximum number of pages requested at the same time
+     *
+     * @see #canPage(SimpleFeatureSource)
+     */
+    public PagedFeatureCollection(SimpleFeatureSource source, Query query, int pageSize,
+            ExecutorService executor, int maxParallelPages) throws IOException {
+        super(source.getFeatures(query));
+        this.source = source;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.executor = executor;
+        this.maxParallelPages = Math.max(1, maxParallelPages);
+    }
+
+    /**
+     * Only the capabilities of the source are checked, not whether it really
+     * returns the features in a stable order (see the class documentation).
+     *
+     * @return true if the source can return a page of features, sorted in a
+     *         stable order, without reading the previous ones
+     */
+    public static boolean canPage(SimpleFeatureSource source) {
+        QueryCapabilities capabilities = source.getQueryCapabilities();
+        return capabilities.isOffsetSupported() && capabilities.supportsSorting(STABLE_ORDER);
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        return new PageIterator();
+    }
+
+    /**
+     * Visits the features of the pages, without requesting their number as
+     * the default implementation does to report the progress.
+     */
+    @Override
+    public void accepts(FeatureVisitor visitor, ProgressListener progress) throws IOException {
+        SimpleFeatureIterator it = features();
+        try {
+            if (progress != null) progress.started();
+            while (it.hasNext()) {
+                if (progress != null && progress.isCanceled()) {
+                    break;
+                }
+                visitor.visit(it.next());
+            }
+        } finally {
+            if (progress != null) progress.complete();
+            it.close();
+        }
+    }
+
+    /**
+     * Query of the page
+     */
+    Query pageQuery(int page) {
+        Query pageQuery = new Query(this.query);
+        pageQuery.setStartIndex(page * this.pageSize);
+        pageQuery.setMaxFeatures(this.pageSize);
+        pageQuery.setSortBy(STABLE_ORDER);
+        return pageQuery;
+    }
+
+    private List<SimpleFeature> readPage(int page) throws IOException {
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>(this.pageSize);
+        SimpleFeatureIterator it = this.source.getFeatures(pageQuery(page)).features();
+        try {
+            while (it.hasNext()) {
+                features.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        return features;
+    }
+
+    private final class PageIterator implements SimpleFeatureIterator {
+
+        /** pages requested, in order */
+        private final LinkedList<Future<List<SimpleFeature>>> pages = new LinkedList<Future<List<SimpleFeature>>>();
+        private int nextPage = 0;
+        private boolean lastPage = false;
+        private Iterator<SimpleFeature> current = Collections.<SimpleFeature> emptyList().iterator();
+
+        PageIterator() {
+            for (int i = 0; i < maxParallelPages; i++) {
+                requestNextPage();
+            }
+        }
+
+        private void requestNextPage() {
+            final int page = this.nextPage++;
+            this.pages.add(executor.submit(new Callable<List<SimpleFeature>>() {
+                @Override
+                public List<SimpleFeature> call() throws IOException {
+                    return readPage(page);
+                }
+            }));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!this.current.hasNext()) {
+                if (this.lastPage || this.pages.isEmpty()) {
+                    return false;
+                }
+                List<SimpleFeature> page = waitFor(this.pages.removeFirst());
+                if (page.size() < pageSize) {
+                    // the following pages are empty
+                    this.lastPage = true;
+                    cancelPages();
+                } else {
+                    requestNextPage();
+                }
+                this.current = page.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.current.next();
+        }
+
+        @Override
+        public void close() {
+            this.lastPage = true;
+            this.current = Collections.<SimpleFeature> emptyList().iterator();
+            cancelPages();
+        }
+
+        private List<SimpleFeature> waitFor(Future<List<SimpleFeature>> page) {
+            try {
+                return page.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new RuntimeException("Interrupted while waiting for the features of " + query.getTypeName(), e);
+            } catch (ExecutionException e) {
+                close();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        private void cancelPages() {
+            for (Future<List<SimpleFeature>> page : this.pages) {
+                page.cancel(true);
+            }
+            this.pages.clear();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.postgis.PostgisNGDataStoreFactory;
+import org.geotools.jdbc.JDBCDataStoreFactory;
+
+/**
+ * Vector layers which are extracted directly from the PostGIS database they
+ * are published from, instead of being requested to the WFS.
+ *
+ * The layers are configured in the postgis-layers.properties file of the
+ * extractorapp datadir:
+ *
+ * <pre>
+ * stores=geodata
+ * geodata.host=localhost
+ * geodata.port=5432
+ * geodata.database=geodata
+ * geodata.schema=public
+ * geodata.user=geodata
+ * geodata.password=secret
+ * # optional, defaults to 1000 and 4
+ * geodata.fetchSize=1000
+ * geodata.maxConnections=4
+ * # layers as published by the local GeoServer, read from the table of
+ * # the same name
+ * geodata.layers=geor:roads,geor:buildings
+ * </pre>
+ *
+ * Only the layers whose table is published as is should be listed: the
+ * access to the layer is still checked against the WFS capabilities, but
+ * the features and attributes are not filtered by GeoServer.
+ *
+ * The layers requested to another server than the secure host are always
+ * extracted from their WFS, even if their name is listed.
+ *
+ * A data store is opened for each store on first use, and kept open until
+ * {@link #dispose()}.
+ */
+public class PostgisLayers {
+
+    private static final Log LOG = LogFactory.getLog(PostgisLayers.class.getPackage().getName());
+
+    /** name of the configuration file in the datadir */
+    public static final String CONFIGURATION_FILE = "postgis-layers";
+
+    private static final String DEFAULT_FETCH_SIZE = "1000";
+    private static final String DEFAULT_MAX_CONNECTIONS = "4";
+
+    /** layer name to store name */
+    private final Map<String, String> layerStores = new HashMap<String, String>();
+    private final Map<String, Map<String, Serializable>> storeParameters = new HashMap<String, Map<String, Serializable>>();
+    private final Map<String, DataStore> dataStores = new HashMap<String, DataStore>();
+
+    public PostgisLayers(Properties properties) {
+        String stores = properties.getProperty("stores", "");
+        for (String store : stores.split(",")) {
+            store = store.trim();
+            if (store.length() == 0) {
+                continue;
+            }
+            this.storeParameters.put(store, parameters(properties, store));
+            for (String layer : properties.getProperty(store + ".layers", "").split(",")) {
+                layer = layer.trim();
+                if (layer.length() > 0) {
+                    this.layerStores.put(layer, store);
+                }
+            }
+        }
+    }
+
+    private static Map<String, Serializable> parameters(Properties properties, String store) {
+        Map<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put(JDBCDataStoreFactory.DBTYPE.key, "postgis");
+        params.put(JDBCDataStoreFactory.HOST.key, properties.getProperty(store + ".host", "localhost"));
+        params.put(JDBCDataStoreFactory.PORT.key, Integer.valueOf(properties.getProperty(store + ".port", "5432")));
+        params.put(JDBCDataStoreFactory.DATABASE.key, properties.getProperty(store + ".database"));
+        params.put(JDBCDataStoreFactory.SCHEMA.key, properties.getProperty(store + ".schema", "public"));
+        params.put(JDBCDataStoreFactory.USER.key, properties.getProperty(store + ".user"));
+        params.put(JDBCDataStoreFactory.PASSWD.key, properties.getProperty(store + ".password"));
+        // the rows are read through a cursor, fetchSize at a time
+        params.put(JDBCDataStoreFactory.FETCHSIZE.key,
+                Integer.valueOf(properties.getProperty(store + ".fetchSize", DEFAULT_FETCH_SIZE)));
+        params.put(JDBCDataStoreFactory.MAXCONN.key,
+                Integer.valueOf(properties.getProperty(store + ".maxConnections", DEFAULT_MAX_CONNECTIONS)));
+        params.put(JDBCDataStoreFactory.VALIDATECONN.key, Boolean.TRUE);
+        params.put(PostgisNGDataStoreFactory.LOOSEBBOX.key, Boolean.FALSE);
+        return params;
+    }
+
+    /**
+     * @param layerName layer name, as published by GeoServer: workspace:layer
+     * @return true if the layer is extracted from PostGIS
+     */
+    public boolean contains(String layerName) {
+        return this.layerStores.containsKey(layerName);
+    }
+
+    /**
+     * @return the connection parameters of the store of the layer, null if
+     *         the layer is not extracted from PostGIS
+     */
+    Map<String, Serializable> getParameters(String layerName) {
+        String store = this.layerStores.get(layerName);
+        return (store == null) ? null : this.storeParameters.get(store);
+    }
+
+    /**
+     * @return the data store the layer is read from
+     * @throws IOException if the layer is not extracted from PostGIS, or if
+     *             the store can not be opened
+     */
+    public synchronized DataStore getDataStore(String layerName) throws IOException {
+        String store = this.layerStores.get(layerName);
+        if (store == null) {
+            throw new IOException(layerName + " is not a PostGIS layer");
+        }
+        DataStore ds = this.dataStores.get(store);
+        if (ds == null) {
+            ds = DataStoreFinder.getDataStore(this.storeParameters.get(store));
+            if (ds == null) {
+                throw new IOException("Unable to open the PostGIS store " + store);
+            }
+            LOG.info("PostGIS store " + store + " opened");
+            this.dataStores.put(store, ds);
+        }
+        return ds;
+    }
+
+    /**
+     * @return the table of the layer: the name of the layer, without its
+     *         workspace
+     */
+    public static String tableName(String layerName) {
+        return layerName.substring(layerName.indexOf(':') + 1);
+    }
+
+    /**
+     * Closes the data stores.
+     */
+    public synchronized void dispose() {
+        for (DataStore ds : this.dataStores.values()) {
+            ds.dispose();
+        }
+        this.dataStores.clear();
+    }
+}
@@ -32,6 +32,10 @@ public class RequestConfiguration {
 	/** the original request in json syntax */
 	public final String strRequest;
 	public final String userAgent;
+	/** number of features per WFS GetFeature request, 0 to disable the paging */
+	public final int wfsPageSize;
+	/** maximum number of WFS pages of a layer requested at the same time */
+	public final int maxParallelPages;
 
 	public RequestConfiguration(List<ExtractorLayerRequest> requests,
 			UUID requestUuid, Email email,
@@ -40,6 +44,18 @@ public class RequestConfiguration {
 			String secureHost, String extractionFolderPrefix, long maxCoverageExtractionSize,
 			boolean remoteReproject, boolean useCommandLineGDAL,
 			String strRequest, String userAgent) {
+		this(requests, requestUuid, email, servletContext, testing, username, roles, org, adminCredentials,
+				secureHost, extractionFolderPrefix, maxCoverageExtractionSize, remoteReproject,
+				useCommandLineGDAL, strRequest, userAgent, 0, 1);
+	}
+
+	public RequestConfiguration(List<ExtractorLayerRequest> requests,
+			UUID requestUuid, Email email,
+			ServletContext servletContext, boolean testing, String username,
+			String roles, String org, UsernamePasswordCredentials adminCredentials,
+			String secureHost, String extractionFolderPrefix, long maxCoverageExtractionSize,
+			boolean remoteReproject, boolean useCommandLineGDAL,
+			String strRequest, String userAgent, int wfsPageSize, int maxParallelPages) {
 		super();
 
 		this.strRequest = strRequest;
@@ -58,6 +74,8 @@ public class RequestConfiguration {
 		this.useCommandLineGDAL = useCommandLineGDAL;
 		this.extractionFolderPrefix = extractionFolderPrefix;
 		this.userAgent = userAgent;
+		this.wfsPageSize = wfsPageSize;
+		this.maxParallelPages = maxParallelPages;
 	}
 	public void setThreadLocal() {
 		instance.set(this);
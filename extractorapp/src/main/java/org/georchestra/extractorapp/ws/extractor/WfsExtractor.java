@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 import javax.xml.XMLConstants;
@@ -26,9 +29,12 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.data.store.ContentDataStore;
 import org.geotools.data.store.ContentFeatureSource;
 import org.geotools.data.wfs.impl.WFSContentDataStore;
@@ -124,6 +130,11 @@ public class WfsExtractor {
     private final String _adminPassword;
     private final String _secureHost;
     private String userAgent;
+    /** number of features per GetFeature request, 0 to get all of them in one request */
+    private int pageSize = 0;
+    private int maxParallelPages = 1;
+    /** layers read directly from their PostGIS database, may be null */
+    private PostgisLayers postgisLayers;
 
     /**
      *
@@ -150,6 +161,34 @@ public class WfsExtractor {
         this.userAgent = userAgent;
     }
 
+    /**
+     * Retrieves the features by pages, several pages being requested at the
+     * same time. The WFS 2.0 protocol is then preferred, as it defines the
+     * paging parameters. Layers of servers which can not page are retrieved in
+     * one request.
+     * <p>
+     * The paging is disabled by default: it should only be enabled for servers
+     * which return the features in a stable order (see
+     * {@link PagedFeatureCollection}), and whose WFS 2.0 axis order (latitude
+     * first for the geographic EPSG codes) is handled as with WFS 1.x.
+     * </p>
+     *
+     * @param pageSize number of features per page, 0 to disable the paging
+     * @param maxParallelPages maximum number of pages requested at the same time
+     */
+    public void setPaging(int pageSize, int maxParallelPages) {
+        this.pageSize = Math.max(0, pageSize);
+        this.maxParallelPages = Math.max(1, maxParallelPages);
+    }
+
+    /**
+     * @param postgisLayers layers which are read from their PostGIS database
+     *            rather than from the WFS, null if none
+     */
+    public void setPostgisLayers(PostgisLayers postgisLayers) {
+        this.postgisLayers = postgisLayers;
+    }
+
     public void checkPermission(ExtractorLayerRequest request, String secureHost, String username, String roles) throws IOException {
         URL capabilitiesURL = request.capabilitiesURL("WFS", "1.0.0");
 
@@ -207,6 +246,15 @@ public class WfsExtractor {
         localContext.setAuthCache(authCache);
     }
 
+    /**
+     * @return true if the layer is requested to the geOrchestra GeoServer
+     */
+    private boolean isSecuredServer(ExtractorLayerRequest request) {
+        return _secureHost.equalsIgnoreCase(request._url.getHost())
+                || "127.0.0.1".equalsIgnoreCase(request._url.getHost())
+                || "localhost".equalsIgnoreCase(request._url.getHost());
+    }
+
     /**
      * Extract the data as defined in the request object.
      *
@@ -216,6 +264,12 @@ public class WfsExtractor {
         if (request._owsType != OWSType.WFS) {
             throw new IllegalArgumentException (request._owsType + "must be WFS for the WfsExtractor");
         }
+        // only the layers of the local GeoServer are read from its database,
+        // a layer of another server may have the same name
+        if (this.postgisLayers != null && isSecuredServer(request)
+                && this.postgisLayers.contains(request.getWFSName())) {
+            return extractFromPostgis(request);
+        }
 
         Map<String, Serializable> params = new HashMap<String, Serializable> ();
         params.put (WFSDataStoreFactory.URL.key, request.capabilitiesURL ("WFS","1.0.0"));
@@ -226,9 +280,7 @@ public class WfsExtractor {
 
         // HACK  I want unrestricted access to layers.
         // Security check takes place in ExtractorThread
-        if(_secureHost.equalsIgnoreCase(request._url.getHost())
-                || "127.0.0.1".equalsIgnoreCase(request._url.getHost())
-                || "localhost".equalsIgnoreCase(request._url.getHost())) {
+        if(isSecuredServer(request)) {
         	LOG.debug("WfsExtractor.extract - Secured Server: Adding extractionUserName to connection params");
             if (_adminUsername != null) params.put(WFSDataStoreFactory.USERNAME.key, _adminUsername);
             if (_adminPassword != null) params.put(WFSDataStoreFactory.PASSWORD.key, _adminPassword);
@@ -236,11 +288,17 @@ public class WfsExtractor {
         	LOG.debug("WfsExtractor.extract - Non Secured Server");
         }
 
-        DataStore sourceDs = DataStoreFinder.getDataStore(params);
         // WFS-ng: we need to convert the schema name
-
         String typeName = request.getWFSName();
         SimpleFeatureType sourceSchema = null;
+        DataStore sourceDs = null;
+        if (this.pageSize > 0 && typeName.contains(":")) {
+            sourceDs = openPagingDataStore(request, params, typeName.replaceFirst(":", "_"));
+        }
+        if (sourceDs == null) {
+            sourceDs = DataStoreFinder.getDataStore(params);
+        }
+
         // prefixed typeName
         if (typeName.contains(":")) {
             typeName = typeName.replaceFirst(":", "_");
@@ -269,7 +327,68 @@ public class WfsExtractor {
         }
 
         Query query = createQuery(request, sourceSchema);
-        SimpleFeatureCollection features = sourceDs.getFeatureSource(typeName).getFeatures(query);
+        SimpleFeatureSource featureSource = sourceDs.getFeatureSource(typeName);
+        SimpleFeatureCollection features = featureSource.getFeatures(query);
+        ExecutorService pageExecutor = null;
+        if (this.pageSize > 0) {
+            if (PagedFeatureCollection.canPage(featureSource)) {
+                pageExecutor = createPageExecutor(typeName);
+                features = new PagedFeatureCollection(featureSource, query, this.pageSize, pageExecutor,
+                        this.maxParallelPages);
+            } else {
+                LOG.info("WfsExtractor.extract - " + typeName + " can not be paged, retrieving it in one request");
+            }
+        }
+        try {
+            return writeFeatures(request, sourceSchema, features);
+        } finally {
+            if (pageExecutor != null) {
+                pageExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Extracts the layer from its PostGIS table, with the same filter and
+     * reprojection as the WFS requests, avoiding the encoding of the features
+     * in GML and their parsing.
+     *
+     * @return the directory that contains the extracted file
+     */
+    private File extractFromPostgis(ExtractorLayerRequest request) throws IOException, TransformException,
+            FactoryException {
+        String layerName = request.getWFSName();
+        String tableName = PostgisLayers.tableName(layerName);
+        DataStore ds = this.postgisLayers.getDataStore(layerName);
+        LOG.debug("WfsExtractor.extract - Reading " + layerName + " from the PostGIS table " + tableName);
+
+        SimpleFeatureType sourceSchema = ds.getSchema(tableName);
+        Query query = createQuery(request, sourceSchema);
+        query.setTypeName(tableName);
+
+        SimpleFeatureSource featureSource = ds.getFeatureSource(tableName);
+        // PostgreSQL only reads the rows through a cursor, fetch size rows at
+        // a time, when the connection is not in autocommit mode
+        Transaction transaction = new DefaultTransaction("extraction-" + layerName);
+        try {
+            if (featureSource instanceof SimpleFeatureStore) {
+                ((SimpleFeatureStore) featureSource).setTransaction(transaction);
+            }
+            return writeFeatures(request, sourceSchema, featureSource.getFeatures(query));
+        } finally {
+            // nothing was written
+            transaction.rollback();
+            transaction.close();
+        }
+    }
+
+    /**
+     * Writes the features in the format of the request.
+     *
+     * @return the directory that contains the written files
+     */
+    private File writeFeatures(ExtractorLayerRequest request, SimpleFeatureType sourceSchema,
+            SimpleFeatureCollection features) throws IOException, TransformException, FactoryException {
 
         ProgressListener progressListener = new NullProgressListener () {
             @Override
@@ -283,7 +402,6 @@ public class WfsExtractor {
 
         FeatureWriterStrategy featuresWriter;
         BBoxWriter bboxWriter;
-        LOG.debug("Number of features returned : " + features.size());
         if ("shp".equalsIgnoreCase(request._format)) {
             featuresWriter = new ShpFeatureWriter(progressListener, sourceSchema, basedir, features);
             bboxWriter = new BBoxWriter(request._bbox, basedir, OGRFeatureWriter.FileFormat.shp, request._projection, progressListener );
@@ -308,6 +426,45 @@ public class WfsExtractor {
         return basedir;
     }
 
+    /**
+     * Opens the WFS 2.0 datastore of the layer, if its source can be paged.
+     *
+     * @return the datastore, null if the server or the layer does not support it
+     */
+    private DataStore openPagingDataStore(ExtractorLayerRequest request, Map<String, Serializable> params,
+            String typeName) {
+        Map<String, Serializable> pagingParams = new HashMap<String, Serializable>(params);
+        DataStore ds = null;
+        try {
+            pagingParams.put(WFSDataStoreFactory.URL.key, request.capabilitiesURL("WFS", "2.0.0"));
+            ds = DataStoreFinder.getDataStore(pagingParams);
+            if (ds != null && ds.getSchema(typeName) != null
+                    && PagedFeatureCollection.canPage(ds.getFeatureSource(typeName))) {
+                return ds;
+            }
+        } catch (IOException e) {
+            LOG.debug("WfsExtractor.extract - WFS 2.0.0 is not available for " + typeName, e);
+        } catch (RuntimeException e) {
+            LOG.debug("WfsExtractor.extract - WFS 2.0.0 is not available for " + typeName, e);
+        }
+        if (ds != null) {
+            ds.dispose();
+        }
+        return null;
+    }
+
+    private ExecutorService createPageExecutor(final String typeName) {
+        return Executors.newFixedThreadPool(this.maxParallelPages, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("Extractorapp-page-thread-" + typeName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
 	/* This method is default for testing purposes */
     Query createQuery (ExtractorLayerRequest request, FeatureType schema) throws IOException, TransformException,
             FactoryException {
@@ -122,6 +122,15 @@ public class ExecutionMetadata {
 		return endTime;
 	}
 
+	/**
+	 * @return the time the task waited before being started, or has been
+	 *         waiting so far, in ms
+	 */
+	public synchronized long getWaitTime() {
+		Date end = (beginTime == null) ? new Date() : beginTime;
+		return end.getTime() - requestTime.getTime();
+	}
+
     public synchronized void setPriority(ExecutionPriority priority) {
         this.priority = priority;
     }
@@ -21,18 +21,16 @@ package org.georchestra.extractorapp.ws.extractor.task;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.TreeSet;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -49,20 +47,34 @@ public class ExtractionManager {
     private int maxExtractions;
     private int minThreads;
 
+    /** extracts the layers of all the running tasks */
+    private ThreadPoolExecutor layerExecutor;
+    /** maximum number of layers extracted at the same time, all tasks included */
+    private int maxLayerExtractions = 8;
+    /** maximum number of layers of a task extracted at the same time */
+    private int maxParallelLayers = 4;
+
+    /** shares the extraction threads between the users and organizations */
+    private FairShareQueue workQueue;
+    /** maximum number of tasks of a user run at the same time, 0 for no limit */
+    private int maxRunningPerUser = 0;
+    /** weights of the organizations, as in "psc:2,c2c:1" */
+    private String orgWeights;
+
     // ThreadPoolExecutor API says that the internal queue should not be
     // accessed except for debugging so this
-    // queue is here so that the non-running tasks can be accessed
+    // index is here so that the non-running tasks can be accessed
     
-    /** maintains the tasks ready to execute */
-    /** comparison by priorities */
-
-    private final static int INITIAL_CAPACITY = 20;
-    private Queue<ExtractionTask> readyTaskQueue = new PriorityBlockingQueue<ExtractionTask>(INITIAL_CAPACITY); 
+    /**
+     * maintains the submitted tasks, by uuid. The tasks are ordered by the
+     * work queue, which is told of their priority changes
+     */
+    private ConcurrentMap<String, ExtractionTask> readyTasks = new ConcurrentHashMap<String, ExtractionTask>();
     
     private Collection<ExtractionTask> cancelledTaskQueue = new PriorityBlockingQueue<ExtractionTask>();
     
     /** maintains the paused tasks. They can be selected by the user in random way */
-    private Map<String, ExtractionTask> pausedTasks = Collections.synchronizedMap(new HashMap<String, ExtractionTask>());
+    private ConcurrentMap<String, ExtractionTask> pausedTasks = new ConcurrentHashMap<String, ExtractionTask>();
     
     @Autowired
     private GeorchestraConfiguration georConfig ;
@@ -71,9 +83,21 @@ public class ExtractionManager {
         if ((georConfig != null) && (georConfig.activated())) {
             maxExtractions = Integer.parseInt(georConfig.getProperty("maxExtractions"));
             minThreads = Integer.parseInt(georConfig.getProperty("minThreads"));
+            if (georConfig.getProperty("maxLayerExtractions") != null) {
+                maxLayerExtractions = Integer.parseInt(georConfig.getProperty("maxLayerExtractions"));
+            }
+            if (georConfig.getProperty("maxParallelLayers") != null) {
+                maxParallelLayers = Integer.parseInt(georConfig.getProperty("maxParallelLayers"));
+            }
+            if (georConfig.getProperty("maxRunningPerUser") != null) {
+                maxRunningPerUser = Integer.parseInt(georConfig.getProperty("maxRunningPerUser"));
+            }
+            if (georConfig.getProperty("orgWeights") != null) {
+                orgWeights = georConfig.getProperty("orgWeights");
+            }
         }
 
-        BlockingQueue<Runnable> workQueue = new PriorityBlockingQueue<Runnable>();
+        workQueue = new FairShareQueue(maxRunningPerUser, FairShareQueue.parseWeights(orgWeights));
         ThreadFactory threadFactory = new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -86,6 +110,21 @@ public class ExtractionManager {
         };
         executor = new PriorityThreadPoolExecutor(minThreads, maxExtractions, 5,
                 TimeUnit.SECONDS, workQueue, threadFactory);
+
+        // the tasks only wait for their layers, which are queued in order
+        // of submission once maxLayerExtractions layers are being extracted
+        layerExecutor = new ThreadPoolExecutor(maxLayerExtractions, maxLayerExtractions, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setName("Extractorapp-layer-thread"
+                                + System.currentTimeMillis());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        layerExecutor.allowCoreThreadTimeOut(true);
     }
 
     public void setMaxExtractions(int maxExtractions) {
@@ -96,16 +135,44 @@ public class ExtractionManager {
         this.minThreads = minThreads;
     }
 
+    public void setMaxLayerExtractions(int maxLayerExtractions) {
+        this.maxLayerExtractions = maxLayerExtractions;
+    }
+
+    public void setMaxParallelLayers(int maxParallelLayers) {
+        this.maxParallelLayers = maxParallelLayers;
+    }
+
+    public void setMaxRunningPerUser(int maxRunningPerUser) {
+        this.maxRunningPerUser = maxRunningPerUser;
+    }
+
+    public void setOrgWeights(String orgWeights) {
+        this.orgWeights = orgWeights;
+    }
+
+    /**
+     * @return the queue wait statistics
+     */
+    public FairShareQueue.Statistics getQueueStatistics() {
+        return workQueue.getStatistics();
+    }
+
     /**
-     * Submits the task taking into account the task priorities.
+     * Submits the task taking into account the task priorities, then the
+     * share of the threads its user and organization already had.
+     * 
+     * Only the work queue is locked, so the submissions do not wait for the
+     * administration of the tasks.
      * 
      * @param newTask
      * @throws Exception 
      */
-	public synchronized void submit(ExtractionTask extractor) {
+	public void submit(ExtractionTask extractor) {
 
-		// creates the waiting task queue ordered by priority task
-		this.readyTaskQueue.offer(extractor);
+		extractor.setLayerExecutor(layerExecutor, maxParallelLayers);
+
+		this.readyTasks.put(extractor.executionMetadata.getUuid(), extractor);
 
 		Future<?> future = executor.submit(extractor);
 		extractor.executionMetadata.setFuture(future);
@@ -115,45 +182,18 @@ public class ExtractionManager {
     /**
      * Updates the priority if the task is in waiting status.
      * 
+     * The task is found by its uuid and moved within the work queue, it is
+     * neither cancelled nor submitted again.
+     * 
      * @param id	identification of required id		
      * @param newPriority
      */
-    public synchronized void updatePriority(final String id, final ExecutionPriority newPriority) {
+    public void updatePriority(final String id, final ExecutionPriority newPriority) {
     	
-        // search in the waiting tasks and updates the priority of the task
-        ExtractionTask foundTask = null;
-		for (ExtractionTask task : this.readyTaskQueue) {
-			if(task.executionMetadata.getState().equals(ExecutionState.WAITING) ){
-				Future<?> future = task.executionMetadata.getFuture();
-				if(!future.isCancelled() && !future.isDone()){					
-		            if (task.equalId(id)) {
-		            	foundTask = task;
-		            	break;
-		            }
-				}
-			}
-        }
+        ExtractionTask foundTask = findWaitingTask(id);
 		if(foundTask != null){
-            // sets the new priority and reinsert the task
-//			this.readyTaskQueue.remove(foundTask);
-//
-//			foundTask.executionMetadata.setPriority(newPriority);
-//			
-//			this.readyTaskQueue.offer(foundTask);
-			
-// XXX the commented lines where replaced by de following, looks like the ClassCastException was solved. Requires more test.
-// the following code throws a ClassCastException: java.util.concurrent.FutureTask cannot be cast to java.lang.Comparable			
 			foundTask.executionMetadata.setPriority(newPriority);
-			ExtractionTask taskCloned = new ExtractionTask(foundTask);
-		
-			foundTask.executionMetadata.getFuture().cancel(true);
-			this.executor.remove(foundTask);
-			this.executor.purge();
-			this.readyTaskQueue.remove(foundTask);
-			
-			submit(taskCloned);
-			
-			
+			this.workQueue.reprioritize((Runnable) foundTask.executionMetadata.getFuture());
         } else {
         	// searches if the task is in the paused queue
         	ExtractionTask pausedTask = this.pausedTasks.get(id);
@@ -163,7 +203,21 @@ public class ExtractionManager {
         }
     }
 
-    
+    /**
+     * @return the task if it is waiting to be started, null in other case
+     */
+    private ExtractionTask findWaitingTask(final String id) {
+        ExtractionTask task = this.readyTasks.get(id);
+        if (task == null || !task.executionMetadata.isWaiting()) {
+            return null;
+        }
+        Future<?> future = task.executionMetadata.getFuture();
+        // not submitted yet while the future is a placeholder
+        if (!(future instanceof Runnable) || future.isCancelled() || future.isDone()) {
+            return null;
+        }
+        return task;
+    }
 
 	/**
      * Will set priorities of all tasks to MEDIUM and re-add all waiting tasks back to the queue in the order of the uuids in newOrder.  
@@ -172,30 +226,20 @@ public class ExtractionManager {
      * @param newOrder a list of the task's uuids
      */
     public synchronized void updateAllPriorities(final List<String> newOrder) {
-        executor.purge();
-        Collection<ExtractionTask> newWaitingTasks = new TreeSet<ExtractionTask>(new Comparator<ExtractionTask>(){
-
-            @Override
-            public int compare(ExtractionTask task1, ExtractionTask task2) {
-                return newOrder.indexOf(task1.executionMetadata.getUuid()) - newOrder.indexOf(task2.executionMetadata.getUuid());
-            }
-            
-        });
-        for (ExtractionTask task : this.readyTaskQueue) {
-            if(task.executionMetadata.isWaiting()) {
-                readyTaskQueue.remove(task);
-                if(newOrder.contains(task.executionMetadata.getUuid())) {
-                    newWaitingTasks.add(task);
-                } else {
-                    task.executionMetadata.cancel();
-                    cancelledTaskQueue.add(task);
-                }
+        Set<String> kept = new HashSet<String>(newOrder);
+        for (ExtractionTask task : this.readyTasks.values()) {
+            if (task.executionMetadata.isWaiting() && !kept.contains(task.executionMetadata.getUuid())) {
+                readyTasks.remove(task.executionMetadata.getUuid());
+                cancelledTaskQueue.add(task);
+                cancelProcess(task);
             }
         }
-        
-        for (ExtractionTask task : newWaitingTasks) {
-            task.executionMetadata.setPriority(ExecutionPriority.MEDIUM);
-            submit(task);
+        for (String uuid : newOrder) {
+            ExtractionTask task = findWaitingTask(uuid);
+            if (task != null) {
+                task.executionMetadata.setPriority(ExecutionPriority.MEDIUM);
+                this.workQueue.requeue((Runnable) task.executionMetadata.getFuture());
+            }
         }
     }
     
@@ -205,17 +249,12 @@ public class ExtractionManager {
      */
     public synchronized void removeTask(String uuid) {
     	
-        for (ExtractionTask task : this.readyTaskQueue) {
-        	if(task.executionMetadata.getPriority().equals(ExecutionState.WAITING) ){
-                if (task.equalId(uuid)) {
-                    task.executionMetadata.cancel();
-                    this.executor.remove(task);
-                    // move from ready to canceled list
-                    readyTaskQueue.remove(task);
-                    this.cancelledTaskQueue.add(task);
-                    break;
-                }
-        	}
+        ExtractionTask task = findWaitingTask(uuid);
+        if (task != null) {
+            // move from ready to canceled list
+            readyTasks.remove(uuid);
+            this.cancelledTaskQueue.add(task);
+            cancelProcess(task);
         }
     }
 
@@ -223,9 +262,9 @@ public class ExtractionManager {
      * Gets a deep copy of task queue metadata. The metadata objects are only copies 
      * (defensive copy) so no changes will be reflected on the actual tasks
      */
-    public synchronized List<ExecutionMetadata> getTaskQueue() {
+    public List<ExecutionMetadata> getTaskQueue() {
         List<ExecutionMetadata> queue = new ArrayList<ExecutionMetadata>();
-        for (ExtractionTask task : this.readyTaskQueue) {
+        for (ExtractionTask task : this.readyTasks.values()) {
             queue.add(new ExecutionMetadata(task.executionMetadata));
         }
         for (ExtractionTask task : this.pausedTasks.values()) {
@@ -244,35 +283,15 @@ public class ExtractionManager {
      * @param uuid	identifier of task to find
      * @return the {@link ExtractionTask} it exists, null in other case.
      */
-    public synchronized ExtractionTask findTask(final String uuid) {
+    public ExtractionTask findTask(final String uuid) {
     	
-    	List<ExtractionTask> tasks = queryRunableTask();
-        for (ExtractionTask task: tasks) {
-            if (task.equalId(uuid)) {
-            	return task;
-            }
+        ExtractionTask task = this.readyTasks.get(uuid);
+        if (task != null && task.executionMetadata.isWaiting()) {
+            return task;
         }
         return this.pausedTasks.get(uuid);
     }
     
-    /**
-     * @return Returns the waiting, paused tasks. That is all runnable tasks.
-     */
-    private List<ExtractionTask> queryRunableTask(){
-    	
-        List<ExtractionTask> queue = new LinkedList<ExtractionTask>();
-        for (ExtractionTask task : this.readyTaskQueue) {
-        	ExecutionState st = task.executionMetadata.getState();
-        	if(st.equals(ExecutionState.WAITING)){
-                queue.add(task);
-        	}
-        }
-        for (ExtractionTask pausedTask : this.pausedTasks.values()) {
-            queue.add(pausedTask);
-        }
-        return queue;
-
-    }
     /**
      * Changes the task's status
      * 
@@ -313,7 +332,7 @@ public class ExtractionManager {
 		
 		if (foundTask.executionMetadata.isWaiting() ){
 
-		    this.readyTaskQueue.remove(foundTask);
+		    this.readyTasks.remove(id);
 		    this.cancelledTaskQueue.add(foundTask);
 		    cancelProcess(foundTask);
 			
@@ -332,8 +351,11 @@ public class ExtractionManager {
     private synchronized boolean cancelProcess(final ExtractionTask task) {
     	
     	task.executionMetadata.cancel();
-    	boolean wasCanceled = task.executionMetadata.getFuture().cancel(true);
-    	this.executor.remove(task); // purge cancelled task
+    	Future<?> future = task.executionMetadata.getFuture();
+    	boolean wasCanceled = future.cancel(true);
+    	if (future instanceof Runnable) {
+    	    this.executor.remove((Runnable) future); // purge cancelled task
+    	}
     	return wasCanceled;
     }
     
@@ -344,36 +366,19 @@ public class ExtractionManager {
      */
     private synchronized void pauseTask(final String id){
 
-    	ExtractionTask foundTask = null;
-        for (ExtractionTask task: this.readyTaskQueue) {
-        	if(task.executionMetadata.getState().equals(ExecutionState.WAITING)){
-        		if(!task.executionMetadata.getFuture().isCancelled() && !task.executionMetadata.getFuture().isDone()){
-                    if (task.equalId(id)) {
-                    	foundTask = task;
-                    	break;
-                    }
-        		}
-        	}
-        }
+    	ExtractionTask foundTask = findWaitingTask(id);
 		if(foundTask == null){
 			return;
 		}
-		// moves the found task to the paused task queue
-//		foundTask.executionMetadata.getFuture().cancel(true);
-//		this.executor.remove(foundTask);
-//        this.readyTaskQueue.remove(foundTask);
-//        
-//        foundTask.executionMetadata.setPaused();
-//        this.pausedTasks.put(id, foundTask);
-//        
-//XXX Replaced by the following sentences:        
+		// moves the found task to the paused task queue. The future can
+		// not be reused, the task is submitted again as a copy when resumed
         foundTask.executionMetadata.setPaused();
 		ExtractionTask taskCloned = new ExtractionTask(foundTask);
 	
-		foundTask.executionMetadata.getFuture().cancel(true);
-		this.executor.remove(foundTask);
-		this.executor.purge();
-		this.readyTaskQueue.remove(foundTask);
+		Future<?> future = foundTask.executionMetadata.getFuture();
+		future.cancel(true);
+		this.executor.remove((Runnable) future);
+		this.readyTasks.remove(id);
 		
         this.pausedTasks.put(id, taskCloned);
         
@@ -395,15 +400,13 @@ public class ExtractionManager {
     }
 	
     public synchronized void cleanExpiredTasks(long expiry) {
-        ArrayList<ExtractionTask> toRemove = new ArrayList<ExtractionTask>();
-        for (ExtractionTask task : readyTaskQueue) {
+        for (ExtractionTask task : readyTasks.values()) {
             ExecutionMetadata metadata = task.executionMetadata;
             if (metadata.isCompleted() && (metadata.getStateChangeTime().getTime() + expiry) > System.currentTimeMillis()) {
-                toRemove.add(task);
+                readyTasks.remove(metadata.getUuid(), task);
             }
         }
-        readyTaskQueue.removeAll(toRemove);
-        toRemove.clear();
+        ArrayList<ExtractionTask> toRemove = new ArrayList<ExtractionTask>();
         for (ExtractionTask task : cancelledTaskQueue) {
             ExecutionMetadata metadata = task.executionMetadata;
             if ((metadata.getStateChangeTime().getTime() + expiry) > System.currentTimeMillis()) {
@@ -35,14 +35,21 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.ExtractionArchive;
 import org.georchestra.extractorapp.ws.extractor.ExtractorController;
 import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.georchestra.extractorapp.ws.extractor.LayerCache;
 import org.georchestra.extractorapp.ws.extractor.OversizedCoverageRequestException;
+import org.georchestra.extractorapp.ws.extractor.PostgisLayers;
 import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
 import org.georchestra.extractorapp.ws.extractor.WcsExtractor;
 import org.georchestra.extractorapp.ws.extractor.WfsExtractor;
@@ -66,12 +73,24 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 			.getPackage().getName());
 	private final ComboPooledDataSource datasource;
 
-	private static final int EXTRACTION_ATTEMPTS = 3;
+	static final int EXTRACTION_ATTEMPTS = 3;
 	public final ExecutionMetadata executionMetadata;
 
 	private RequestConfiguration requestConfig;
 	private Long logId;
 
+	/** extracts the layers, shared by the tasks of the ExtractionManager */
+	private ExecutorService layerExecutor;
+	private int maxParallelLayers = 1;
+
+	/** layers read from their PostGIS database, may be null */
+	private PostgisLayers postgisLayers;
+
+	/** extracted layers reused by the following requests, may be null */
+	private LayerCache layerCache;
+
+	static enum LayerOutcome { SUCCESS, FAILURE, OVERSIZED }
+
 	public ExtractionTask(RequestConfiguration requestConfig, ComboPooledDataSource datasource)
 			throws NoSuchAuthorityCodeException, MalformedURLException, JSONException, FactoryException {
 		this.requestConfig = requestConfig;
@@ -87,6 +106,37 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 		this.requestConfig = toCopy.requestConfig;
 		this.datasource = toCopy.datasource;
 		this.executionMetadata = toCopy.executionMetadata;
+		this.layerExecutor = toCopy.layerExecutor;
+		this.maxParallelLayers = toCopy.maxParallelLayers;
+		this.postgisLayers = toCopy.postgisLayers;
+		this.layerCache = toCopy.layerCache;
+	}
+
+	/**
+	 * @param layerExecutor executor the layers are extracted by, null to
+	 *            extract them sequentially in the task thread
+	 * @param maxParallelLayers maximum number of layers of the task extracted
+	 *            at the same time
+	 */
+	void setLayerExecutor(ExecutorService layerExecutor, int maxParallelLayers) {
+		this.layerExecutor = layerExecutor;
+		this.maxParallelLayers = Math.max(1, maxParallelLayers);
+	}
+
+	/**
+	 * @param postgisLayers vector layers read from their PostGIS database
+	 *            instead of the WFS, null if none
+	 */
+	public void setPostgisLayers(PostgisLayers postgisLayers) {
+		this.postgisLayers = postgisLayers;
+	}
+
+	/**
+	 * @param layerCache cache of the extracted layers, null to extract all
+	 *            the layers
+	 */
+	public void setLayerCache(LayerCache layerCache) {
+		this.layerCache = layerCache;
 	}
 
 
@@ -98,6 +148,7 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 		final File tmpDir = FileUtils.createTempDirectory();
 		final File tmpExtractionBundle = mkDirTmpExtractionBundle(tmpDir, requestConfig.extractionFolderPrefix+requestConfig.requestUuid .toString());
+		ExtractionArchive archive = null;
 
 		try {
 			long start = System.currentTimeMillis();
@@ -109,82 +160,35 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 			final List<String> successes = new ArrayList<String>();
 			final List<String> failures = new ArrayList<String>();
 			final List<String> oversized = new ArrayList<String>();
-			for (ExtractorLayerRequest request : requestConfig.requests) {
-
-				int tries = 0;
-				while (tries < EXTRACTION_ATTEMPTS) {
-
-					tries++;
-					String name = String.format("%s__%s",
-							request._url.getHost(), request._layerName);
-					File layerTmpDir = mkDirTmpExtractionBundle(tmpDir, name);
-					LOG.info("Attempt " + tries + " for extracting layer: "
-							+ request._url + " -- " + request._layerName);
-
-					try {
-						// extracts the layer in the temporal directory
-						File newDir;
-						switch (request._owsType) {
-						case WCS:
-							newDir = extractWcsLayer(request, layerTmpDir);
-							break;
-						case WFS:
-							newDir = extractWfsLayer(request, layerTmpDir);
-							break;
-						default:
-							throw new IllegalArgumentException(request._owsType
-									+ " not supported");
-						}
-						// extracts the metadata into the temporal directory
-						if(request._isoMetadataURL != null && !"".equals(request._isoMetadataURL) ){
-							extractMetadata(request, newDir);
-						}
-
-						for (File from : layerTmpDir.listFiles()) {
-							File to = new File(tmpExtractionBundle,
-									from.getName());
-							FileUtils.moveFile(from, to);
-						}
-						FileUtils.delete(layerTmpDir);
-						LOG.info("Finished extracting layer: " + request._url
-								+ " -- " + request._layerName);
-						tries = EXTRACTION_ATTEMPTS + 1;
-						successes.add(name);
-					} catch (OversizedCoverageRequestException e) {
-						tries = EXTRACTION_ATTEMPTS + 1; // don't re-try
-						oversized.add(name);
-						handleExtractionException(request, e, failureFile);
-					} catch (SecurityException e) {
-						tries = EXTRACTION_ATTEMPTS + 1; // don't re-try
-
-						try {
-							FileUtils.delete(layerTmpDir);
-						} catch (Throwable t) { /* ignore */
-						}
-
-						failures.add(name);
-						handleExtractionException(request, e, failureFile);
-					} catch (Throwable e) {
-						try {
-							FileUtils.delete(layerTmpDir);
-						} catch (Throwable t) { /* ignore */
-						}
-
-						if (tries >= EXTRACTION_ATTEMPTS) {
-							failures.add(name);
-							handleExtractionException(request, e, failureFile);
-						}
-					}
+
+			archive = openArchive(tmpExtractionBundle);
+			LayerOutcome[] outcomes = extractLayers(tmpDir, archive, failureFile);
+			if (outcomes == null) {
+				LOG.info("Extraction interrupted: " + tmpExtractionBundle);
+				return;
+			}
+			// reports the layers in the order of the request
+			for (int i = 0; i < outcomes.length; i++) {
+				String name = layerName(requestConfig.requests.get(i));
+				switch (outcomes[i]) {
+				case SUCCESS:
+					successes.add(name);
+					break;
+				case OVERSIZED:
+					oversized.add(name);
+					break;
+				default:
+					failures.add(name);
 				}
 			}
 
-			File archive = archiveExtraction(tmpExtractionBundle);
-			long fileSize = archive.length();
+			File archiveFile = archiveExtraction(archive, failureFile);
+			long fileSize = archiveFile.length();
 			long end = System.currentTimeMillis();
 
 			String msg = String
 					.format("Finished extraction into directory: %s achive is: %s (size : %s bytes) \nExtraction took %s",
-							tmpExtractionBundle, archive, fileSize, time(start, end));
+							tmpExtractionBundle, archiveFile, fileSize, time(start, end));
 			LOG.info(msg);
 
 			if (!requestConfig.testing) {
@@ -197,6 +201,10 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 				throw new RuntimeException(Arrays.toString(failures.toArray()));
 			}
 		} finally {
+			if (archive != null) {
+				// discards the archive of an interrupted extraction
+				archive.abort();
+			}
 			executionMetadata.setCompleted();
 			FileUtils.delete(tmpExtractionBundle);
 			FileUtils.delete(tmpDir);
@@ -204,6 +212,180 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 		}
 	}
 
+	/**
+	 * Extracts the layers of the request into the archive. The layers
+	 * are extracted concurrently by the layer executor shared by the tasks of
+	 * the {@link ExtractionManager}, at most maxParallelLayers at a time, or
+	 * sequentially by the current thread if there is no layer executor.
+	 * Default for testing purposes
+	 *
+	 * @return the outcome of each layer, in the order of the request, or null
+	 *         if the extraction was interrupted
+	 */
+	LayerOutcome[] extractLayers(final File tmpDir, final ExtractionArchive archive, final File failureFile) {
+		final List<ExtractorLayerRequest> requests = requestConfig.requests;
+		final LayerOutcome[] outcomes = new LayerOutcome[requests.size()];
+		final AtomicInteger next = new AtomicInteger();
+
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				requestConfig.setThreadLocal();
+				int i;
+				while (!Thread.currentThread().isInterrupted()
+						&& (i = next.getAndIncrement()) < requests.size()) {
+					outcomes[i] = extractLayer(i, requests.get(i), tmpDir, archive, failureFile);
+				}
+			}
+		};
+
+		if (layerExecutor == null) {
+			worker.run();
+			return Thread.currentThread().isInterrupted() ? null : outcomes;
+		}
+
+		int workers = Math.min(maxParallelLayers, requests.size());
+		List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+		try {
+			for (int w = 0; w < workers; w++) {
+				futures.add(layerExecutor.submit(worker));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		for (LayerOutcome outcome : outcomes) {
+			if (outcome == null) {
+				// a worker was interrupted
+				return null;
+			}
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Extracts a layer and adds its files to the archive, trying up to
+	 * EXTRACTION_ATTEMPTS times. The failures are reported in the failure file.
+	 *
+	 * @param index position of the layer in the request, keeps the temporary
+	 *            directories of the layers extracted concurrently apart
+	 */
+	private LayerOutcome extractLayer(int index, ExtractorLayerRequest request, File tmpDir,
+			ExtractionArchive archive, File failureFile) {
+
+		String name = layerName(request);
+		LayerCache.Entry cached = (layerCache == null) ? null : layerCache.acquire(request);
+		if (cached != null) {
+			File metadataTmpDir = null;
+			try {
+				checkPermission(request, tmpDir);
+				metadataTmpDir = extractLayerMetadata(index, request, tmpDir);
+				archive.addContent(cached.getDirectory());
+				if (metadataTmpDir != null) {
+					archive.addContent(metadataTmpDir);
+				}
+				LOG.info("Layer reused from the cache: " + request._url
+						+ " -- " + request._layerName);
+				return LayerOutcome.SUCCESS;
+			} catch (SecurityException e) {
+				handleExtractionException(request, e, failureFile);
+				return LayerOutcome.FAILURE;
+			} catch (Throwable e) {
+				LOG.warn("Unable to reuse the cached layer " + name + ", extracting it", e);
+			} finally {
+				layerCache.release(cached);
+				if (metadataTmpDir != null) {
+					FileUtils.delete(metadataTmpDir);
+				}
+			}
+		}
+
+		File layerTmpDir = null;
+		File metadataTmpDir = null;
+		int tries = 0;
+		while (layerTmpDir == null) {
+
+			tries++;
+			File attemptTmpDir = mkDirTmpExtractionBundle(tmpDir, index + "_" + name);
+			LOG.info("Attempt " + tries + " for extracting layer: "
+					+ request._url + " -- " + request._layerName);
+
+			try {
+				// extracts the layer in the temporal directory
+				extractLayerData(request, attemptTmpDir);
+				// the metadata are kept apart, as they are not cached
+				metadataTmpDir = extractLayerMetadata(index, request, tmpDir);
+				layerTmpDir = attemptTmpDir;
+			} catch (OversizedCoverageRequestException e) {
+				// don't re-try
+				handleExtractionException(request, e, failureFile);
+				return LayerOutcome.OVERSIZED;
+			} catch (SecurityException e) {
+				// don't re-try
+				deleteQuietly(attemptTmpDir, metadataTmpDir);
+				handleExtractionException(request, e, failureFile);
+				return LayerOutcome.FAILURE;
+			} catch (Throwable e) {
+				deleteQuietly(attemptTmpDir, metadataTmpDir);
+				metadataTmpDir = null;
+				if (tries >= EXTRACTION_ATTEMPTS) {
+					handleExtractionException(request, e, failureFile);
+					return LayerOutcome.FAILURE;
+				}
+			}
+		}
+
+		// the layer is archived right away, while the other layers are still
+		// being extracted. It is not extracted again if the archive fails,
+		// as some of its files may have been archived already.
+		try {
+			archive.addContent(layerTmpDir);
+			if (metadataTmpDir != null) {
+				archive.addContent(metadataTmpDir);
+			}
+		} catch (Throwable e) {
+			deleteQuietly(layerTmpDir, metadataTmpDir);
+			handleExtractionException(request, e, failureFile);
+			return LayerOutcome.FAILURE;
+		}
+		deleteQuietly(metadataTmpDir);
+		if (layerCache == null || !layerCache.put(request, layerTmpDir)) {
+			FileUtils.delete(layerTmpDir);
+		}
+		LOG.info("Finished extracting layer: " + request._url
+				+ " -- " + request._layerName);
+		return LayerOutcome.SUCCESS;
+	}
+
+	private static void deleteQuietly(File... dirs) {
+		for (File dir : dirs) {
+			try {
+				if (dir != null) {
+					FileUtils.delete(dir);
+				}
+			} catch (Throwable t) { /* ignore */
+			}
+		}
+	}
+
+	private static String layerName(ExtractorLayerRequest request) {
+		return String.format("%s__%s", request._url.getHost(), request._layerName);
+	}
+
 	private String time(long start, long end) {
 		long seconds = (end - start) / 1000;
 		if (seconds > 60) {
@@ -236,11 +418,13 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 	}
 
 	/**
+	 * Opens the archive the layers are added to as they are extracted, the
+	 * files being archived in a directory named as the extraction bundle.
 	 * Protected to allow unit test to override
 	 *
 	 * @return
 	 */
-	protected File archiveExtraction(File tmpExtractionBundle) {
+	protected ExtractionArchive openArchive(File tmpExtractionBundle) {
 		String filename = requestConfig.requestUuid.toString()
 				+ ExtractorController.EXTRACTION_ZIP_EXT;
 		File storageFile = FileUtils.storageFile(filename);
@@ -248,14 +432,32 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 			storageFile.getParentFile().mkdirs();
 		}
 		try {
-			FileUtils.archiveToZip(tmpExtractionBundle, storageFile);
+			return new ExtractionArchive(storageFile, tmpExtractionBundle.getName());
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create the archive: " + storageFile, e);
+		}
+	}
+
+	/**
+	 * Adds the failure file, if any, and completes the archive.
+	 * Protected to allow unit test to override
+	 *
+	 * @return the archive file
+	 */
+	protected File archiveExtraction(ExtractionArchive archive, File failureFile) {
+		try {
+			if (failureFile.exists()) {
+				archive.addFile(failureFile);
+			}
+			archive.commit();
 		} catch (IOException e1) {
 			handleException(e1);
 		}
-		return storageFile;
+		return FileUtils.storageFile(requestConfig.requestUuid.toString()
+				+ ExtractorController.EXTRACTION_ZIP_EXT);
 	}
 
-	private void handleExtractionException(ExtractorLayerRequest request,
+	private synchronized void handleExtractionException(ExtractorLayerRequest request,
 			Throwable e, File failureFile) {
 
 		this.statSetError(request);
@@ -319,6 +521,74 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 	}
 
 
+	/**
+	 * Extracts the data of the layer, without its metadata.
+	 * Protected to allow unit test to override
+	 *
+	 * @param layerTmpDir directory the layer directory is created in
+	 * @return the directory that contain the layer
+	 */
+	protected File extractLayerData(ExtractorLayerRequest request, File layerTmpDir)
+			throws IOException, TransformException, FactoryException {
+		switch (request._owsType) {
+		case WCS:
+			return extractWcsLayer(request, layerTmpDir);
+		case WFS:
+			return extractWfsLayer(request, layerTmpDir);
+		default:
+			throw new IllegalArgumentException(request._owsType
+					+ " not supported");
+		}
+	}
+
+	/**
+	 * Extracts the metadata of the layer, if any, with the permissions of the
+	 * user. Unlike the data of the layer, the metadata are never cached: the
+	 * catalog may grant them to some users only.
+	 *
+	 * @return the directory holding the layer directory with the metadata, to
+	 *         delete once archived, null if the layer has no metadata
+	 */
+	private File extractLayerMetadata(int index, ExtractorLayerRequest request, File tmpDir) throws IOException {
+		if (request._isoMetadataURL == null || "".equals(request._isoMetadataURL)) {
+			return null;
+		}
+		File metadataTmpDir = mkDirTmpExtractionBundle(tmpDir, index + "_metadata_" + layerName(request));
+		File layerDir = request.createContainingDir(metadataTmpDir);
+		if (!layerDir.mkdirs() && !layerDir.exists()) {
+			throw new IOException("Unable to create " + layerDir);
+		}
+		extractMetadata(request, layerDir);
+		return metadataTmpDir;
+	}
+
+	/**
+	 * Checks that the user can access the layer, as the extractors do
+	 * before extracting it.
+	 * Protected to allow unit test to override
+	 *
+	 * @throws SecurityException if the user can not access the layer
+	 */
+	protected void checkPermission(ExtractorLayerRequest request, File requestBaseDir) throws IOException {
+		switch (request._owsType) {
+		case WCS:
+			new WcsExtractor(requestBaseDir, requestConfig).checkPermission(request,
+					requestConfig.secureHost, requestConfig.username, requestConfig.roles);
+			break;
+		case WFS:
+			new WfsExtractor(requestBaseDir,
+					requestConfig.adminCredentials.getUserName(),
+					requestConfig.adminCredentials.getPassword(),
+					requestConfig.secureHost,
+					requestConfig.userAgent).checkPermission(request,
+					requestConfig.secureHost, requestConfig.username, requestConfig.roles);
+			break;
+		default:
+			throw new IllegalArgumentException(request._owsType
+					+ " not supported");
+		}
+	}
+
 	/**
 	 * Creates a directory which contains the extracted layers
 	 *
@@ -359,6 +629,8 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 				requestConfig.adminCredentials.getPassword(),
 				requestConfig.secureHost,
 				requestConfig.userAgent);
+		extractor.setPaging(requestConfig.wfsPageSize, requestConfig.maxParallelPages);
+		extractor.setPostgisLayers(postgisLayers);
 
 		extractor.checkPermission(request, requestConfig.secureHost, requestConfig.username, requestConfig.roles);
 
@@ -367,13 +639,14 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 	/**
 	 * Extracts the layer's metadata and save it in the layer directory.
+	 * Protected to allow unit test to override
 	 *
 	 * @param request
 	 * @param layerDirectory
 	 * @throws MalformedURLException
 	 * @throws IOException
 	 */
-	private void extractMetadata(final ExtractorLayerRequest request, final File layerDirectory) throws IOException {
+	protected void extractMetadata(final ExtractorLayerRequest request, final File layerDirectory) throws IOException {
 
 		final String adminUserName = requestConfig.adminCredentials.getUserName();
 		final String adminPassword = requestConfig.adminCredentials.getPassword();
@@ -408,6 +681,27 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 		return requestConfig.requestUuid.toString().equals(uuid);
 	}
 
+	/**
+	 * @return the user who requested the extraction, null if anonymous
+	 */
+	String getUsername() {
+		return requestConfig.username;
+	}
+
+	/**
+	 * @return the organization of the user, null if none
+	 */
+	String getOrg() {
+		return requestConfig.org;
+	}
+
+	/**
+	 * @return the number of layers to extract
+	 */
+	int getLayerCount() {
+		return (requestConfig.requests == null) ? 0 : requestConfig.requests.size();
+	}
+
 
 	/*
 	 * Stats methods
@@ -415,6 +709,9 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 	private void statSetRunning() {
 
+		if (this.datasource == null) {
+			return; // the statistics are not logged
+		}
 		Connection c = null;
 		PreparedStatement pst = null;
 		try {
@@ -478,6 +775,9 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 	private void statSetCompleted() {
 
+		if (this.datasource == null) {
+			return; // the statistics are not logged
+		}
 		Connection c = null;
 		PreparedStatement pst = null;
 		try {
@@ -509,6 +809,9 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 	private void statSetError(ExtractorLayerRequest request) {
 
+		if (this.datasource == null) {
+			return; // the statistics are not logged
+		}
 		Connection c = null;
 		PreparedStatement pst = null;
 		try {
@@ -0,0 +1,648 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of the {@link ExtractionManager} executor, which shares the
+ * extraction threads fairly between the organizations and their users.
+ *
+ * The tasks of the highest {@link ExecutionPriority} are run first, so the
+ * administrators can still move a task ahead. Among the tasks of the same
+ * priority, the next task is the one of the organization, then of the user,
+ * which received the least service so far, a task costing one unit per
+ * layer. The service of an organization is divided by its weight. This is a
+ * start-time fair queueing: a user or organization which was idle starts
+ * again from the service of the last task run, so that it neither gets
+ * credit for its idle time nor waits for the others to catch up. Tasks with
+ * the same priority and service are run in the order of submission.
+ *
+ * The tasks of a user which already runs maxRunningPerUser tasks are left
+ * in the queue until one of them is finished.
+ *
+ * The waiting tasks are indexed, so that the next task is found, and a task
+ * removed or moved after a change of its priority, in logarithmic time:
+ * each user keeps its tasks sorted, each organization its users which can
+ * start a task, and the queue these organizations.
+ *
+ * The executor has to report the end of each task with
+ * {@link #finished(Runnable)}.
+ */
+public class FairShareQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final String ANONYMOUS = "";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = this.lock.newCondition();
+
+    /** waiting tasks, in order of submission */
+    private final Map<Runnable, Item> waiting = new LinkedHashMap<Runnable, Item>();
+    /** tasks taken by the executor, until they are finished */
+    private final Map<Runnable, Item> running = new IdentityHashMap<Runnable, Item>();
+
+    /** users, by organization and name */
+    private final Map<String, User> users = new HashMap<String, User>();
+    private final Map<String, Org> orgs = new HashMap<String, Org>();
+    /** organizations which can start a task, the next one first */
+    private final TreeSet<Org> ready = new TreeSet<Org>(new Comparator<Org>() {
+        @Override
+        public int compare(Org o1, Org o2) {
+            User u1 = o1.ready.first();
+            User u2 = o2.ready.first();
+            int priority = u2.next().priority.compareTo(u1.next().priority);
+            if (priority != 0) {
+                return priority;
+            }
+            if (o1.service != o2.service) {
+                return (o1.service < o2.service) ? -1 : 1;
+            }
+            return USER_ORDER.compare(u1, u2);
+        }
+    });
+    private double userVirtualTime = 0;
+    private double orgVirtualTime = 0;
+    private long submissions = 0;
+
+    private final int maxRunningPerUser;
+    private final Map<String, Double> orgWeights;
+
+    // queue wait statistics
+    private long dispatched = 0;
+    private long totalWait = 0;
+    private long maxWait = 0;
+
+    /**
+     * @param maxRunningPerUser maximum number of tasks of a user run at the
+     *            same time, 0 for no limit
+     * @param orgWeights weight of the organizations, 1 by default
+     */
+    public FairShareQueue(int maxRunningPerUser, Map<String, Double> orgWeights) {
+        this.maxRunningPerUser = Math.max(0, maxRunningPerUser);
+        this.orgWeights = new HashMap<String, Double>(orgWeights);
+    }
+
+    /**
+     * @param weights comma separated org:weight, as in "psc:2,c2c:1", may
+     *            be null
+     */
+    public static Map<String, Double> parseWeights(String weights) {
+        Map<String, Double> result = new HashMap<String, Double>();
+        if (weights == null) {
+            return result;
+        }
+        for (String weight : weights.split(",")) {
+            int sep = weight.lastIndexOf(':');
+            if (sep > 0) {
+                result.put(weight.substring(0, sep).trim(), Double.valueOf(weight.substring(sep + 1).trim()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+        this.lock.lock();
+        try {
+            Item item = new Item(r, this.submissions++);
+            Org org = this.orgs.get(item.org);
+            if (org == null) {
+                Double weight = (item.task == null) ? null : this.orgWeights.get(item.task.getOrg());
+                org = new Org((weight == null || weight <= 0) ? 1 : weight.doubleValue());
+                this.orgs.put(item.org, org);
+            }
+            String userKey = item.org + "\n" + item.user;
+            User user = this.users.get(userKey);
+            if (user == null) {
+                user = new User(item.user, org);
+                this.users.put(userKey, user);
+            }
+            item.owner = user;
+
+            detach(user);
+            activate(user, this.userVirtualTime);
+            activate(org, this.orgVirtualTime);
+            user.items.add(item);
+            this.waiting.put(r, item);
+            attach(user);
+            this.available.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * A user or organization which was idle starts from the current virtual
+     * time.
+     */
+    private static void activate(Flow flow, double virtualTime) {
+        if (flow.waiting + flow.running == 0) {
+            flow.service = Math.max(flow.service, virtualTime);
+        }
+        flow.waiting++;
+    }
+
+    /**
+     * Removes the user and its organization from the ready sets, before a
+     * change of their order.
+     */
+    private void detach(User user) {
+        Org org = user.org;
+        if (org.attached) {
+            this.ready.remove(org);
+            org.attached = false;
+        }
+        if (user.attached) {
+            org.ready.remove(user);
+            user.attached = false;
+        }
+    }
+
+    /**
+     * Adds the user and its organization back to the ready sets, if they can
+     * start a task.
+     */
+    private void attach(User user) {
+        Org org = user.org;
+        if (!user.items.isEmpty() && (this.maxRunningPerUser == 0 || user.running < this.maxRunningPerUser)) {
+            org.ready.add(user);
+            user.attached = true;
+        }
+        if (!org.ready.isEmpty()) {
+            this.ready.add(org);
+            org.attached = true;
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+        return offer(r);
+    }
+
+    @Override
+    public void put(Runnable r) {
+        offer(r);
+    }
+
+    @Override
+    public Runnable poll() {
+        this.lock.lock();
+        try {
+            Item item = select();
+            return (item == null) ? null : dispatch(item);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            Item item;
+            while ((item = select()) == null) {
+                this.available.await();
+            }
+            return dispatch(item);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            Item item;
+            while ((item = select()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = this.available.awaitNanos(nanos);
+            }
+            return dispatch(item);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        this.lock.lock();
+        try {
+            Item item = select();
+            return (item == null) ? null : item.runnable;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next task to run, null if there is none or if their users
+     *         already run too many tasks
+     */
+    private Item select() {
+        if (this.ready.isEmpty()) {
+            return null;
+        }
+        return this.ready.first().ready.first().next();
+    }
+
+    private Runnable dispatch(Item item) {
+        User user = item.owner;
+        Org org = user.org;
+        detach(user);
+        user.items.remove(item);
+        this.waiting.remove(item.runnable);
+        this.running.put(item.runnable, item);
+
+        user.waiting--;
+        user.running++;
+        this.userVirtualTime = Math.max(this.userVirtualTime, user.service);
+        user.service += item.cost;
+
+        org.waiting--;
+        org.running++;
+        this.orgVirtualTime = Math.max(this.orgVirtualTime, org.service);
+        org.service += item.cost / org.weight;
+        attach(user);
+
+        long wait = System.currentTimeMillis() - item.enqueued;
+        this.dispatched++;
+        this.totalWait += wait;
+        this.maxWait = Math.max(this.maxWait, wait);
+        return item.runnable;
+    }
+
+    /**
+     * Reports the end of a task returned by this queue.
+     */
+    public void finished(Runnable r) {
+        this.lock.lock();
+        try {
+            Item item = this.running.remove(r);
+            if (item == null) {
+                return;
+            }
+            User user = item.owner;
+            detach(user);
+            user.running--;
+            user.org.running--;
+            attach(user);
+            // a task of the user may be runnable now
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a waiting task after a change of its priority.
+     *
+     * @return false if the task is not waiting anymore
+     */
+    public boolean reprioritize(Runnable r) {
+        return update(r, false);
+    }
+
+    /**
+     * Moves a waiting task after a change of its priority, behind the other
+     * tasks of the same priority of its user, as if it was submitted again.
+     *
+     * @return false if the task is not waiting anymore
+     */
+    public boolean requeue(Runnable r) {
+        return update(r, true);
+    }
+
+    private boolean update(Runnable r, boolean last) {
+        this.lock.lock();
+        try {
+            Item item = this.waiting.get(r);
+            if (item == null) {
+                return false;
+            }
+            User user = item.owner;
+            detach(user);
+            user.items.remove(item);
+            item.priority = item.currentPriority();
+            if (last) {
+                item.order = this.submissions++;
+            }
+            user.items.add(item);
+            attach(user);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        this.lock.lock();
+        try {
+            Item item = this.waiting.remove(o);
+            if (item == null) {
+                return false;
+            }
+            User user = item.owner;
+            detach(user);
+            user.items.remove(item);
+            user.waiting--;
+            user.org.waiting--;
+            attach(user);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.waiting.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return a snapshot of the waiting tasks, in order of submission
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<Runnable>();
+        this.lock.lock();
+        try {
+            snapshot.addAll(this.waiting.keySet());
+        } finally {
+            this.lock.unlock();
+        }
+        return new Iterator<Runnable>() {
+            private final Iterator<Runnable> it = snapshot.iterator();
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return this.it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                this.last = this.it.next();
+                return this.last;
+            }
+
+            @Override
+            public void remove() {
+                if (this.last == null) {
+                    throw new IllegalStateException();
+                }
+                FairShareQueue.this.remove(this.last);
+                this.last = null;
+            }
+        };
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        int n = 0;
+        Runnable r;
+        while (n < maxElements && (r = pollWaiting()) != null) {
+            c.add(r);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Removes the first submitted task, whatever the limits.
+     */
+    private Runnable pollWaiting() {
+        this.lock.lock();
+        try {
+            if (this.waiting.isEmpty()) {
+                return null;
+            }
+            Runnable r = this.waiting.keySet().iterator().next();
+            remove(r);
+            return r;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the queue wait statistics and the number of waiting tasks of
+     *         each user
+     */
+    public Statistics getStatistics() {
+        this.lock.lock();
+        try {
+            Map<String, Integer> waitingPerUser = new HashMap<String, Integer>();
+            for (User user : this.users.values()) {
+                if (user.waiting > 0) {
+                    Integer count = waitingPerUser.get(user.name);
+                    waitingPerUser.put(user.name, (count == null) ? user.waiting : count + user.waiting);
+                }
+            }
+            return new Statistics(this.dispatched, (this.dispatched == 0) ? 0 : this.totalWait / this.dispatched,
+                    this.maxWait, waitingPerUser);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** the users with the next task first, in an organization */
+    private static final Comparator<User> USER_ORDER = new Comparator<User>() {
+        @Override
+        public int compare(User u1, User u2) {
+            Item i1 = u1.next();
+            Item i2 = u2.next();
+            int priority = i2.priority.compareTo(i1.priority);
+            if (priority != 0) {
+                return priority;
+            }
+            if (u1.service != u2.service) {
+                return (u1.service < u2.service) ? -1 : 1;
+            }
+            return ITEM_ORDER.compare(i1, i2);
+        }
+    };
+
+    /** the tasks of a user, by priority then in order of submission */
+    private static final Comparator<Item> ITEM_ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            int priority = i2.priority.compareTo(i1.priority);
+            if (priority != 0) {
+                return priority;
+            }
+            return (i1.order < i2.order) ? -1 : ((i1.order == i2.order) ? 0 : 1);
+        }
+    };
+
+    /**
+     * Activity of a user or organization
+     */
+    private abstract static class Flow {
+        double service = 0;
+        int waiting = 0;
+        int running = 0;
+        /** whether it is in the ready set of its parent */
+        boolean attached = false;
+    }
+
+    /**
+     * A user, within an organization. A user submitting tasks for two
+     * organizations is counted twice.
+     */
+    private static final class User extends Flow {
+        final String name;
+        final Org org;
+        /** the waiting tasks */
+        final TreeSet<Item> items = new TreeSet<Item>(ITEM_ORDER);
+
+        User(String name, Org org) {
+            this.name = name;
+            this.org = org;
+        }
+
+        Item next() {
+            return this.items.first();
+        }
+    }
+
+    private static final class Org extends Flow {
+        final double weight;
+        /** the users which can start a task */
+        final TreeSet<User> ready = new TreeSet<User>(USER_ORDER);
+
+        Org(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final class Item {
+        final Runnable runnable;
+        final ExtractionTask task;
+        final String user;
+        final String org;
+        final int cost;
+        final long enqueued = System.currentTimeMillis();
+        User owner;
+        /** priority and order of submission, as sorted */
+        ExecutionPriority priority;
+        long order;
+
+        Item(Runnable runnable, long order) {
+            this.runnable = runnable;
+            this.task = task(runnable);
+            String user = (this.task == null) ? null : this.task.getUsername();
+            String org = (this.task == null) ? null : this.task.getOrg();
+            this.user = (user == null) ? ANONYMOUS : user;
+            // users without organization share the threads as their own
+            // organization
+            this.org = (org == null) ? "user:" + this.user : "org:" + org;
+            this.cost = (this.task == null) ? 1 : Math.max(1, this.task.getLayerCount());
+            this.priority = currentPriority();
+            this.order = order;
+        }
+
+        private static ExtractionTask task(Runnable r) {
+            if (r instanceof ExtractionTask) {
+                return (ExtractionTask) r;
+            }
+            if (r instanceof PriorityThreadPoolExecutor.ComparableFutureTask
+                    && ((PriorityThreadPoolExecutor.ComparableFutureTask<?>) r).comparable instanceof ExtractionTask) {
+                return (ExtractionTask) ((PriorityThreadPoolExecutor.ComparableFutureTask<?>) r).comparable;
+            }
+            return null;
+        }
+
+        ExecutionPriority currentPriority() {
+            return (this.task == null) ? ExecutionPriority.MEDIUM : this.task.executionMetadata.getPriority();
+        }
+    }
+
+    /**
+     * Snapshot of the queue wait statistics
+     */
+    public static final class Statistics {
+
+        private final long dispatched;
+        private final long meanWait;
+        private final long maxWait;
+        private final Map<String, Integer> waitingPerUser;
+
+        Statistics(long dispatched, long meanWait, long maxWait, Map<String, Integer> waitingPerUser) {
+            this.dispatched = dispatched;
+            this.meanWait = meanWait;
+            this.maxWait = maxWait;
+            this.waitingPerUser = waitingPerUser;
+        }
+
+        /** @return number of tasks started */
+        public long getDispatched() {
+            return this.dispatched;
+        }
+
+        /** @return mean time the started tasks waited in the queue, in ms */
+        public long getMeanWait() {
+            return this.meanWait;
+        }
+
+        /** @return longest time a started task waited in the queue, in ms */
+        public long getMaxWait() {
+            return this.maxWait;
+        }
+
+        public Map<String, Integer> getWaitingPerUser() {
+            return this.waitingPerUser;
+        }
+    }
+}
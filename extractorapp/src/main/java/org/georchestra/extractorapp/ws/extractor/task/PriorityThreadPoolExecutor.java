@@ -55,6 +55,31 @@ public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
 				threadFactory);
 	}
 
+	/**
+	 * With a {@link FairShareQueue}, the core threads are started first, so
+	 * that every task goes through the queue: a task handed over to a new
+	 * thread would escape its limits and accounting.
+	 */
+	@Override
+	public void execute(Runnable command) {
+		if (getQueue() instanceof FairShareQueue) {
+			prestartAllCoreThreads();
+		}
+		super.execute(command);
+	}
+
+	/**
+	 * Lets a {@link FairShareQueue} start the tasks waiting for the end of
+	 * this one.
+	 */
+	@Override
+	protected void afterExecute(Runnable r, Throwable t) {
+		super.afterExecute(r, t);
+		if (getQueue() instanceof FairShareQueue) {
+			((FairShareQueue) getQueue()).finished(r);
+		}
+	}
+
 	protected <T> RunnableFuture<T> newTaskFor (Runnable runnable, T value) {
 	    return new ComparableFutureTask<T> (runnable, value);
 	  }
@@ -62,11 +62,21 @@ public class TaskControllers implements ServletContextAware {
                 task.put("uuid", elem.getUuid());
                 task.put("state", elem.getState());
                 task.put("priority", elem.getPriority());
+                task.put("requestor", elem.getRequestor());
+                task.put("waitTime", elem.getWaitTime());
 
                 jsarr.put(task);
             }
             ret.put("tasks", jsarr);
 
+            FairShareQueue.Statistics stats = extractionManager.getQueueStatistics();
+            JSONObject queue = new JSONObject();
+            queue.put("started", stats.getDispatched());
+            queue.put("meanWaitTime", stats.getMeanWait());
+            queue.put("maxWaitTime", stats.getMaxWait());
+            queue.put("waitingPerUser", new JSONObject(stats.getWaitingPerUser()));
+            ret.put("queue", queue);
+
             ret.put("status", "success");
 
     	} catch (Exception e) {
@@ -0,0 +1,81 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractionArchiveTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testArchiveLayers() throws Exception {
+        File storage = tempFolder.newFolder("storage");
+        File storageFile = new File(storage, "uuid" + ExtractorController.EXTRACTION_ZIP_EXT);
+
+        File layer1 = tempFolder.newFolder("layer1");
+        write(new File(layer1, "states/states_POLYGON.shp"), "shp");
+        write(new File(layer1, "states/metadata.xml"), "<xml/>");
+        File layer2 = tempFolder.newFolder("layer2");
+        write(new File(layer2, "ortho/ortho.ecw"), "ecw");
+        // same name as a file of the first layer
+        write(new File(layer2, "states/metadata.xml"), "<other/>");
+        File failures = tempFolder.newFile("failures.txt");
+
+        ExtractionArchive archive = new ExtractionArchive(storageFile, "extraction-uuid");
+        archive.addContent(layer1);
+        archive.addContent(layer2);
+        archive.addFile(failures);
+        // not yet downloadable
+        assertFalse(storageFile.exists());
+
+        assertEquals(storageFile, archive.commit());
+        assertEquals(Arrays.asList(storageFile), Arrays.asList(storage.listFiles()));
+
+        List<String> entries = FileUtils.listZip(storageFile);
+        assertEquals(new HashSet<String>(Arrays.asList(
+                "extraction-uuid/states/states_POLYGON.shp",
+                "extraction-uuid/states/metadata.xml",
+                "extraction-uuid/ortho/ortho.ecw",
+                "extraction-uuid/states/metadata_1.xml",
+                "extraction-uuid/failures.txt")), new HashSet<String>(entries));
+        assertEquals("<other/>\n", FileUtils.getZipEntryAsString(storageFile, "extraction-uuid/states/metadata_1.xml"));
+        assertEquals("ecw\n", FileUtils.getZipEntryAsString(storageFile, "extraction-uuid/ortho/ortho.ecw"));
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        File storage = tempFolder.newFolder("storage");
+        File storageFile = new File(storage, "uuid" + ExtractorController.EXTRACTION_ZIP_EXT);
+        File layer = tempFolder.newFolder("layer");
+        write(new File(layer, "layer.csv"), "a,b");
+
+        ExtractionArchive archive = new ExtractionArchive(storageFile, "extraction-uuid");
+        archive.addContent(layer);
+        archive.abort();
+
+        assertTrue(storage.listFiles().length == 0);
+    }
+}
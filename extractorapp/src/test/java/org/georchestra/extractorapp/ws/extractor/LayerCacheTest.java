@@ -0,0 +1,153 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LayerCacheTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private LayerCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new LayerCache();
+        cache.setDirectory(new File(tempFolder.getRoot(), "layercache"));
+        cache.setMaxSize(1);
+        cache.init();
+    }
+
+    private static ExtractorLayerRequest request(String layerName, String format, String bbox) throws Exception {
+        JSONObject json = new JSONObject("{\"emails\":[\"test@example.com\"],"
+                + "\"globalProperties\":{\"projection\":\"EPSG:2154\",\"resolution\":0.5,\"rasterFormat\":\"geotiff\",\"vectorFormat\":\"shp\",\"bbox\":{\"srs\":\"EPSG:2154\",\"value\":[500000,6870000,800000,7110000]}},"
+                + "\"layers\":[{\"projection\":\"EPSG:2154\",\"resolution\":null,\"format\":\"" + format + "\",\"bbox\":{\"srs\":\"EPSG:2154\",\"value\":[" + bbox + "]},"
+                + "\"owsUrl\":\"http://localhost/geoserver/wfs?\",\"owsType\":\"WFS\",\"layerName\":\"" + layerName + "\"}]}");
+        return new ExtractorLayerRequest(json.getJSONArray("layers").getJSONObject(0),
+                json.getJSONObject("globalProperties"), json.getJSONArray("emails"));
+    }
+
+    private File layerDir(String name, int size) throws IOException {
+        File dir = tempFolder.newFolder(name);
+        File layer = new File(dir, "localhost_" + name);
+        layer.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(layer, name + ".shp"));
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return dir;
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        String key = LayerCache.key(request("geor:roads", "shp", "600000,6900000,610000,6910000"));
+
+        // rounded to the meter for a 10 km bbox
+        assertEquals(key, LayerCache.key(request("geor:roads", "SHP", "600000.2,6900000.1,610000.3,6909999.9")));
+        assertFalse(key.equals(LayerCache.key(request("geor:roads", "shp", "600002,6900000,610000,6910000"))));
+        assertFalse(key.equals(LayerCache.key(request("geor:roads", "mif", "600000,6900000,610000,6910000"))));
+        assertFalse(key.equals(LayerCache.key(request("geor:rivers", "shp", "600000,6900000,610000,6910000"))));
+    }
+
+    @Test
+    public void testPutAndAcquire() throws Exception {
+        ExtractorLayerRequest request = request("geor:roads", "shp", "600000,6900000,610000,6910000");
+        assertNull(cache.acquire(request));
+
+        File dir = layerDir("roads", 1000);
+        assertTrue(cache.put(request, dir));
+        assertFalse(dir.exists());
+        // already cached
+        assertFalse(cache.put(request, layerDir("roads2", 1000)));
+
+        LayerCache.Entry entry = cache.acquire(request);
+        assertNotNull(entry);
+        assertTrue(new File(entry.getDirectory(), "localhost_roads/roads.shp").exists());
+        cache.release(entry);
+        assertEquals(1, cache.getLayerCount());
+        assertEquals(1000, cache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        ExtractorLayerRequest roads = request("geor:roads", "shp", "600000,6900000,610000,6910000");
+        ExtractorLayerRequest rivers = request("geor:rivers", "shp", "600000,6900000,610000,6910000");
+        ExtractorLayerRequest lakes = request("geor:lakes", "shp", "600000,6900000,610000,6910000");
+
+        cache.put(roads, layerDir("roads", 400 * 1024));
+        cache.put(rivers, layerDir("rivers", 400 * 1024));
+        cache.release(cache.acquire(roads));
+        // over 1 MB, rivers is the least recently used
+        cache.put(lakes, layerDir("lakes", 400 * 1024));
+
+        assertEquals(2, cache.getLayerCount());
+        assertNull(cache.acquire(rivers));
+        assertNotNull(cache.acquire(roads));
+        assertNotNull(cache.acquire(lakes));
+    }
+
+    @Test
+    public void testLayerInUseNotDeleted() throws Exception {
+        ExtractorLayerRequest roads = request("geor:roads", "shp", "600000,6900000,610000,6910000");
+        ExtractorLayerRequest rivers = request("geor:rivers", "shp", "600000,6900000,610000,6910000");
+        ExtractorLayerRequest lakes = request("geor:lakes", "shp", "600000,6900000,610000,6910000");
+
+        cache.put(roads, layerDir("roads", 400 * 1024));
+        LayerCache.Entry entry = cache.acquire(roads);
+        cache.put(rivers, layerDir("rivers", 400 * 1024));
+        cache.put(lakes, layerDir("lakes", 400 * 1024));
+
+        assertNull(cache.acquire(roads));
+        assertTrue(entry.getDirectory().exists());
+        cache.release(entry);
+        assertFalse(entry.getDirectory().exists());
+    }
+
+    @Test
+    public void testEvictExpired() throws Exception {
+        ExtractorLayerRequest roads = request("geor:roads", "shp", "600000,6900000,610000,6910000");
+        cache.put(roads, layerDir("roads", 1000));
+
+        cache.setMaxAge(0);
+        Thread.sleep(10);
+        cache.evictExpired();
+
+        assertNull(cache.acquire(roads));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        ExtractorLayerRequest roads = request("geor:roads", "shp", "600000,6900000,610000,6910000");
+        cache.put(roads, layerDir("roads", 1000));
+        LayerCache.Entry entry = cache.acquire(roads);
+        cache.release(entry);
+
+        LayerCache restarted = new LayerCache();
+        restarted.setDirectory(new File(tempFolder.getRoot(), "layercache"));
+        restarted.setMaxSize(1);
+        restarted.init();
+
+        LayerCache.Entry reloaded = restarted.acquire(roads);
+        assertNotNull(reloaded);
+        assertNotSame(entry, reloaded);
+        assertEquals(entry.getDirectory(), reloaded.getDirectory());
+        assertEquals(1000, restarted.getSize());
+    }
+}
@@ -0,0 +1,133 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.sort.SortBy;
+
+public class PagedFeatureCollectionTest {
+
+    private ExecutorService executor;
+    private SimpleFeatureType type;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        type = DataUtilities.createType("test", "id:Integer");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return a source of n features, which answers the page queries
+     */
+    private SimpleFeatureSource source(int n) throws Exception {
+        final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < n; i++) {
+            features.add(SimpleFeatureBuilder.build(type, new Object[] { i }, "test." + i));
+        }
+        SimpleFeatureSource source = mock(SimpleFeatureSource.class);
+        when(source.getFeatures(any(Query.class))).thenAnswer(new Answer<ListFeatureCollection>() {
+            @Override
+            public ListFeatureCollection answer(InvocationOnMock invocation) throws Throwable {
+                Query query = (Query) invocation.getArguments()[0];
+                if (query.getStartIndex() == null) {
+                    return new ListFeatureCollection(type, features);
+                }
+                int start = Math.min(query.getStartIndex(), features.size());
+                int end = Math.min(start + query.getMaxFeatures(), features.size());
+                // pages are not returned in order
+                Thread.sleep((start / query.getMaxFeatures()) % 2 == 0 ? 20 : 0);
+                return new ListFeatureCollection(type, features.subList(start, end));
+            }
+        });
+        return source;
+    }
+
+    private List<Integer> read(PagedFeatureCollection collection) {
+        List<Integer> ids = new ArrayList<Integer>();
+        SimpleFeatureIterator it = collection.features();
+        try {
+            while (it.hasNext()) {
+                ids.add((Integer) it.next().getAttribute("id"));
+            }
+        } finally {
+            it.close();
+        }
+        return ids;
+    }
+
+    private static List<Integer> range(int n) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testFeaturesInOrder() throws Exception {
+        PagedFeatureCollection collection = new PagedFeatureCollection(source(25), new Query("test"), 10, executor, 3);
+
+        assertEquals(range(25), read(collection));
+    }
+
+    @Test
+    public void testLastPageFull() throws Exception {
+        PagedFeatureCollection collection = new PagedFeatureCollection(source(20), new Query("test"), 10, executor, 2);
+
+        assertEquals(range(20), read(collection));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        PagedFeatureCollection collection = new PagedFeatureCollection(source(0), new Query("test"), 10, executor, 2);
+
+        assertEquals(Collections.<Integer> emptyList(), read(collection));
+    }
+
+    @Test
+    public void testPageQuery() throws Exception {
+        PagedFeatureCollection collection = new PagedFeatureCollection(source(0), new Query("test"), 10, executor, 2);
+
+        Query query = collection.pageQuery(3);
+        assertEquals(Integer.valueOf(30), query.getStartIndex());
+        assertEquals(10, query.getMaxFeatures());
+        assertEquals(SortBy.NATURAL_ORDER, query.getSortBy()[0]);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        PagedFeatureCollection collection = new PagedFeatureCollection(source(100), new Query("test"), 10, executor, 2);
+
+        SimpleFeatureIterator it = collection.features();
+        it.next();
+        it.close();
+        assertFalse(it.hasNext());
+    }
+}
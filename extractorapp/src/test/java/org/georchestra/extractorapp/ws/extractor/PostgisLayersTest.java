@@ -0,0 +1,67 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Properties;
+
+import org.geotools.jdbc.JDBCDataStoreFactory;
+import org.junit.Test;
+
+public class PostgisLayersTest {
+
+    private static PostgisLayers load(String configuration) throws Exception {
+        Properties properties = new Properties();
+        properties.load(new StringReader(configuration));
+        return new PostgisLayers(properties);
+    }
+
+    @Test
+    public void testLayers() throws Exception {
+        PostgisLayers layers = load("stores=geodata, other\n"
+                + "geodata.host=db\n"
+                + "geodata.database=geodata\n"
+                + "geodata.user=reader\n"
+                + "geodata.password=secret\n"
+                + "geodata.fetchSize=500\n"
+                + "geodata.layers=geor:roads, geor:buildings\n"
+                + "other.database=other\n"
+                + "other.layers=other:rivers\n");
+
+        assertTrue(layers.contains("geor:roads"));
+        assertTrue(layers.contains("geor:buildings"));
+        assertTrue(layers.contains("other:rivers"));
+        assertFalse(layers.contains("geor:rivers"));
+        assertNull(layers.getParameters("geor:rivers"));
+
+        Map<String, Serializable> params = layers.getParameters("geor:buildings");
+        assertEquals("postgis", params.get(JDBCDataStoreFactory.DBTYPE.key));
+        assertEquals("db", params.get(JDBCDataStoreFactory.HOST.key));
+        assertEquals(5432, params.get(JDBCDataStoreFactory.PORT.key));
+        assertEquals("geodata", params.get(JDBCDataStoreFactory.DATABASE.key));
+        assertEquals("public", params.get(JDBCDataStoreFactory.SCHEMA.key));
+        assertEquals("reader", params.get(JDBCDataStoreFactory.USER.key));
+        assertEquals("secret", params.get(JDBCDataStoreFactory.PASSWD.key));
+        assertEquals(500, params.get(JDBCDataStoreFactory.FETCHSIZE.key));
+
+        assertEquals("other", layers.getParameters("other:rivers").get(JDBCDataStoreFactory.DATABASE.key));
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+        PostgisLayers layers = load("geodata.layers=geor:roads\n");
+
+        assertFalse(layers.contains("geor:roads"));
+    }
+
+    @Test
+    public void testTableName() {
+        assertEquals("roads", PostgisLayers.tableName("geor:roads"));
+        assertEquals("roads", PostgisLayers.tableName("roads"));
+    }
+}
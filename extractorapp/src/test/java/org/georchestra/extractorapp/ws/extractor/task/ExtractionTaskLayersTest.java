@@ -0,0 +1,410 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.georchestra.extractorapp.ws.extractor.ExtractionArchive;
+import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
+import org.georchestra.extractorapp.ws.extractor.LayerCache;
+import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionTask.LayerOutcome;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the extraction of the layers of a task, the layers being extracted by
+ * fake extractors.
+ */
+public class ExtractionTaskLayersTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    /** failure file of the last extraction */
+    private File failureFile;
+    /** archived entries of the last extraction */
+    private List<String> entries;
+    /** outcomes of the last extraction */
+    private LayerOutcome[] outcomes;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the name of the layer instead of extracting it, and the name of
+     * the user as its metadata, if the user can read the catalog.
+     */
+    private static class TestTask extends ExtractionTask {
+
+        final AtomicInteger extractions = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        /** attempts of each layer */
+        final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<String, AtomicInteger>();
+        /** number of failing attempts of a layer before it is extracted */
+        final Map<String, Integer> failures = new HashMap<String, Integer>();
+        /** duration (ms) of the extraction of a layer */
+        final Map<String, Long> durations = new HashMap<String, Long>();
+        /** the extractions wait for it, if set */
+        CountDownLatch blocked;
+        private final boolean catalogAccess;
+
+        TestTask(String username, boolean catalogAccess, ExtractorLayerRequest... requests) throws Exception {
+            super(new RequestConfiguration(Arrays.asList(requests), UUID.randomUUID(), null, null, false, username,
+                    null, "psc", null, "localhost", "extraction-", 1000, true, false, null, null), null);
+            this.catalogAccess = catalogAccess;
+        }
+
+        @Override
+        protected void checkPermission(ExtractorLayerRequest request, File requestBaseDir) {
+        }
+
+        @Override
+        protected File extractLayerData(ExtractorLayerRequest request, File layerTmpDir) throws IOException {
+            String layerName = request._layerName;
+            this.attempts.putIfAbsent(layerName, new AtomicInteger());
+            int attempt = this.attempts.get(layerName).incrementAndGet();
+            int concurrent = this.running.incrementAndGet();
+            try {
+                while (concurrent > this.maxRunning.get()) {
+                    this.maxRunning.compareAndSet(this.maxRunning.get(), concurrent);
+                }
+                if (this.blocked != null) {
+                    this.blocked.await();
+                }
+                if (this.durations.containsKey(layerName)) {
+                    Thread.sleep(this.durations.get(layerName));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            } finally {
+                this.running.decrementAndGet();
+            }
+            Integer failing = this.failures.get(layerName);
+            if (failing != null && attempt <= failing) {
+                throw new IOException(layerName + " unavailable");
+            }
+
+            this.extractions.incrementAndGet();
+            File layerDir = request.createContainingDir(layerTmpDir);
+            layerDir.mkdirs();
+            write(new File(layerDir, "layer.shp"), request._layerName);
+            return layerDir;
+        }
+
+        @Override
+        protected void extractMetadata(ExtractorLayerRequest request, File layerDirectory) throws IOException {
+            if (this.catalogAccess) {
+                write(new File(layerDirectory, "metadata.xml"), getUsername());
+            } else {
+                write(new File(layerDirectory, "metadata_error.txt"), getUsername() + " can not read the metadata");
+            }
+        }
+    }
+
+    private static ExtractorLayerRequest request(String layerName) throws Exception {
+        JSONObject json = new JSONObject("{\"emails\":[\"test@example.com\"],"
+                + "\"globalProperties\":{\"projection\":\"EPSG:2154\",\"resolution\":0.5,\"rasterFormat\":\"geotiff\",\"vectorFormat\":\"shp\",\"bbox\":{\"srs\":\"EPSG:2154\",\"value\":[500000,6870000,800000,7110000]}},"
+                + "\"layers\":[{\"projection\":\"EPSG:2154\",\"resolution\":null,\"format\":\"shp\",\"bbox\":{\"srs\":\"EPSG:2154\",\"value\":[600000,6900000,610000,6910000]},"
+                + "\"owsUrl\":\"http://localhost/geoserver/wfs?\",\"owsType\":\"WFS\",\"layerName\":\"" + layerName + "\","
+                + "\"isoMetadataURL\":\"http://localhost/geonetwork/srv/eng/csw?SERVICE=CSW&REQUEST=GetRecordById&ID=" + layerName + "\"}]}");
+        return new ExtractorLayerRequest(json.getJSONArray("layers").getJSONObject(0),
+                json.getJSONObject("globalProperties"), json.getJSONArray("emails"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            content.write(buffer, 0, read);
+        }
+        return content.toString("UTF-8");
+    }
+
+    private static int count(String text, String searched) {
+        int count = 0;
+        for (int i = text.indexOf(searched); i != -1; i = text.indexOf(searched, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private File archiveFile() {
+        return new File(tempFolder.getRoot(), UUID.randomUUID() + ".zip");
+    }
+
+    /**
+     * @return the content of the archived files, by name
+     */
+    private Map<String, String> extract(ExtractionTask task) throws Exception {
+        File archiveFile = archiveFile();
+        return extract(task, new ExtractionArchive(archiveFile, "extraction"), archiveFile);
+    }
+
+    private Map<String, String> extract(ExtractionTask task, ExtractionArchive archive, File archiveFile)
+            throws Exception {
+        File tmpDir = tempFolder.newFolder();
+        failureFile = new File(tmpDir, "failures.txt");
+        outcomes = task.extractLayers(tmpDir, archive, failureFile);
+        archive.commit();
+
+        Map<String, String> files = new HashMap<String, String>();
+        entries = new ArrayList<String>();
+        ZipFile zip = new ZipFile(archiveFile);
+        try {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                InputStream in = zip.getInputStream(entry);
+                String content = read(in);
+                in.close();
+                String name = entry.getName();
+                entries.add(name);
+                files.put(name.substring(name.lastIndexOf('/') + 1), content);
+            }
+        } finally {
+            zip.close();
+        }
+        return files;
+    }
+
+    private LayerCache layerCache() {
+        LayerCache cache = new LayerCache();
+        cache.setDirectory(new File(tempFolder.getRoot(), "layercache"));
+        cache.setMaxSize(1);
+        cache.init();
+        return cache;
+    }
+
+    @Test
+    public void testCachedLayerMetadataReadByEachUser() throws Exception {
+        LayerCache cache = layerCache();
+
+        TestTask alice = new TestTask("alice", true, request("geor:roads"));
+        alice.setLayerCache(cache);
+        Map<String, String> files = extract(alice);
+        assertEquals(1, alice.extractions.get());
+        assertEquals("geor:roads", files.get("layer.shp"));
+        assertEquals("alice", files.get("metadata.xml"));
+
+        // the layer is reused, not the metadata of alice
+        TestTask bob = new TestTask("bob", false, request("geor:roads"));
+        bob.setLayerCache(cache);
+        files = extract(bob);
+        assertEquals(0, bob.extractions.get());
+        assertEquals("geor:roads", files.get("layer.shp"));
+        assertNull(files.get("metadata.xml"));
+        assertEquals("bob can not read the metadata", files.get("metadata_error.txt"));
+
+        // nor the metadata error of bob
+        TestTask carol = new TestTask("carol", true, request("geor:roads"));
+        carol.setLayerCache(cache);
+        files = extract(carol);
+        assertEquals(0, carol.extractions.get());
+        assertEquals("carol", files.get("metadata.xml"));
+        assertNull(files.get("metadata_error.txt"));
+        assertArrayEquals(new String[] { "layer.shp", "metadata.xml" }, sortedNames(files));
+    }
+
+    private static String[] sortedNames(Map<String, String> files) {
+        List<String> names = new ArrayList<String>(files.keySet());
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static ExtractorLayerRequest[] requests(String... layerNames) throws Exception {
+        ExtractorLayerRequest[] requests = new ExtractorLayerRequest[layerNames.length];
+        for (int i = 0; i < layerNames.length; i++) {
+            requests[i] = request(layerNames[i]);
+        }
+        return requests;
+    }
+
+    @Test
+    public void testOutcomesInRequestOrder() throws Exception {
+        TestTask task = new TestTask("alice", true, requests("l0", "l1", "l2", "l3", "l4", "l5"));
+        // the first layers are the longest to extract
+        for (int i = 0; i < 6; i++) {
+            task.durations.put("l" + i, (6L - i) * 50);
+        }
+        task.failures.put("l1", Integer.MAX_VALUE);
+        task.failures.put("l4", Integer.MAX_VALUE);
+        executor = Executors.newFixedThreadPool(3);
+        task.setLayerExecutor(executor, 3);
+
+        extract(task);
+        assertArrayEquals(new LayerOutcome[] { LayerOutcome.SUCCESS, LayerOutcome.FAILURE, LayerOutcome.SUCCESS,
+                LayerOutcome.SUCCESS, LayerOutcome.FAILURE, LayerOutcome.SUCCESS }, outcomes);
+        assertEquals(4, task.extractions.get());
+    }
+
+    @Test
+    public void testRetriedUntilExtracted() throws Exception {
+        TestTask task = new TestTask("alice", true, request("geor:roads"));
+        task.failures.put("geor:roads", ExtractionTask.EXTRACTION_ATTEMPTS - 1);
+
+        Map<String, String> files = extract(task);
+        assertArrayEquals(new LayerOutcome[] { LayerOutcome.SUCCESS }, outcomes);
+        assertEquals(ExtractionTask.EXTRACTION_ATTEMPTS, task.attempts.get("geor:roads").get());
+        assertEquals("geor:roads", files.get("layer.shp"));
+        // the failed attempts left nothing in the archive
+        assertEquals(2, entries.size());
+        assertFalse(failureFile.exists());
+    }
+
+    @Test
+    public void testFailuresReportedOnceByConcurrentWorkers() throws Exception {
+        TestTask task = new TestTask("alice", true, requests("l0", "l1", "l2", "l3"));
+        task.failures.put("l1", Integer.MAX_VALUE);
+        task.failures.put("l2", Integer.MAX_VALUE);
+        executor = Executors.newFixedThreadPool(4);
+        task.setLayerExecutor(executor, 4);
+
+        extract(task);
+        assertArrayEquals(new LayerOutcome[] { LayerOutcome.SUCCESS, LayerOutcome.FAILURE, LayerOutcome.FAILURE,
+                LayerOutcome.SUCCESS }, outcomes);
+        assertEquals(ExtractionTask.EXTRACTION_ATTEMPTS, task.attempts.get("l1").get());
+        assertEquals(ExtractionTask.EXTRACTION_ATTEMPTS, task.attempts.get("l2").get());
+
+        String failures = read(failureFile);
+        assertEquals(1, count(failures, "There were errors during the extraction process"));
+        assertEquals(1, count(failures, "Error accessing layer: l1 "));
+        assertEquals(1, count(failures, "Error accessing layer: l2 "));
+        assertEquals(0, count(failures, "Error accessing layer: l0 "));
+    }
+
+    @Test
+    public void testMaxParallelLayers() throws Exception {
+        TestTask task = new TestTask("alice", true, requests("l0", "l1", "l2", "l3", "l4", "l5"));
+        for (int i = 0; i < 6; i++) {
+            task.durations.put("l" + i, 100L);
+        }
+        executor = Executors.newFixedThreadPool(8);
+        task.setLayerExecutor(executor, 2);
+
+        extract(task);
+        assertEquals(6, task.extractions.get());
+        assertEquals(2, task.maxRunning.get());
+    }
+
+    @Test
+    public void testInterrupted() throws Exception {
+        final TestTask task = new TestTask("alice", true, requests("l0", "l1"));
+        task.blocked = new CountDownLatch(1);
+        executor = Executors.newFixedThreadPool(2);
+        task.setLayerExecutor(executor, 2);
+
+        final File tmpDir = tempFolder.newFolder();
+        final ExtractionArchive archive = new ExtractionArchive(archiveFile(), "extraction");
+        final AtomicReference<LayerOutcome[]> result = new AtomicReference<LayerOutcome[]>(new LayerOutcome[0]);
+        Thread extraction = new Thread() {
+            @Override
+            public void run() {
+                result.set(task.extractLayers(tmpDir, archive, new File(tmpDir, "failures.txt")));
+            }
+        };
+        extraction.start();
+        while (task.running.get() < 2) {
+            Thread.sleep(10);
+        }
+        extraction.interrupt();
+        extraction.join(5000);
+
+        assertFalse(extraction.isAlive());
+        assertNull(result.get());
+    }
+
+    @Test
+    public void testInterruptedSequentially() throws Exception {
+        TestTask task = new TestTask("alice", true, requests("l0", "l1"));
+        File tmpDir = tempFolder.newFolder();
+        ExtractionArchive archive = new ExtractionArchive(archiveFile(), "extraction");
+
+        Thread.currentThread().interrupt();
+        try {
+            assertNull(task.extractLayers(tmpDir, archive, new File(tmpDir, "failures.txt")));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, task.extractions.get());
+    }
+
+    @Test
+    public void testArchiveFailureNotRetried() throws Exception {
+        TestTask task = new TestTask("alice", true, request("geor:roads"));
+        File archiveFile = archiveFile();
+        // the first layer is partially archived
+        ExtractionArchive archive = new ExtractionArchive(archiveFile, "extraction") {
+            private boolean failed = false;
+
+            @Override
+            public synchronized void addContent(File dir) throws IOException {
+                if (failed) {
+                    super.addContent(dir);
+                    return;
+                }
+                failed = true;
+                addFile(dir.listFiles()[0]);
+                throw new IOException("No space left on device");
+            }
+        };
+
+        extract(task, archive, archiveFile);
+        assertArrayEquals(new LayerOutcome[] { LayerOutcome.FAILURE }, outcomes);
+        assertEquals(1, task.attempts.get("geor:roads").get());
+        assertEquals(1, entries.size());
+        assertEquals(1, count(read(failureFile), "Error accessing layer: geor:roads "));
+    }
+}
@@ -0,0 +1,258 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
+import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
+import org.junit.Test;
+
+public class FairShareQueueTest {
+
+    private static Runnable task(String user, String org) throws Exception {
+        RequestConfiguration config = new RequestConfiguration(new ArrayList<ExtractorLayerRequest>(),
+                UUID.randomUUID(), null, null, true, user, null, org, null, "localhost", "extraction-", 1000, true,
+                false, null, null);
+        return new PriorityThreadPoolExecutor.ComparableFutureTask<Object>(new ExtractionTask(config, null), null);
+    }
+
+    private static ExtractionTask extractionTask(Runnable r) {
+        return (ExtractionTask) ((PriorityThreadPoolExecutor.ComparableFutureTask<?>) r).comparable;
+    }
+
+    private static FairShareQueue queue(int maxRunningPerUser) {
+        return new FairShareQueue(maxRunningPerUser, Collections.<String, Double> emptyMap());
+    }
+
+    @Test
+    public void testUsersAlternate() throws Exception {
+        FairShareQueue queue = queue(0);
+        Runnable alice1 = task("alice", "org1");
+        Runnable alice2 = task("alice", "org1");
+        Runnable alice3 = task("alice", "org1");
+        Runnable bob1 = task("bob", "org1");
+        queue.offer(alice1);
+        queue.offer(alice2);
+        queue.offer(alice3);
+        queue.offer(bob1);
+
+        assertSame(alice1, queue.poll());
+        assertSame(bob1, queue.poll());
+        assertSame(alice2, queue.poll());
+        assertSame(alice3, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testOrganizationsAlternate() throws Exception {
+        FairShareQueue queue = queue(0);
+        Runnable alice = task("alice", "org1");
+        Runnable bob = task("bob", "org1");
+        Runnable carol = task("carol", "org2");
+        queue.offer(alice);
+        queue.offer(bob);
+        queue.offer(carol);
+
+        assertSame(alice, queue.poll());
+        assertSame(carol, queue.poll());
+        assertSame(bob, queue.poll());
+    }
+
+    @Test
+    public void testOrganizationWeight() throws Exception {
+        FairShareQueue queue = new FairShareQueue(0, FairShareQueue.parseWeights("org1:3, org2:1"));
+        Runnable org1a = task("alice", "org1");
+        Runnable org1b = task("alice", "org1");
+        Runnable org1c = task("alice", "org1");
+        Runnable org2a = task("carol", "org2");
+        Runnable org2b = task("carol", "org2");
+        queue.offer(org1a);
+        queue.offer(org1b);
+        queue.offer(org1c);
+        queue.offer(org2a);
+        queue.offer(org2b);
+
+        // org1 is served three times as much as org2
+        assertSame(org1a, queue.poll());
+        assertSame(org2a, queue.poll());
+        assertSame(org1b, queue.poll());
+        assertSame(org1c, queue.poll());
+        assertSame(org2b, queue.poll());
+    }
+
+    @Test
+    public void testPriorityFirst() throws Exception {
+        FairShareQueue queue = queue(0);
+        Runnable alice = task("alice", "org1");
+        Runnable bob = task("bob", "org1");
+        extractionTask(bob).executionMetadata.setPriority(ExecutionPriority.HIGH);
+        queue.offer(alice);
+        queue.offer(bob);
+
+        assertSame(bob, queue.poll());
+        assertSame(alice, queue.poll());
+    }
+
+    @Test
+    public void testReprioritize() throws Exception {
+        FairShareQueue queue = queue(0);
+        Runnable alice1 = task("alice", "org1");
+        Runnable alice2 = task("alice", "org1");
+        Runnable bob = task("bob", "org2");
+        queue.offer(alice1);
+        queue.offer(alice2);
+        queue.offer(bob);
+
+        extractionTask(alice2).executionMetadata.setPriority(ExecutionPriority.HIGH);
+        assertTrue(queue.reprioritize(alice2));
+
+        assertSame(alice2, queue.poll());
+        assertSame(bob, queue.poll());
+        assertSame(alice1, queue.poll());
+        // not waiting anymore
+        assertFalse(queue.reprioritize(alice1));
+    }
+
+    @Test
+    public void testRequeue() throws Exception {
+        FairShareQueue queue = queue(0);
+        Runnable alice1 = task("alice", "org1");
+        Runnable alice2 = task("alice", "org1");
+        queue.offer(alice1);
+        queue.offer(alice2);
+
+        assertTrue(queue.requeue(alice1));
+
+        assertSame(alice2, queue.poll());
+        assertSame(alice1, queue.poll());
+    }
+
+    @Test
+    public void testMaxRunningPerUser() throws Exception {
+        FairShareQueue queue = queue(1);
+        Runnable alice1 = task("alice", "org1");
+        Runnable alice2 = task("alice", "org1");
+        queue.offer(alice1);
+        queue.offer(alice2);
+
+        assertSame(alice1, queue.poll());
+        // alice already runs a task
+        assertNull(queue.poll());
+        assertEquals(1, queue.size());
+
+        queue.finished(alice1);
+        assertSame(alice2, queue.poll());
+    }
+
+    @Test
+    public void testFinishedWakesUpTake() throws Exception {
+        final FairShareQueue queue = queue(1);
+        final Runnable alice1 = task("alice", "org1");
+        Runnable alice2 = task("alice", "org1");
+        queue.offer(alice1);
+        queue.offer(alice2);
+        assertSame(alice1, queue.take());
+
+        Thread finisher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.finished(alice1);
+            }
+        };
+        finisher.start();
+        assertSame(alice2, queue.take());
+        finisher.join();
+    }
+
+    @Test
+    public void testColdPool() throws Exception {
+        FairShareQueue queue = queue(1);
+        PriorityThreadPoolExecutor executor = new PriorityThreadPoolExecutor(2, 2, 5, TimeUnit.SECONDS, queue);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 3; i++) {
+                RequestConfiguration config = new RequestConfiguration(new ArrayList<ExtractorLayerRequest>(),
+                        UUID.randomUUID(), null, null, true, "alice", null, "org1", null, "localhost", "extraction-",
+                        1000, true, false, null, null);
+                futures.add(executor.submit(new ExtractionTask(config, null) {
+                    @Override
+                    public void run() {
+                        int n = running.incrementAndGet();
+                        synchronized (maxRunning) {
+                            maxRunning.set(Math.max(maxRunning.get(), n));
+                        }
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                    }
+                }));
+            }
+            // the tasks submitted before the core threads are started go
+            // through the queue as well
+            assertEquals(3, queue.getStatistics().getDispatched() + queue.size());
+            for (int i = 0; i < 500 && running.get() == 0; i++) {
+                Thread.sleep(10);
+            }
+            // only one of alice's tasks is taken
+            assertEquals(1, running.get());
+            assertEquals(2, queue.size());
+
+            release.countDown();
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(1, maxRunning.get());
+            assertEquals(3, queue.getStatistics().getDispatched());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRemoveAndStatistics() throws Exception {
+        FairShareQueue queue = queue(0);
+        Runnable alice1 = task("alice", "org1");
+        Runnable alice2 = task("alice", "org1");
+        Runnable bob = task("bob", null);
+        queue.offer(alice1);
+        queue.offer(alice2);
+        queue.offer(bob);
+
+        assertTrue(queue.remove(alice1));
+        assertEquals(2, queue.size());
+        Map<String, Integer> waiting = queue.getStatistics().getWaitingPerUser();
+        assertEquals(Integer.valueOf(1), waiting.get("alice"));
+        assertEquals(Integer.valueOf(1), waiting.get("bob"));
+
+        queue.poll();
+        queue.poll();
+        FairShareQueue.Statistics stats = queue.getStatistics();
+        assertEquals(2, stats.getDispatched());
+        assertTrue(stats.getWaitingPerUser().isEmpty());
+        assertTrue(stats.getMaxWait() >= stats.getMeanWait());
+    }
+}
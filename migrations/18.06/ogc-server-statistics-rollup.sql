@@ -0,0 +1,30 @@
+BEGIN;
+
+SET search_path TO ogcstatistics,public,pg_catalog;
+
+CREATE TABLE ogc_services_log_daily(
+  day date NOT NULL,
+  user_name character varying(255) NOT NULL DEFAULT '',
+  org character varying(255) NOT NULL DEFAULT '',
+  service character varying(5) NOT NULL DEFAULT '',
+  layer character varying(255) NOT NULL DEFAULT '',
+  request character varying(20) NOT NULL DEFAULT '',
+  -- the NULL columns of the logs (user_name 1, org 2, service 4, layer 8,
+  -- request 16), which hold '' in this table
+  null_columns smallint NOT NULL DEFAULT 0,
+  connections bigint NOT NULL DEFAULT 0,
+  PRIMARY KEY (day, layer, user_name, org, service, request, null_columns)
+);
+
+-- Fills the daily rollup from the existing logs (this may take a while on
+-- large databases, the security-proxy should be stopped meanwhile)
+INSERT INTO ogc_services_log_daily(day, user_name, org, service, layer, request, null_columns, connections)
+  SELECT date::date, coalesce(user_name, ''), coalesce(org, ''), coalesce(service, ''), coalesce(layer, ''), coalesce(request, ''),
+    (CASE WHEN user_name IS NULL THEN 1 ELSE 0 END) + (CASE WHEN org IS NULL THEN 2 ELSE 0 END)
+      + (CASE WHEN service IS NULL THEN 4 ELSE 0 END) + (CASE WHEN layer IS NULL THEN 8 ELSE 0 END)
+      + (CASE WHEN request IS NULL THEN 16 ELSE 0 END),
+    count(*)
+  FROM ogc_services_log
+  GROUP BY 1, 2, 3, 4, 5, 6, 7;
+
+COMMIT;
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.calculations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.georchestra.ogcservstatistics.log4j.OGCServiceParser;
+
+/**
+ * This Singleton maintains approximate counts of the most consulted layers,
+ * and of the most active users and organizations, over a sliding time window.
+ * <p>
+ * The counts are fed by the OGCServicesAppender as the logs are parsed, and
+ * kept in memory only: they are meant for live dashboards, the exact counts
+ * being the ones of the database.
+ * </p>
+ * <p>
+ * The window is divided in {@link #BUCKETS} buckets, each one holding a
+ * {@link SpaceSaving} summary. The buckets older than the window are recycled,
+ * and the most frequent keys are obtained by merging the summaries of the
+ * current ones. As a result, the counts cover between
+ * <code>(BUCKETS - 1) / BUCKETS</code> of the window and the whole window.
+ * </p>
+ *
+ * @see OGCServiceStatistics#retrieveLiveMostConsultedLayers(int)
+ */
+public final class LiveStatistics {
+
+	public final static String CONNECTIONS_COLUMN = "connections";
+	/** maximum difference between the connections and the exact count */
+	public final static String ERROR_COLUMN = "error";
+
+	static final int BUCKETS = 12;
+
+	private static final LiveStatistics THIS = new LiveStatistics();
+
+	private volatile Window layers;
+	private volatile Window users;
+	private volatile Window orgs;
+
+	LiveStatistics() {
+
+	}
+
+	public static LiveStatistics getInstance() {
+
+		return THIS;
+	}
+
+	/**
+	 * Resets the counts.
+	 *
+	 * @param windowMillis duration of the window, 0 to disable the counts
+	 * @param capacity number of keys monitored per bucket, the counts are
+	 *            accurate for the keys more frequent than 1 / capacity
+	 */
+	public synchronized void configure(long windowMillis, int capacity) {
+
+		if (windowMillis <= 0) {
+			this.layers = null;
+			this.users = null;
+			this.orgs = null;
+			return;
+		}
+		long bucketMillis = Math.max(1, windowMillis / BUCKETS);
+		this.layers = new Window(bucketMillis, capacity);
+		this.users = new Window(bucketMillis, capacity);
+		this.orgs = new Window(bucketMillis, capacity);
+	}
+
+	public boolean isEnabled() {
+
+		return this.layers != null;
+	}
+
+	/**
+	 * Counts the logs, as built by the {@link OGCServiceParser}. The empty
+	 * layer, user and org names are not counted.
+	 */
+	public void add(final List<Map<String, Object>> logs) {
+
+		add(logs, System.currentTimeMillis());
+	}
+
+	void add(final List<Map<String, Object>> logs, final long now) {
+
+		Window layers = this.layers;
+		Window users = this.users;
+		Window orgs = this.orgs;
+		if (layers == null || users == null || orgs == null) {
+			return;
+		}
+		for (Map<String, Object> log : logs) {
+			Date date = (Date) log.get(OGCServiceParser.DATE_COLUMN);
+			long time = (date == null) ? now : date.getTime();
+			layers.add((String) log.get(OGCServiceParser.LAYER_COLUMN), time, now);
+			users.add((String) log.get(OGCServiceParser.USER_COLUMN), time, now);
+			orgs.add((String) log.get(OGCServiceParser.ORG_COLUMN), time, now);
+		}
+	}
+
+	/**
+	 * @return the most consulted layers, with their approximate connections
+	 */
+	public List<Map<String, Object>> mostConsultedLayers(final int limit) {
+
+		return mostConsultedLayers(limit, System.currentTimeMillis());
+	}
+
+	List<Map<String, Object>> mostConsultedLayers(final int limit, final long now) {
+
+		return top(this.layers, OGCServiceParser.LAYER_COLUMN, limit, now);
+	}
+
+	/**
+	 * @return the most active users, with their approximate connections
+	 */
+	public List<Map<String, Object>> mostActiveUsers(final int limit) {
+
+		return mostActiveUsers(limit, System.currentTimeMillis());
+	}
+
+	List<Map<String, Object>> mostActiveUsers(final int limit, final long now) {
+
+		return top(this.users, OGCServiceParser.USER_COLUMN, limit, now);
+	}
+
+	/**
+	 * @return the most active organizations, with their approximate
+	 *         connections
+	 */
+	public List<Map<String, Object>> mostActiveOrgs(final int limit) {
+
+		return mostActiveOrgs(limit, System.currentTimeMillis());
+	}
+
+	List<Map<String, Object>> mostActiveOrgs(final int limit, final long now) {
+
+		return top(this.orgs, OGCServiceParser.ORG_COLUMN, limit, now);
+	}
+
+	private static List<Map<String, Object>> top(final Window window, final String column, final int limit, final long now) {
+
+		if (window == null) {
+			return Collections.emptyList();
+		}
+		List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(window.merge(now).entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+			@Override
+			public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+				long c1 = e1.getValue()[0];
+				long c2 = e2.getValue()[0];
+				if (c1 != c2) {
+					return (c1 > c2) ? -1 : 1;
+				}
+				return e1.getKey().compareTo(e2.getKey());
+			}
+		});
+
+		int size = Math.min(limit, entries.size());
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>(size);
+		for (Map.Entry<String, long[]> entry : entries.subList(0, size)) {
+			Map<String, Object> row = new HashMap<String, Object>(4);
+			row.put(column, entry.getKey());
+			row.put(CONNECTIONS_COLUMN, entry.getValue()[0]);
+			row.put(ERROR_COLUMN, entry.getValue()[1]);
+			result.add(row);
+		}
+		return result;
+	}
+
+	/**
+	 * Ring of summaries, one per bucket of the sliding window.
+	 */
+	private static final class Window {
+
+		private final long bucketMillis;
+		private final SpaceSaving[] summaries = new SpaceSaving[BUCKETS];
+		private final long[] bucketIds = new long[BUCKETS];
+
+		Window(long bucketMillis, int capacity) {
+
+			this.bucketMillis = bucketMillis;
+			for (int i = 0; i < BUCKETS; i++) {
+				this.summaries[i] = new SpaceSaving(capacity);
+				this.bucketIds[i] = -1;
+			}
+		}
+
+		synchronized void add(String key, long time, long now) {
+
+			if (key == null || key.length() == 0) {
+				return;
+			}
+			long current = now / this.bucketMillis;
+			// logs dated in the future (clock adjustments) are counted in
+			// the current bucket
+			long bucketId = Math.min(time / this.bucketMillis, current);
+			if (bucketId <= current - BUCKETS) {
+				return;
+			}
+			int slot = (int) (bucketId % BUCKETS);
+			if (this.bucketIds[slot] != bucketId) {
+				this.summaries[slot].clear();
+				this.bucketIds[slot] = bucketId;
+			}
+			this.summaries[slot].add(key);
+		}
+
+		/**
+		 * A key which is not monitored by a full bucket is counted 0 there,
+		 * while it may have been counted up to the least count of the bucket
+		 * before being replaced: this count is added to its error.
+		 *
+		 * @return key to {count, error}, for the buckets of the window ending now
+		 */
+		synchronized Map<String, long[]> merge(long now) {
+
+			long current = now / this.bucketMillis;
+			Map<String, long[]> merged = new HashMap<String, long[]>();
+			for (int i = 0; i < BUCKETS; i++) {
+				if (isCurrent(i, current)) {
+					this.summaries[i].addTo(merged);
+				}
+			}
+			for (int i = 0; i < BUCKETS; i++) {
+				long unmonitored = this.summaries[i].unmonitoredCount();
+				if (unmonitored == 0 || !isCurrent(i, current)) {
+					continue;
+				}
+				for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+					if (!this.summaries[i].contains(entry.getKey())) {
+						entry.getValue()[1] += unmonitored;
+					}
+				}
+			}
+			return merged;
+		}
+
+		private boolean isCurrent(int slot, long current) {
+
+			return this.bucketIds[slot] > current - BUCKETS && this.bucketIds[slot] <= current;
+		}
+	}
+}
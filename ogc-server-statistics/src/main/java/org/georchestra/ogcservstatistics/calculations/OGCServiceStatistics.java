@@ -19,6 +19,8 @@
 
 package org.georchestra.ogcservstatistics.calculations;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 
@@ -269,6 +271,63 @@ public final class OGCServiceStatistics {
 		return execute(cmd);
 	}
 
+	/**
+	 * Retrieves the most consulted layers during the live statistics window
+	 * (see the liveWindow appender option). The counts are approximate, and
+	 * read from memory.
+	 * 
+	 * @param limit maximum number of layers
+	 * 
+	 * @return List of (layer, connections, error), error being the maximum
+	 *         difference between connections and the exact count
+	 * 
+	 * @throws IllegalArgumentException
+	 */
+	public static List<Map<String, Object>> retrieveLiveMostConsultedLayers(final int limit) 
+			throws IllegalArgumentException {
+
+		checkLimit(limit);
+		return LiveStatistics.getInstance().mostConsultedLayers(limit);
+	}
+
+	/**
+	 * Retrieves the most active users during the live statistics window.
+	 * 
+	 * @param limit maximum number of users
+	 * 
+	 * @return List of (user_name, connections, error)
+	 * 
+	 * @throws IllegalArgumentException
+	 */
+	public static List<Map<String, Object>> retrieveLiveMostActiveUsers(final int limit) 
+			throws IllegalArgumentException {
+
+		checkLimit(limit);
+		return LiveStatistics.getInstance().mostActiveUsers(limit);
+	}
+
+	/**
+	 * Retrieves the most active organizations during the live statistics window.
+	 * 
+	 * @param limit maximum number of organizations
+	 * 
+	 * @return List of (org, connections, error)
+	 * 
+	 * @throws IllegalArgumentException
+	 */
+	public static List<Map<String, Object>> retrieveLiveMostActiveOrgs(final int limit) 
+			throws IllegalArgumentException {
+
+		checkLimit(limit);
+		return LiveStatistics.getInstance().mostActiveOrgs(limit);
+	}
+
+	private static void checkLimit(final int limit) throws IllegalArgumentException {
+		if(limit < 1){
+			throw new IllegalArgumentException("limit must be greater than 0");
+		}
+	}
+
 	/**
 	 * Executes the specified QueryCommand
 	 * 
@@ -353,8 +412,11 @@ public final class OGCServiceStatistics {
 	 */
 	private static List<Map<String, Object>> execute(QueryCommand cmd) 
 			throws OGCServStatisticsException{
+		Connection connection = null;
 		try {
-			cmd.setConnection(dsConfiguration.getConnection());
+			connection = dsConfiguration.getConnection();
+			cmd.setConnection(connection);
+			cmd.setRollup(dsConfiguration.isRollupEnabled());
 
 			cmd.execute();
 
@@ -364,6 +426,15 @@ public final class OGCServiceStatistics {
 			
 		} catch (Exception e) {
 			throw new OGCServStatisticsException(e);
+		} finally {
+			// gives the connection back to the pool
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					throw new OGCServStatisticsException(e);
+				}
+			}
 		}
 		
 	}
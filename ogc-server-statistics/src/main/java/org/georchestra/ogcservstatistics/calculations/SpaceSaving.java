@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.ogcservstatistics.calculations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving summary: counts the most frequent keys of a stream using a
+ * fixed number of counters.
+ * <p>
+ * When all the counters are taken, a new key replaces the least counted one
+ * and inherits its count, which is recorded as the error of the new counter.
+ * The count of a key is thus overestimated by at most its error, and any key
+ * more frequent than <code>total / capacity</code> is monitored.
+ * </p>
+ * <p>
+ * The counters are kept in a min-heap indexed by key, so that each update
+ * costs O(log capacity). This class is not thread safe.
+ * </p>
+ *
+ * @see <a href="https://doi.org/10.1007/978-3-540-30570-5_27">Metwally, Agrawal,
+ *      El Abbadi: Efficient Computation of Frequent and Top-k Elements in Data
+ *      Streams</a>
+ */
+final class SpaceSaving {
+
+	private final String[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	private final Map<String, Integer> positions;
+	private int size = 0;
+
+	SpaceSaving(int capacity) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be greater than 0");
+		}
+		this.keys = new String[capacity];
+		this.counts = new long[capacity];
+		this.errors = new long[capacity];
+		this.positions = new HashMap<String, Integer>(capacity * 2);
+	}
+
+	void add(String key) {
+
+		Integer position = this.positions.get(key);
+		if (position != null) {
+			this.counts[position]++;
+			siftDown(position);
+		} else if (this.size < this.keys.length) {
+			set(this.size, key, 1, 0);
+			siftUp(this.size++);
+		} else {
+			// replaces the least counted key
+			long min = this.counts[0];
+			this.positions.remove(this.keys[0]);
+			set(0, key, min + 1, min);
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * Adds the counts and errors of the monitored keys to the ones of the map.
+	 *
+	 * @param merged key to {count, error}
+	 */
+	void addTo(Map<String, long[]> merged) {
+
+		for (int i = 0; i < this.size; i++) {
+			long[] value = merged.get(this.keys[i]);
+			if (value == null) {
+				merged.put(this.keys[i], new long[] { this.counts[i], this.errors[i] });
+			} else {
+				value[0] += this.counts[i];
+				value[1] += this.errors[i];
+			}
+		}
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	boolean contains(String key) {
+		return this.positions.containsKey(key);
+	}
+
+	/**
+	 * @return the maximum count of the keys which are not monitored: the least
+	 *         count if all the counters are taken, 0 otherwise
+	 */
+	long unmonitoredCount() {
+		return (this.size < this.keys.length) ? 0 : this.counts[0];
+	}
+
+	void clear() {
+
+		for (int i = 0; i < this.size; i++) {
+			this.keys[i] = null;
+		}
+		this.positions.clear();
+		this.size = 0;
+	}
+
+	private void set(int position, String key, long count, long error) {
+
+		this.keys[position] = key;
+		this.counts[position] = count;
+		this.errors[position] = error;
+		this.positions.put(key, position);
+	}
+
+	private void siftUp(int position) {
+
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (this.counts[parent] <= this.counts[position]) {
+				return;
+			}
+			swap(position, parent);
+			position = parent;
+		}
+	}
+
+	private void siftDown(int position) {
+
+		while (true) {
+			int smallest = position;
+			int left = 2 * position + 1;
+			int right = left + 1;
+			if (left < this.size && this.counts[left] < this.counts[smallest]) {
+				smallest = left;
+			}
+			if (right < this.size && this.counts[right] < this.counts[smallest]) {
+				smallest = right;
+			}
+			if (smallest == position) {
+				return;
+			}
+			swap(position, smallest);
+			position = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+
+		String key = this.keys[i];
+		long count = this.counts[i];
+		long error = this.errors[i];
+		set(i, this.keys[j], this.counts[j], this.errors[j]);
+		set(j, key, count, error);
+	}
+}
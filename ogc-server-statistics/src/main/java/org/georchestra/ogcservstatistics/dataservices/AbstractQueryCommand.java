@@ -22,10 +22,14 @@ package org.georchestra.ogcservstatistics.dataservices;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import org.georchestra.ogcservstatistics.log4j.OGCServiceParser;
+
 /**
  * Maintains the abstract behavior required to execute a SQL query. 
  * The subclass must implement the methods:
@@ -33,16 +37,34 @@ import java.util.Map;
  * prepareStatement() 
  * getRow()
  * </pre>
+ * <p>
+ * The commands counting the logs per year or month may read them from the daily
+ * rollup table instead of the raw logs, see {@link #countExpression(String)}
+ * and {@link #appendFromWhereClause(StringBuilder)}.
+ * </p>
  * 
  * @author Mauricio Pazos
  */
 public abstract class AbstractQueryCommand extends AbstractDataCommand implements QueryCommand {
 
+	/** logs counted per day, see InsertCommand */
+	static final String ROLLUP_TABLE = "ogcstatistics.ogc_services_log_daily";
+
+	/**
+	 * Rollup columns, which hold '' if the log column is NULL. The bit
+	 * (1 &lt;&lt; index) of null_columns is then set.
+	 */
+	static final String[] ROLLUP_COLUMNS = { OGCServiceParser.USER_COLUMN, OGCServiceParser.ORG_COLUMN,
+			OGCServiceParser.SERVICE_COLUMN, OGCServiceParser.LAYER_COLUMN, OGCServiceParser.REQUEST_COLUMN };
+
+	private static final String LOG_TABLE = "ogcstatistics.OGC_SERVICES_LOG";
+
 	private LinkedList<Map<String,Object>> resultList;
 	
 	protected int year = -1;
 	protected int month = -1;
 	protected int limit = -1;
+	protected boolean rollup = false;
 	
 	
 	@Override
@@ -64,6 +86,92 @@ public abstract class AbstractQueryCommand extends AbstractDataCommand implement
 		
 		this.limit = limit;
 	}
+
+	@Override
+	public void setRollup(boolean rollup){
+		
+		this.rollup = rollup;
+	}
+
+	/**
+	 * As count(column) on the raw logs, the rollup rows whose column is NULL
+	 * are not counted.
+	 * 
+	 * @param column column which is counted in the raw logs
+	 * 
+	 * @return the sql expression counting the logs
+	 */
+	protected String countExpression(final String column){
+
+		return this.rollup
+				? "sum(CASE WHEN " + column + " IS NULL THEN 0 ELSE connections END)::bigint"
+				: "count(" + column + ")";
+	}
+
+	/**
+	 * Appends the FROM and WHERE clauses selecting the logs of the year, and of
+	 * the month if one is specified. The parameters are set by
+	 * {@link #setPeriodParameters(PreparedStatement)}.
+	 * <p>
+	 * The rollup table is filtered on its day range first, so that its primary
+	 * key index is used. The ISO year is still checked, as the raw log query
+	 * does. The columns flagged in null_columns are read back as NULL, so that
+	 * they are grouped and counted as in the raw logs.
+	 * </p>
+	 */
+	protected void appendFromWhereClause(final StringBuilder sql){
+
+		if(this.rollup){
+			sql.append(" FROM (SELECT day");
+			for (int i = 0; i < ROLLUP_COLUMNS.length; i++) {
+				sql.append(", CASE WHEN null_columns & ").append(1 << i).append(" = 0 THEN ")
+						.append(ROLLUP_COLUMNS[i]).append(" END AS ").append(ROLLUP_COLUMNS[i]);
+			}
+			sql.append(", connections FROM ").append(ROLLUP_TABLE);
+			sql.append(" WHERE day >= ? AND day < ?) AS log");
+			sql.append(" WHERE EXTRACT(ISOYEAR FROM day) = ?");
+			if(this.month > 0){
+				sql.append(" AND EXTRACT(MONTH FROM day) = ?");
+			}
+		} else {
+			sql.append(" FROM ").append(LOG_TABLE);
+			if(this.month > 0){
+				sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
+			} else {
+				sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
+			}
+		}
+	}
+
+	/**
+	 * Sets the parameters of the clause built by {@link #appendFromWhereClause(StringBuilder)}
+	 * 
+	 * @return the index of the next parameter
+	 */
+	protected int setPeriodParameters(final PreparedStatement pStmt) throws SQLException{
+
+		assert year > 0 :"year is expected";
+
+		int index = 1;
+		if(this.rollup){
+			// an ISO year starts at the earliest on December 29th of the
+			// previous year, and ends at the latest on January 3rd
+			pStmt.setDate(index++, date(this.year - 1, Calendar.DECEMBER, 28));
+			pStmt.setDate(index++, date(this.year + 1, Calendar.JANUARY, 5));
+		}
+		pStmt.setInt(index++, this.year);
+
+		//if the month was specified then set it in the statement
+		if(this.month > 0){
+			pStmt.setInt(index++, this.month);
+		}
+		return index;
+	}
+
+	private static java.sql.Date date(int year, int month, int day){
+		
+		return new java.sql.Date(new GregorianCalendar(year, month, day).getTimeInMillis());
+	}
 	
 
 	/**
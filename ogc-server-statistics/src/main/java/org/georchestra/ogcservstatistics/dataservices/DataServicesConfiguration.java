@@ -19,11 +19,21 @@
 
 package org.georchestra.ogcservstatistics.dataservices;
 
-import java.sql.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.TimeZone;
+
+import org.apache.commons.dbcp.BasicDataSource;
 
 /**
  * This Singleton maintains the configuration data required to access to the database where
  * the ogc services are logged.  
+ * <p>
+ * The connections are taken from a pool, so that the appender and the
+ * statistics queries do not share (and wait for) a single connection. The
+ * connections returned by {@link #getConnection()} must be closed by the
+ * caller, which gives them back to the pool.
+ * </p>
  * 
  * @author Mauricio Pazos
  *
@@ -32,10 +42,13 @@ public final class DataServicesConfiguration {
 
 	
 	private static final DataServicesConfiguration THIS = new DataServicesConfiguration();
-	private Connection connection;
+	private volatile BasicDataSource dataSource;
 	private String user;
 	private String password;
 	private String jdbcURL;
+	private int maxConnections = 8;
+	private volatile boolean rollupEnabled = false;
+	private volatile TimeZone timeZone = TimeZone.getDefault();
 	
 	private DataServicesConfiguration(){
 		
@@ -46,50 +59,120 @@ public final class DataServicesConfiguration {
 		return THIS;
 	}
 	
-	public void setJdbcURL(String jdbcURL) {
+	public synchronized void setJdbcURL(String jdbcURL) {
 		this.jdbcURL = jdbcURL;
+		resetDataSource();
 	}
 	
 
-	public void setUser(String user) {
+	public synchronized void setUser(String user) {
 
 		this.user = user;
+		resetDataSource();
 	}
 
-	public void setPassword(String password) {
+	public synchronized void setPassword(String password) {
 		
 		this.password = password;
+		resetDataSource();
+	}
+
+	/**
+	 * @param maxConnections maximum number of pooled connections
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+
+		this.maxConnections = maxConnections;
+		resetDataSource();
 	}
 
 
 	/**
-	 * The connection to database
+	 * @return true if the daily rollup table is maintained and queried
+	 */
+	public boolean isRollupEnabled() {
+
+		return rollupEnabled;
+	}
+
+	public void setRollupEnabled(boolean rollupEnabled) {
+
+		this.rollupEnabled = rollupEnabled;
+	}
+
+	/**
+	 * @return time zone of the dates written to the logs table, in which the
+	 *         logs are counted per day
+	 */
+	public TimeZone getTimeZone() {
+
+		return timeZone;
+	}
+
+	public void setTimeZone(TimeZone timeZone) {
+
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * A connection to database, which must be closed once used
 	 * 
 	 * @return {@link Connection}
 	 * @throws SQLException
 	 */
 	public Connection getConnection() throws SQLException, ClassNotFoundException {
 
-		Class.forName("org.postgresql.Driver");
-
-		if ((this.connection == null) || (this.connection.isClosed())) {
+		BasicDataSource ds = this.dataSource;
+		if (ds == null) {
 			synchronized (this) {
-				this.connection = DriverManager.getConnection(this.jdbcURL, this.user, this.password);
+				ds = this.dataSource;
+				if (ds == null) {
+					ds = createDataSource();
+					this.dataSource = ds;
+				}
 			}
 		}
 
-		return this.connection;
+		return ds.getConnection();
 	}
 
-	public void closeConnection() throws SQLException {
+	private BasicDataSource createDataSource() {
+
+		BasicDataSource ds = new BasicDataSource();
+		ds.setDriverClassName("org.postgresql.Driver");
+		ds.setUrl(this.jdbcURL);
+		ds.setUsername(this.user);
+		ds.setPassword(this.password);
+		ds.setMaxActive(this.maxConnections);
+		ds.setMaxIdle(this.maxConnections);
+		ds.setTestOnBorrow(true);
+		ds.setValidationQuery("SELECT 1");
+		ds.setDefaultAutoCommit(true);
+		return ds;
+	}
 
-		if (this.connection != null) {
-			synchronized (this) {
-				if (!this.connection.isClosed()) {
-					this.connection.close();
-				}
-				this.connection = null;
-			}
+	/**
+	 * Closes the pool, the next connection request will create a new one
+	 * with the current settings.
+	 */
+	private void resetDataSource() {
+
+		try {
+			closeConnection();
+		} catch (SQLException e) {
+			// the pooled connections are dropped anyway
+		}
+	}
+
+	/**
+	 * Closes all the pooled connections
+	 */
+	public synchronized void closeConnection() throws SQLException {
+
+		BasicDataSource ds = this.dataSource;
+		this.dataSource = null;
+		if (ds != null) {
+			ds.close();
 		}
 	}
 
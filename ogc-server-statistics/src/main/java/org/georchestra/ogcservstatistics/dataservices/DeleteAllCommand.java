@@ -23,7 +23,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 
 /**
- * WARNING Removes all logs from the table ogc_services_log
+ * WARNING Removes all logs from the table ogc_services_log, and from its
+ * daily rollup if it is enabled
  * 
  * @author Mauricio Pazos
  *
@@ -43,6 +44,9 @@ final public class DeleteAllCommand extends AbstractDataCommand {
         try {
 			pStmt = this.connection.createStatement();
 			pStmt.execute("DELETE FROM ogcstatistics.OGC_SERVICES_LOG");
+			if (DataServicesConfiguration.getInstance().isRollupEnabled()) {
+				pStmt.execute("DELETE FROM " + AbstractQueryCommand.ROLLUP_TABLE);
+			}
 			
 		} catch (SQLException e) {
 			e.printStackTrace();
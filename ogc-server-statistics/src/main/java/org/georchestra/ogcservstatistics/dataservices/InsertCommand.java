@@ -21,13 +21,26 @@ package org.georchestra.ogcservstatistics.dataservices;
 
 import org.georchestra.ogcservstatistics.log4j.OGCServiceParser;
 
-import java.sql.Array;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
 
 /**
- * Insert an ogc service log
+ * Insert ogc service logs. Several logs are sent to the database as a single
+ * JDBC batch, in one transaction.
+ * <p>
+ * If the rollup is enabled, the daily counts of the logs are added to the
+ * ogc_services_log_daily table in the same transaction. The logs are committed
+ * even if the rollup fails (e.g. missing table, or PostgreSQL older than 9.5),
+ * the failure being available from {@link #getRollupFailure()}.
+ * </p>
  * 
  * @author Mauricio Pazos
  *
@@ -43,43 +56,162 @@ public final class InsertCommand extends AbstractDataCommand {
 			"," + OGCServiceParser.SECROLE_COLUMN +
 			") VALUES (?, ?, ?, ?, ?, ?, string_to_array(?, ','))";
 	
-	private Map<String, Object> rowValues;
+	private static final String SQL_ROLLUP = "INSERT INTO " + AbstractQueryCommand.ROLLUP_TABLE + " AS r(day" +
+			"," + OGCServiceParser.USER_COLUMN +
+			"," + OGCServiceParser.ORG_COLUMN +
+			"," + OGCServiceParser.SERVICE_COLUMN +
+			"," + OGCServiceParser.LAYER_COLUMN +
+			"," + OGCServiceParser.REQUEST_COLUMN +
+			",null_columns,connections) VALUES (?, ?, ?, ?, ?, ?, ?, ?)" +
+			" ON CONFLICT (day, layer, user_name, org, service, request, null_columns)" +
+			" DO UPDATE SET connections = r.connections + EXCLUDED.connections";
+
+	private List<Map<String, Object>> rows = Collections.emptyList();
+
+	private boolean rollup = false;
+
+	private TimeZone timeZone = TimeZone.getDefault();
+
+	private SQLException rollupFailure;
 	
 
 	public void setRowValues(final Map<String, Object> ogcServiceLog) {
 		
-		this.rowValues = ogcServiceLog;
+		this.rows = Collections.singletonList(ogcServiceLog);
+	}
+
+	/**
+	 * @param ogcServiceLogs the logs inserted by a single execution
+	 */
+	public void setRows(final List<Map<String, Object>> ogcServiceLogs) {
+
+		this.rows = ogcServiceLogs;
+	}
+
+	/**
+	 * @param rollup true if the daily rollup has to be updated
+	 */
+	public void setRollup(final boolean rollup) {
+
+		this.rollup = rollup;
+	}
+
+	/**
+	 * The dates are written in this time zone, and the logs are counted per
+	 * day in the same one, so that the rollup days match the days of the
+	 * dates read back from the logs table.
+	 * 
+	 * @param timeZone time zone of the dates
+	 */
+	public void setTimeZone(final TimeZone timeZone) {
+
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * @return the error which prevented the last execution from updating the
+	 *         rollup, null if it was updated
+	 */
+	public SQLException getRollupFailure() {
+
+		return this.rollupFailure;
 	}
 
 	private PreparedStatement prepareStatement() throws SQLException {
 
         assert this.connection != null: "database connection is null, use setConnection";
 
+        Calendar calendar = Calendar.getInstance(this.timeZone);
         PreparedStatement pStmt = this.connection.prepareStatement(SQL_INSERT);
-        pStmt.setString(1, (String)this.rowValues.get(OGCServiceParser.USER_COLUMN));
-
-		java.sql.Timestamp sqlDate = new java.sql.Timestamp(((java.util.Date) this.rowValues.get(OGCServiceParser.DATE_COLUMN)).getTime());
-		pStmt.setTimestamp(2, sqlDate);
-		pStmt.setString(3, ((String)this.rowValues.get(OGCServiceParser.SERVICE_COLUMN)).trim());
-        pStmt.setString(4, ((String)this.rowValues.get(OGCServiceParser.LAYER_COLUMN)).trim());
-        pStmt.setString(5, ((String)this.rowValues.get(OGCServiceParser.REQUEST_COLUMN)).trim());
-        pStmt.setString(6, ((String)this.rowValues.get(OGCServiceParser.ORG_COLUMN)).trim());
-        pStmt.setString(7, ((String)this.rowValues.get(OGCServiceParser.SECROLE_COLUMN)).trim());
+        for (Map<String, Object> rowValues : this.rows) {
+            pStmt.setString(1, (String)rowValues.get(OGCServiceParser.USER_COLUMN));
+
+            java.sql.Timestamp sqlDate = new java.sql.Timestamp(((java.util.Date) rowValues.get(OGCServiceParser.DATE_COLUMN)).getTime());
+            pStmt.setTimestamp(2, sqlDate, calendar);
+            pStmt.setString(3, ((String)rowValues.get(OGCServiceParser.SERVICE_COLUMN)).trim());
+            pStmt.setString(4, ((String)rowValues.get(OGCServiceParser.LAYER_COLUMN)).trim());
+            pStmt.setString(5, ((String)rowValues.get(OGCServiceParser.REQUEST_COLUMN)).trim());
+            pStmt.setString(6, ((String)rowValues.get(OGCServiceParser.ORG_COLUMN)).trim());
+            pStmt.setString(7, ((String)rowValues.get(OGCServiceParser.SECROLE_COLUMN)).trim());
+            pStmt.addBatch();
+        }
         
 		return pStmt;
 	}
 
+	/**
+	 * Counts the logs per day and rollup columns. The keys are sorted, so that
+	 * concurrent transactions lock the rollup rows in the same order.
+	 */
+	private PreparedStatement prepareRollupStatement() throws SQLException {
+
+		Map<RollupKey, long[]> counts = new TreeMap<RollupKey, long[]>();
+		Calendar calendar = Calendar.getInstance(this.timeZone);
+		for (Map<String, Object> rowValues : this.rows) {
+			RollupKey key = new RollupKey(truncateToDay(calendar, (Date) rowValues.get(OGCServiceParser.DATE_COLUMN)),
+					rowValues);
+			long[] count = counts.get(key);
+			if (count == null) {
+				counts.put(key, new long[] { 1 });
+			} else {
+				count[0]++;
+			}
+		}
+
+		PreparedStatement pStmt = this.connection.prepareStatement(SQL_ROLLUP);
+		for (Map.Entry<RollupKey, long[]> entry : counts.entrySet()) {
+			RollupKey key = entry.getKey();
+			pStmt.setDate(1, new java.sql.Date(key.day), calendar);
+			pStmt.setString(2, key.user);
+			pStmt.setString(3, key.org);
+			pStmt.setString(4, key.service);
+			pStmt.setString(5, key.layer);
+			pStmt.setString(6, key.request);
+			pStmt.setInt(7, key.nulls);
+			pStmt.setLong(8, entry.getValue()[0]);
+			pStmt.addBatch();
+		}
+		return pStmt;
+	}
+
+	private static long truncateToDay(Calendar calendar, Date date) {
+
+		calendar.setTime(date);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
 	@Override
 	public void execute() throws DataCommandException {
 		
         assert this.connection != null: "database connection is null, use setConnection";
 
-        // executes the sql statement and checks that the update operation will be inserted one row in the table
+        if (this.rows.isEmpty()) {
+            return;
+        }
+
+        // executes the sql statement and checks that the update operation will be inserted the rows in the table
         PreparedStatement pStmt=null;
+        PreparedStatement rollupStmt=null;
+        this.rollupFailure = null;
         try {
         	this.connection.setAutoCommit(false);
             pStmt = prepareStatement();
-            pStmt.executeUpdate();
+            pStmt.executeBatch();
+            if (this.rollup) {
+                // the logs are kept if the rollup fails
+                Savepoint savepoint = this.connection.setSavepoint();
+                try {
+                    rollupStmt = prepareRollupStatement();
+                    rollupStmt.executeBatch();
+                } catch (SQLException e) {
+                    this.connection.rollback(savepoint);
+                    this.rollupFailure = e;
+                }
+            }
             this.connection.commit();
         } catch (SQLException e) {
         	if(this.connection != null){
@@ -94,6 +226,7 @@ public final class InsertCommand extends AbstractDataCommand {
         } finally{
             try {
                 if(pStmt != null) pStmt.close();
+                if(rollupStmt != null) rollupStmt.close();
             	this.connection.setAutoCommit(true);
                 
             } catch (SQLException e1) {
@@ -102,4 +235,84 @@ public final class InsertCommand extends AbstractDataCommand {
         }
 		
 	}
+
+	/**
+	 * Columns of the daily rollup, null values being stored as empty strings.
+	 */
+	private static final class RollupKey implements Comparable<RollupKey> {
+
+		private final long day;
+		private final String user;
+		private final String org;
+		private final String service;
+		private final String layer;
+		private final String request;
+		/** the columns which are NULL, see AbstractQueryCommand.ROLLUP_COLUMNS */
+		private final int nulls;
+
+		RollupKey(long day, Map<String, Object> rowValues) {
+			this.day = day;
+			String[] values = new String[AbstractQueryCommand.ROLLUP_COLUMNS.length];
+			int nulls = 0;
+			for (int i = 0; i < values.length; i++) {
+				String column = AbstractQueryCommand.ROLLUP_COLUMNS[i];
+				String value = (String) rowValues.get(column);
+				if (value == null) {
+					value = "";
+					nulls |= 1 << i;
+				} else if (!OGCServiceParser.USER_COLUMN.equals(column)) {
+					// trimmed as the raw log columns are, except the user name
+					value = value.trim();
+				}
+				values[i] = value;
+			}
+			this.user = values[0];
+			this.org = values[1];
+			this.service = values[2];
+			this.layer = values[3];
+			this.request = values[4];
+			this.nulls = nulls;
+		}
+
+		@Override
+		public int compareTo(RollupKey other) {
+			// same order as the primary key
+			if (this.day != other.day) {
+				return (this.day < other.day) ? -1 : 1;
+			}
+			int cmp = this.layer.compareTo(other.layer);
+			if (cmp == 0) {
+				cmp = this.user.compareTo(other.user);
+			}
+			if (cmp == 0) {
+				cmp = this.org.compareTo(other.org);
+			}
+			if (cmp == 0) {
+				cmp = this.service.compareTo(other.service);
+			}
+			if (cmp == 0) {
+				cmp = this.request.compareTo(other.request);
+			}
+			if (cmp == 0 && this.nulls != other.nulls) {
+				cmp = (this.nulls < other.nulls) ? -1 : 1;
+			}
+			return cmp;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof RollupKey) && compareTo((RollupKey) obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = (int) (this.day ^ (this.day >>> 32));
+			hash = 31 * hash + this.layer.hashCode();
+			hash = 31 * hash + this.user.hashCode();
+			hash = 31 * hash + this.org.hashCode();
+			hash = 31 * hash + this.service.hashCode();
+			hash = 31 * hash + this.request.hashCode();
+			return 31 * hash + this.nulls;
+		}
+	}
 }
@@ -47,4 +47,9 @@ public interface QueryCommand extends DataCommand{
 	public void setMonth(int month);
 
 	public void setLimit(int limit);
+
+	/**
+	 * @param rollup true if the logs may be counted from the daily rollup table
+	 */
+	public void setRollup(boolean rollup);
 }
@@ -48,13 +48,8 @@ final public class RetrieveLayerConnectionsForUserCommand extends AbstractQueryC
 
 		sql.append(" SELECT ")
 				.append(USER_COLUMN).append(",").append(LAYER_COLUMN )
-				.append(",count(").append(LAYER_COLUMN).append(") as ").append(CONNECTIONS_COLUMN)
-				.append(" FROM ogcstatistics.OGC_SERVICES_LOG");
-		if(this.month > 0){
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-		} else {
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-		}
+				.append(",").append(countExpression(LAYER_COLUMN)).append(" as ").append(CONNECTIONS_COLUMN);
+		appendFromWhereClause(sql);
 		sql.append(" GROUP BY ").append(USER_COLUMN).append(",").append(LAYER_COLUMN);
 		sql.append(" ORDER BY ").append(USER_COLUMN).append(",").append(LAYER_COLUMN);
 		
@@ -69,14 +64,8 @@ final public class RetrieveLayerConnectionsForUserCommand extends AbstractQueryC
 	protected PreparedStatement prepareStatement() throws SQLException {
 
 		PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-		assert year > 0 :"year is expected";
 
-		pStmt.setInt(1, this.year);
-
-		//if the month was specified then set it in the statement
-		if(this.month > 0){ 
-			pStmt.setInt(2, this.month);
-		}
+		setPeriodParameters(pStmt);
 
 		return pStmt;
 	}
@@ -46,13 +46,8 @@ final public class RetrieveMostActiveUsers extends AbstractQueryCommand{
 
 		sql.append(" SELECT ")
 				.append(USER_COLUMN)
-				.append(",count(").append(USER_COLUMN).append(") as ").append(CONNECTIONS_COLUMN)
-				.append(" FROM ogcstatistics.OGC_SERVICES_LOG");
-		if(this.month > 0){
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-		} else {
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-		}
+				.append(",").append(countExpression(USER_COLUMN)).append(" as ").append(CONNECTIONS_COLUMN);
+		appendFromWhereClause(sql);
 		sql.append(" GROUP BY ").append(USER_COLUMN);
 		sql.append(" ORDER BY ").append(CONNECTIONS_COLUMN).append(" DESC");
 		sql.append(" LIMIT ?");
@@ -64,20 +59,10 @@ final public class RetrieveMostActiveUsers extends AbstractQueryCommand{
 	protected PreparedStatement prepareStatement() throws SQLException {
 
 		PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-		assert year > 0 :"year is expected";
 
-		pStmt.setInt(1, this.year);
-
-		//if the month was specified then set it in the statement
-		if(this.month > 0){ 
-			pStmt.setInt(2, this.month);
-			assert this.limit > 0;
-			pStmt.setInt(3, this.limit);
-		} else {
-			assert this.limit > 0;
-			pStmt.setInt(2, this.limit);
-			
-		}
+		int index = setPeriodParameters(pStmt);
+		assert this.limit > 0;
+		pStmt.setInt(index, this.limit);
 
 		
 		return pStmt;
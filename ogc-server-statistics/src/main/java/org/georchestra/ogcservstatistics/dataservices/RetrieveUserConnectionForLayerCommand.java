@@ -46,13 +46,8 @@ public final class RetrieveUserConnectionForLayerCommand extends AbstractQueryCo
 
 		StringBuilder sql = new StringBuilder();
 
-		sql.append(" SELECT ").append(LAYER_COLUMN ).append(",").append(USER_COLUMN ).append(",count("+USER_COLUMN+") as ").append(CONNECTIONS_COLUMN)
-				.append(" FROM ogcstatistics.OGC_SERVICES_LOG");
-		if(this.month > 0){
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-		} else {
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-		}
+		sql.append(" SELECT ").append(LAYER_COLUMN ).append(",").append(USER_COLUMN ).append(",").append(countExpression(USER_COLUMN)).append(" as ").append(CONNECTIONS_COLUMN);
+		appendFromWhereClause(sql);
 		sql.append(" GROUP BY ").append( LAYER_COLUMN ).append( ",").append(USER_COLUMN);
 		sql.append(" ORDER BY ").append( LAYER_COLUMN ).append( ",").append(USER_COLUMN);
 		
@@ -66,14 +61,8 @@ public final class RetrieveUserConnectionForLayerCommand extends AbstractQueryCo
 	protected PreparedStatement prepareStatement() throws SQLException {
 
 		PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-		assert year > 0 :"year is expected";
 
-		pStmt.setInt(1, this.year);
-
-		//if the month was specified then sets it in the statement
-		if(this.month > 0){
-			pStmt.setInt(2, this.month);
-		}
+		setPeriodParameters(pStmt);
 		
 		return pStmt;
 	}
@@ -24,16 +24,23 @@ import java.net.URLDecoder;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 /**
  * This parse recognizes an OGC service taking into account the syntax convention 
  * implemented by {@link OGCServiceMessageFormatter}.
+ * <p>
+ * The request is scanned once, the SERVICE, REQUEST and layer parameters being
+ * recognized (case insensitively) as the scan goes, without upper casing nor
+ * splitting the request. The request is only URL decoded when it contains
+ * escaped characters. The parser is thread safe, each thread reusing its own
+ * scanner and date format.
+ * </p>
  * 
  * @author Mauricio Pazos
  *
@@ -57,11 +64,12 @@ public final class OGCServiceParser {
 	private static final String WMS = "WMS";
 	private static final String WCS = "WCS";
 	private static final String WMTS = "WMTS";
-	private static final String[] SERVICE_TYPE_PATTERNS = {
-		SERVICE_KEYWORD + WFS,
-		SERVICE_KEYWORD + WCS,
-		SERVICE_KEYWORD + WMS,
-		SERVICE_KEYWORD + WMTS
+	// ordered by priority, when several services are found
+	private static final String[] SERVICE_TYPES = {
+		WFS,
+		WCS,
+		WMS,
+		WMTS
 	};
 	
 	// request type
@@ -86,43 +94,51 @@ public final class OGCServiceParser {
 	private static final String CREATESTOREDQUERY = "CREATESTOREDQUERY";
 	private static final String DROPSTOREDQUERY = "DROPSTOREDQUERY";
 
-	private static final String[] OPERATION_NAME_PATTERNS = {
-		REQUEST_KEYWORD + GETCAPABILITIES,
-		REQUEST_KEYWORD + GETMAP,
-		REQUEST_KEYWORD + GETLEGENDGRAPHIC,
-		REQUEST_KEYWORD + GETFEATUREINFO,
-		REQUEST_KEYWORD + DESCRIBELAYER,
-		REQUEST_KEYWORD + GETFEATURE,
-		REQUEST_KEYWORD + DESCRIBEFEATURETYPE,
-		REQUEST_KEYWORD + GETCOVERAGE,
-		REQUEST_KEYWORD + DESCRIBECOVERAGE,
-		REQUEST_KEYWORD + GETTILE,
-		REQUEST_KEYWORD + GETSTYLES,
+	private static final String[] OPERATION_NAMES = {
+		GETCAPABILITIES,
+		GETMAP,
+		GETLEGENDGRAPHIC,
+		GETFEATUREINFO,
+		DESCRIBELAYER,
+		GETFEATURE,
+		DESCRIBEFEATURETYPE,
+		GETCOVERAGE,
+		DESCRIBECOVERAGE,
+		GETTILE,
+		GETSTYLES,
 		// WFS2
-		REQUEST_KEYWORD + GETPROPERTYVALUE,
-		REQUEST_KEYWORD + LOCKFEATURE,
-		REQUEST_KEYWORD + GETFEATUREWITHLOCK,
-		REQUEST_KEYWORD + LISTSTOREDQUERIES,
-		REQUEST_KEYWORD + DESCRIBESTOREDQUERIES,
-		REQUEST_KEYWORD + CREATESTOREDQUERY,
-		REQUEST_KEYWORD + DROPSTOREDQUERY
+		GETPROPERTYVALUE,
+		LOCKFEATURE,
+		GETFEATUREWITHLOCK,
+		LISTSTOREDQUERIES,
+		DESCRIBESTOREDQUERIES,
+		CREATESTOREDQUERY,
+		DROPSTOREDQUERY
 	};
-	
+
+	// lower case operation names, as stored in the database
+	private static final String[] OPERATION_COLUMN_VALUES = new String[OPERATION_NAMES.length];
+
+	// ordered by priority, the last one found gives the layers
 	private static final String[] LAYER_KEYWORD = {
 		"LAYERS=", "LAYER=","TYPENAME=", "QUERY_LAYERS=", "COVERAGEID="
 	};
 
-	private static final String COMMA = ",";
+	private static final char COMMA = ',';
 	private static final char QUOTE = '\"';
-	private static final char[]  DELIMITER = {'&', ' ',  '\r', '\t', '>' };
-	private static final String OGC_MSG_SPLITTER = "[" + OGCServiceMessageFormatter.SEPARATOR + "]";
-	private static final DateFormat DATE_FORMAT = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT);
+	private static final char SEPARATOR = OGCServiceMessageFormatter.SEPARATOR.charAt(0);
 
-	private static final List<String> HAS_TO_CREATE_A_LOG_WITHOUT_LAYER = Arrays.asList(new String [] {""});
+	private static final ThreadLocal<RequestScanner> SCANNER = new ThreadLocal<RequestScanner>() {
+		@Override
+		protected RequestScanner initialValue() {
+			return new RequestScanner();
+		}
+	};
 
 	static {
-		// sorts the delimiters to allow binary search
-		Arrays.sort(DELIMITER);
+		for (int i = 0; i < OPERATION_NAMES.length; i++) {
+			OPERATION_COLUMN_VALUES[i] = OPERATION_NAMES[i].toLowerCase();
+		}
 	}
 
 
@@ -140,26 +156,27 @@ public final class OGCServiceParser {
 	 * @throws UnsupportedEncodingException 
 	 */
 	public static List<Map<String, Object>> parseLog(final String message) throws ParseException, UnsupportedEncodingException {
-		List<Map<String, Object>> logList = new LinkedList<Map<String,Object>>();
 
-		String[] splittedMessage = message.split(OGC_MSG_SPLITTER);
+		String[] splittedMessage = splitMessage(message);
 		if(splittedMessage.length < 3){
 			throw new ParseException("the message has not be recognized. Use OGCServiceMessageFormatter.format(...) to build the message", 0);
 		}
 
 		// parses service and layer from request
-		String request = URLDecoder.decode(splittedMessage[2], "UTF-8").toUpperCase();
-		String service = parseService(request);
-		String ogcReq = parseOperationName(request).toLowerCase();
+		RequestScanner scanner = SCANNER.get();
+		scanner.scan(decode(splittedMessage[2]));
 
+		String service = scanner.getService();
 		boolean undefinedService = "".equals(service);
-		if (undefinedService) return logList;
+		if (undefinedService) return Collections.emptyList();
+
+		String ogcReq = scanner.getOperation();
 
 		// extracts user 
 		String user=  splittedMessage[0];
 		
 		// extracts date
-		Date date = DATE_FORMAT.parse(splittedMessage[1]);
+		Date date = scanner.dateFormat.parse(splittedMessage[1]);
 		
 
 		// parses org (it is optional) and sec roles
@@ -175,15 +192,16 @@ public final class OGCServiceParser {
 		
 
 		// for each layer adds a log to the list
-		List<String> layerList = parseLayer(request);
+		List<String> layerList = scanner.getLayers();
 
+		List<Map<String, Object>> logList = new ArrayList<Map<String,Object>>(layerList.size());
 		for(String layer : layerList){
-			Map<String, Object>  log = new HashMap<String, Object>(6);
+			Map<String, Object>  log = new HashMap<String, Object>(8);
 
 			log.put(USER_COLUMN, user );
 			log.put(DATE_COLUMN, date);
 			log.put(SERVICE_COLUMN, service );
-			log.put(LAYER_COLUMN, layer.toLowerCase() );
+			log.put(LAYER_COLUMN, layer );
 			log.put(REQUEST_COLUMN, ogcReq );
 			log.put(ORG_COLUMN, org);
 			log.put(SECROLE_COLUMN, roles);
@@ -194,105 +212,251 @@ public final class OGCServiceParser {
 	}
 
 	/**
-	 * Parses the OGC service.
-	 *
-	 * @param message
-	 *
-	 * @return an OGC service symbol, "" in other case.
+	 * Splits the message on the {@link OGCServiceMessageFormatter#SEPARATOR},
+	 * the trailing empty fields being dropped (as {@link String#split(String)}
+	 * does).
 	 */
-	private static String parseService(final String message){
-		// checks if it is an ogc service
-		for (String pattern : SERVICE_TYPE_PATTERNS) {
-			if (message.contains(pattern)) {
-
-				String service = pattern.substring(SERVICE_KEYWORD.length());
-				return removeQuoteAndTrim(service);
-			}
-		}
-		// Particular case: the following does not contain the WMS service key
-		if(message.contains(GETLEGENDGRAPHIC)){
-			return WMS;
+	private static String[] splitMessage(final String message) {
+
+		List<String> fields = new ArrayList<String>(5);
+		int start = 0;
+		int end;
+		while ((end = message.indexOf(SEPARATOR, start)) >= 0) {
+			fields.add(message.substring(start, end));
+			start = end + 1;
 		}
-		return "";
-	}
-
-	private static String parseOperationName(final String message){
-		for (String pattern : OPERATION_NAME_PATTERNS) {
-			if (message.contains(pattern)) {
+		fields.add(message.substring(start));
 
-				String request = pattern.substring(REQUEST_KEYWORD.length());
-				return removeQuoteAndTrim(request);
-			}
+		int size = fields.size();
+		while (size > 0 && fields.get(size - 1).length() == 0) {
+			size--;
 		}
-		return "";
+		return fields.subList(0, size).toArray(new String[size]);
 	}
 
 	/**
-	 * Parses the layer name
-	 * 
-	 * @param request
-	 * 
-	 * @return a list of layer names
+	 * URL decodes the request, if it contains any escaped character.
 	 */
-	private static List<String> parseLayer(final String request) {
-		List<String> layerList = HAS_TO_CREATE_A_LOG_WITHOUT_LAYER;
-		for (String layerKeyword : LAYER_KEYWORD) {
-			if (request.contains(layerKeyword)) {
-
-				int begin = request.indexOf(layerKeyword);
-				begin = begin + layerKeyword.length();
-				String layers = request.substring(begin);
-				int end = searchEndOfLayerValue(layers);
-				layers = layers.substring(0, end);
-				
-				layerList = buildLayerList(layers);
-			}
+	private static String decode(final String request) throws UnsupportedEncodingException {
+
+		if (request.indexOf('%') < 0 && request.indexOf('+') < 0) {
+			return request;
 		}
-		return layerList;
+		return URLDecoder.decode(request, "UTF-8");
 	}
 
 	/**
 	 * Index of the end of list of the layer names.
 	 * 
-	 * @param layer
+	 * @param request
+	 * @param begin index of the first character of the list
 	 * @return index 
 	 */
-	private static int searchEndOfLayerValue(String layer) {
+	private static int searchEndOfLayerValue(final String request, final int begin) {
 
-		int end = -1;
 		// search the delimiter the layer element
-		for(int i = 0; i < layer.length(); i ++){
+		for(int i = begin; i < request.length(); i ++){
 			
-			char current = layer.charAt(i);
-			if(Arrays.binarySearch(DELIMITER, current) >= 0){
+			switch (request.charAt(i)) {
+			case '&':
+			case ' ':
+			case '\r':
+			case '\t':
+			case '>':
 				return i;
+			default:
+				break;
 			}
 		}
-		if( end == -1){
-			end = layer.length();
-		}
-		return end;
+		return request.length();
 	}
 
 	/**
 	 * Extract the layer name from a list like
 	 * layer1, layer2, ...., layerN
 	 * 
-	 * @param strLayerList
+	 * @param request
+	 * @param begin index of the list in the request
+	 * @param end index of the end of the list
 	 * 
-	 * @return List of layers
+	 * @return List of layers, lower cased
 	 */
-	private static List<String> buildLayerList(final String strLayerList) {
-		List<String> layers = new LinkedList<String>();
-		String[] layersToBeautify = strLayerList.split(COMMA);
-		for (String layerToBeautify : layersToBeautify) {
-			layers.add(removeQuoteAndTrim(layerToBeautify));
+	private static List<String> buildLayerList(final String request, final int begin, final int end) {
+
+		List<String> layers = new ArrayList<String>(4);
+		if (begin == end) {
+			layers.add("");
+			return layers;
+		}
+		// like String.split, the trailing empty names are dropped
+		int size = 0;
+		int start = begin;
+		while (true) {
+			int comma = request.indexOf(COMMA, start);
+			if (comma < 0 || comma > end) {
+				comma = end;
+			}
+			layers.add(removeQuoteAndTrim(request.substring(start, comma)).toLowerCase());
+			if (comma > start) {
+				size = layers.size();
+			}
+			if (comma == end) {
+				break;
+			}
+			start = comma + 1;
 		}
-		return layers;
+		return layers.subList(0, size);
 	}
 
 	private static String removeQuoteAndTrim(String string) {
-		return string.replace(QUOTE, ' ').trim();
+		if (string.indexOf(QUOTE) >= 0) {
+			string = string.replace(QUOTE, ' ');
+		}
+		return string.trim();
+	}
+
+	/**
+	 * Single pass scanner of an OGC request, reused by the thread which owns
+	 * it.
+	 */
+	private static final class RequestScanner {
+
+		/** SimpleDateFormat is not thread safe, hence one per scanner */
+		private final DateFormat dateFormat = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT);
+
+		private String request;
+		private int serviceIndex;
+		private int operationIndex;
+		private boolean legendGraphic;
+		private int layerKeywordIndex;
+		private int layersBegin;
+		private int layersEnd;
+
+		void scan(final String request) {
+
+			this.request = request;
+			this.serviceIndex = -1;
+			this.operationIndex = -1;
+			this.legendGraphic = false;
+			this.layerKeywordIndex = -1;
+
+			// the keywords are recognized anywhere in the request, the
+			// first character tells which ones may start at a position
+			final int length = request.length();
+			for (int i = 0; i < length; i++) {
+				switch (request.charAt(i)) {
+				case 'S':
+				case 's':
+					if (matches(i, SERVICE_KEYWORD)) {
+						service(i + SERVICE_KEYWORD.length());
+					}
+					break;
+				case 'R':
+				case 'r':
+					if (this.operationIndex < 0 && matches(i, REQUEST_KEYWORD)) {
+						operation(i + REQUEST_KEYWORD.length());
+					}
+					break;
+				case 'L':
+				case 'l':
+					layers(i, 0);
+					layers(i, 1);
+					break;
+				case 'T':
+				case 't':
+					layers(i, 2);
+					break;
+				case 'Q':
+				case 'q':
+					layers(i, 3);
+					break;
+				case 'C':
+				case 'c':
+					layers(i, 4);
+					break;
+				case 'G':
+				case 'g':
+					if (!this.legendGraphic && matches(i, GETLEGENDGRAPHIC)) {
+						this.legendGraphic = true;
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		private boolean matches(int offset, String keyword) {
+			return this.request.regionMatches(true, offset, keyword, 0, keyword.length());
+		}
+
+		private void service(int offset) {
+			for (int i = 0; i < SERVICE_TYPES.length; i++) {
+				if ((this.serviceIndex < 0 || i < this.serviceIndex) && matches(offset, SERVICE_TYPES[i])) {
+					this.serviceIndex = i;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * The longest operation name found wins, so that GetFeatureWithLock is
+		 * not taken for GetFeature.
+		 */
+		private void operation(int offset) {
+			int found = -1;
+			for (int i = 0; i < OPERATION_NAMES.length; i++) {
+				if (matches(offset, OPERATION_NAMES[i])
+						&& (found < 0 || OPERATION_NAMES[i].length() > OPERATION_NAMES[found].length())) {
+					found = i;
+				}
+			}
+			this.operationIndex = found;
+		}
+
+		/**
+		 * Only the first occurrence of a layer keyword is kept, and a keyword
+		 * overrides the ones before it in {@link OGCServiceParser#LAYER_KEYWORD}.
+		 */
+		private void layers(int offset, int keywordIndex) {
+			if (keywordIndex <= this.layerKeywordIndex) {
+				return;
+			}
+			String keyword = LAYER_KEYWORD[keywordIndex];
+			if (matches(offset, keyword)) {
+				this.layerKeywordIndex = keywordIndex;
+				this.layersBegin = offset + keyword.length();
+				this.layersEnd = searchEndOfLayerValue(this.request, this.layersBegin);
+			}
+		}
+
+		/**
+		 * @return an OGC service symbol, "" in other case.
+		 */
+		String getService() {
+			if (this.serviceIndex >= 0) {
+				return SERVICE_TYPES[this.serviceIndex];
+			}
+			// Particular case: the following does not contain the WMS service key
+			return this.legendGraphic ? WMS : "";
+		}
+
+		/**
+		 * @return the lower case operation name, "" if unknown
+		 */
+		String getOperation() {
+			return (this.operationIndex < 0) ? "" : OPERATION_COLUMN_VALUES[this.operationIndex];
+		}
+
+		/**
+		 * @return the layer names, a single empty name if there is none
+		 */
+		List<String> getLayers() {
+			if (this.layerKeywordIndex < 0) {
+				return Collections.singletonList("");
+			}
+			return buildLayerList(this.request, this.layersBegin, this.layersEnd);
+		}
 	}
 
 }
@@ -19,15 +19,22 @@
 
 package org.georchestra.ogcservstatistics.log4j;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 import org.georchestra.ogcservstatistics.OGCServStatisticsException;
+import org.georchestra.ogcservstatistics.calculations.LiveStatistics;
 import org.georchestra.ogcservstatistics.dataservices.DataServicesConfiguration;
 import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
 
@@ -49,11 +56,27 @@ import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
  * log4j.appender.OGCSERVICES.databaseUser=postgres
  * log4j.appender.OGCSERVICES.databasePassword=postgres
  * log4j.appender.OGCSERVICES.bufferSize=1
+ * log4j.appender.OGCSERVICES.asynchronous=true
+ * log4j.appender.OGCSERVICES.batchSize=100
+ * log4j.appender.OGCSERVICES.queueSize=10000
+ * log4j.appender.OGCSERVICES.flushInterval=1000
+ * log4j.appender.OGCSERVICES.blockWhenFull=false
+ * log4j.appender.OGCSERVICES.closeTimeout=10000
  * 
  * </pre>
  * <p>
  * Note: you could improve the performance increasing the <b>bufferSize</b> value.
  * </p>
+ * <p>
+ * In <b>asynchronous</b> mode (the default), the messages are only queued by
+ * the logging thread. A background writer parses them and inserts them by
+ * batches of up to <b>batchSize</b> rows, at least every
+ * <b>flushInterval</b> milliseconds. When the database cannot keep up and
+ * <b>queueSize</b> messages are waiting, new messages are dropped (and
+ * counted), unless <b>blockWhenFull</b> is set, in which case the logging
+ * thread waits for room in the queue. On close, the writer is given
+ * <b>closeTimeout</b> milliseconds to write the queued messages.
+ * </p>
  * 
  * <p>
  * To load the configuration you should include the following code:
@@ -99,6 +122,77 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	 */
 	protected int bufferSize = 1;
 
+	/**
+	 * true: the messages are written to the database by a background thread
+	 * false: the messages are written by the logging thread
+	 */
+	protected boolean asynchronous = true;
+
+	/**
+	 * Maximum number of messages written by a single batch in asynchronous mode
+	 */
+	protected int batchSize = 100;
+
+	/**
+	 * Maximum number of messages waiting to be written in asynchronous mode
+	 */
+	protected int queueSize = 10000;
+
+	/**
+	 * Maximum delay (ms) before queued messages are written in asynchronous mode
+	 */
+	protected long flushInterval = 1000;
+
+	/**
+	 * true: the logging thread waits when the queue is full
+	 * false: the messages are dropped when the queue is full
+	 */
+	protected boolean blockWhenFull = false;
+
+	/**
+	 * Maximum delay (ms) given to the background writer to write the queued
+	 * messages when the appender is closed, the remaining ones are dropped
+	 */
+	protected long closeTimeout = 10000;
+
+	/**
+	 * Maximum number of pooled database connections
+	 */
+	protected int maxConnections = 8;
+
+	/**
+	 * true: the daily rollup table is updated along with the logs, and read
+	 * by the statistics queries. It is disabled on its first failure.
+	 */
+	protected boolean rollup = false;
+
+	/**
+	 * Time zone of the dates written to the logs table (the JVM one if not
+	 * set). The daily rollup is counted in this time zone.
+	 */
+	protected String timeZone;
+
+	/**
+	 * Duration (s) of the window of the live statistics, 0 disables them
+	 */
+	protected long liveWindow = 3600;
+
+	/**
+	 * Number of layers, users and orgs counted by each bucket of the live
+	 * statistics window
+	 */
+	protected int liveCapacity = 100;
+
+	private LiveStatistics liveStatistics = LiveStatistics.getInstance();
+
+	private BlockingQueue<String> queue;
+
+	private Thread writerThread;
+
+	private volatile boolean running = false;
+
+	private final AtomicLong droppedMessages = new AtomicLong();
+
 	/**
 	 * ArrayList holding the buffer of Logging Events.
 	 */
@@ -178,10 +272,108 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	}
 
 	public void setBufferSize(int newBufferSize) {
-		this.bufferSize = newBufferSize;
-		this.buffer.ensureCapacity(this.bufferSize);
+		synchronized (this.buffer) {
+			this.bufferSize = newBufferSize;
+			this.buffer.ensureCapacity(this.bufferSize);
+		}
 	}
 	
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public boolean isBlockWhenFull() {
+		return blockWhenFull;
+	}
+
+	public void setBlockWhenFull(boolean blockWhenFull) {
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	public long getCloseTimeout() {
+		return closeTimeout;
+	}
+
+	public void setCloseTimeout(long closeTimeout) {
+		this.closeTimeout = closeTimeout;
+	}
+
+	/**
+	 * @return the number of messages dropped because the queue was full, or
+	 *         left unwritten when the appender was closed
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public boolean isRollup() {
+		return rollup;
+	}
+
+	public void setRollup(boolean rollup) {
+		this.rollup = rollup;
+	}
+
+	public String getTimeZone() {
+		return timeZone;
+	}
+
+	public void setTimeZone(String timeZone) {
+		this.timeZone = timeZone;
+	}
+
+	public long getLiveWindow() {
+		return liveWindow;
+	}
+
+	public void setLiveWindow(long liveWindow) {
+		this.liveWindow = liveWindow;
+	}
+
+	public int getLiveCapacity() {
+		return liveCapacity;
+	}
+
+	public void setLiveCapacity(int liveCapacity) {
+		this.liveCapacity = liveCapacity;
+	}
+
 	public boolean isActivated() {
 		return activated;
 	}
@@ -201,6 +393,30 @@ public class OGCServicesAppender extends AppenderSkeleton {
 		this.dataServiceConfiguration.setUser(getDatabaseUser());
 		this.dataServiceConfiguration.setPassword(getDatabasePassword());
 		this.dataServiceConfiguration.setJdbcURL(getJdbcURL());
+		this.dataServiceConfiguration.setMaxConnections(getMaxConnections());
+		this.dataServiceConfiguration.setRollupEnabled(isRollup());
+		if (getTimeZone() != null && getTimeZone().trim().length() > 0) {
+			this.dataServiceConfiguration.setTimeZone(TimeZone.getTimeZone(getTimeZone().trim()));
+		}
+		this.liveStatistics.configure(getLiveWindow() * 1000, Math.max(1, getLiveCapacity()));
+
+		startWriter();
+	}
+
+	/**
+	 * Starts the background writer, in asynchronous mode.
+	 * 
+	 * Default for testing purposes.
+	 */
+	void startWriter() {
+
+		if (this.activated && this.asynchronous && this.writerThread == null) {
+			this.queue = new ArrayBlockingQueue<String>(Math.max(1, this.queueSize));
+			this.running = true;
+			this.writerThread = new Thread(new Writer(), "ogc-statistics-writer-" + getName());
+			this.writerThread.setDaemon(true);
+			this.writerThread.start();
+		}
 	}
 
 
@@ -216,17 +432,29 @@ public class OGCServicesAppender extends AppenderSkeleton {
 		if (!this.activated)
 			return;
 
+		if (this.writerThread != null) {
+			enqueue(event.getRenderedMessage());
+			return;
+		}
+
 		try {
 
 			String msg = event.getRenderedMessage();
 			List<Map<String, Object>> logList = OGCServiceParser.parseLog(msg);
+			this.liveStatistics.add(logList);
 
-			for (Map<String, Object> log : logList) {
-				this.buffer.add(log);
+			List<Map<String, Object>> full = null;
+			synchronized (this.buffer) {
+				this.buffer.addAll(logList);
 				if (this.buffer.size() >= this.bufferSize) {
-					flushBuffer();
+					full = takeBuffer();
 				}
 			}
+			// the rows are written out of the lock, so that the other
+			// logging threads keep on filling the buffer meanwhile
+			if (full != null) {
+				insert(full);
+			}
 			
 		} catch (Exception ex) {
 			errorHandler.error("Failed to insert the ogc service record", ex,
@@ -235,34 +463,91 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	}
 
 
+	/**
+	 * Queues the message for the background writer, dropping it or waiting
+	 * if the queue is full.
+	 */
+	private void enqueue(String msg) {
+
+		if (this.blockWhenFull) {
+			try {
+				this.queue.put(msg);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				this.droppedMessages.incrementAndGet();
+			}
+		} else if (!this.queue.offer(msg)) {
+			// the error handler only reports the first error
+			if (this.droppedMessages.incrementAndGet() == 1) {
+				errorHandler.error("OGC services statistics queue full, dropping messages", null,
+						ErrorCode.WRITE_FAILURE);
+			}
+		}
+	}
+
 	/**
 	 * Inserts in the database table the OGC Service logs maintained in the appender buffer 
 	 * @throws OGCServStatisticsException 
 	 */
 	private void flushBuffer() {
 		
-		ArrayList<Map<String, Object>> removed = new ArrayList<Map<String,Object>>(this.buffer.size());
-		for (Map<String,Object> log: this.buffer) {
-
-			insert(log);
-			removed.add(log);
+		List<Map<String, Object>> rows;
+		synchronized (this.buffer) {
+			rows = takeBuffer();
+		}
+		if (!rows.isEmpty()) {
+			insert(rows);
 		}
-		this.buffer.removeAll(removed);
 	}
 
+	/**
+	 * Empties the buffer, the caller must hold its lock.
+	 * 
+	 * @return the rows which were buffered
+	 */
+	private List<Map<String, Object>> takeBuffer() {
 
-	private void insert(Map<String, Object> ogcServiceRecord)  {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(this.buffer);
+		this.buffer.clear();
+		return rows;
+	}
 
+
+	/**
+	 * Protected to allow unit test to override.
+	 */
+	protected void insert(List<Map<String, Object>> ogcServiceRecords)  {
+
+		Connection connection = null;
 		try {
+			connection = this.dataServiceConfiguration.getConnection();
 			InsertCommand cmd = new InsertCommand();
-			cmd.setConnection(this.dataServiceConfiguration .getConnection());
-			cmd.setRowValues( ogcServiceRecord);
+			cmd.setConnection(connection);
+			cmd.setRows(ogcServiceRecords);
+			cmd.setRollup(this.dataServiceConfiguration.isRollupEnabled());
+			cmd.setTimeZone(this.dataServiceConfiguration.getTimeZone());
 			cmd.execute();
+			if (cmd.getRollupFailure() != null && this.dataServiceConfiguration.isRollupEnabled()) {
+				// the rollup misses these logs from now on, the queries
+				// read the logs table instead
+				this.dataServiceConfiguration.setRollupEnabled(false);
+				errorHandler.error("Failed to update the daily rollup, it is disabled", cmd.getRollupFailure(),
+						ErrorCode.WRITE_FAILURE);
+			}
 
 		} catch (Exception e) {
 
 			errorHandler.error("Failed to insert the log", e,
 					ErrorCode.WRITE_FAILURE);
+		} finally {
+			// gives the connection back to the pool
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					errorHandler.error("Error closing connection", e, ErrorCode.CLOSE_FAILURE);
+				}
+			}
 		}
 		
 	}
@@ -279,6 +564,7 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	public void close() {
 		try {
 
+			stopWriter();
 			flushBuffer();
 			this.dataServiceConfiguration.closeConnection();
 			
@@ -290,6 +576,86 @@ public class OGCServicesAppender extends AppenderSkeleton {
 		
 	}
 
+	/**
+	 * Stops the background writer once the queued messages are written, or
+	 * after closeTimeout ms, dropping the messages which are still queued.
+	 */
+	private void stopWriter() {
+
+		Thread thread = this.writerThread;
+		if (thread == null) {
+			return;
+		}
+		this.running = false;
+		try {
+			thread.join(Math.max(1, this.closeTimeout));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			// the writer ends with its current batch
+			List<String> remaining = new ArrayList<String>();
+			this.queue.drainTo(remaining);
+			this.droppedMessages.addAndGet(remaining.size());
+			errorHandler.error("OGC services statistics writer still busy on close, " + remaining.size()
+					+ " messages dropped", null, ErrorCode.CLOSE_FAILURE);
+		}
+		this.writerThread = null;
+	}
+
+	/**
+	 * Drains the queue, writing the messages by batches of batchSize rows.
+	 */
+	private class Writer implements Runnable {
+
+		@Override
+		public void run() {
+
+			final int batchSize = Math.max(1, OGCServicesAppender.this.batchSize);
+			List<String> messages = new ArrayList<String>(batchSize);
+			List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(batchSize);
+			while (running || !queue.isEmpty()) {
+				try {
+					String first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					messages.add(first);
+					queue.drainTo(messages, batchSize - messages.size());
+					// waits for a full batch, unless the queue is being drained
+					// by close()
+					long deadline = System.currentTimeMillis() + flushInterval;
+					while (messages.size() < batchSize && running) {
+						long remaining = deadline - System.currentTimeMillis();
+						String next = (remaining > 0) ? queue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+						if (next == null) {
+							break;
+						}
+						messages.add(next);
+						queue.drainTo(messages, batchSize - messages.size());
+					}
+					for (String msg : messages) {
+						try {
+							rows.addAll(OGCServiceParser.parseLog(msg));
+						} catch (Exception ex) {
+							errorHandler.error("Failed to parse the ogc service record", ex, ErrorCode.WRITE_FAILURE);
+						}
+					}
+					liveStatistics.add(rows);
+					insert(rows);
+				} catch (InterruptedException e) {
+					// stopped by close(), the remaining messages are written
+					// by the next iterations
+				} catch (RuntimeException e) {
+					errorHandler.error("Failed to insert the ogc service records", e, ErrorCode.WRITE_FAILURE);
+				} finally {
+					messages.clear();
+					rows.clear();
+				}
+			}
+		}
+	}
+
 	@Override
 	public boolean requiresLayout() {
 		return false; // does not require layout configuration
@@ -0,0 +1,152 @@
+package org.georchestra.ogcservstatistics.calculations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.georchestra.ogcservstatistics.log4j.OGCServiceParser;
+import org.junit.Test;
+
+/**
+ * Test case for the {@link LiveStatistics} and its {@link SpaceSaving}
+ * summaries, which do not require any database.
+ */
+public class LiveStatisticsTest {
+
+	private static final long MINUTE = 60 * 1000;
+
+	@Test
+	public void testSpaceSavingExactBelowCapacity() {
+
+		SpaceSaving summary = new SpaceSaving(10);
+		for (int i = 0; i < 5; i++) {
+			for (int j = 0; j <= i; j++) {
+				summary.add("layer" + i);
+			}
+		}
+		Map<String, long[]> counts = new HashMap<String, long[]>();
+		summary.addTo(counts);
+
+		assertEquals(5, counts.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i + 1, counts.get("layer" + i)[0]);
+			assertEquals(0, counts.get("layer" + i)[1]);
+		}
+	}
+
+	@Test
+	public void testSpaceSavingKeepsHeavyHitters() {
+
+		SpaceSaving summary = new SpaceSaving(10);
+		// two frequent keys among a stream of distinct ones
+		for (int i = 0; i < 1000; i++) {
+			summary.add("noise" + i);
+			if (i % 2 == 0) {
+				summary.add("frequent");
+			}
+			if (i % 4 == 0) {
+				summary.add("common");
+			}
+		}
+		Map<String, long[]> counts = new HashMap<String, long[]>();
+		summary.addTo(counts);
+
+		assertEquals(10, summary.size());
+		long[] frequent = counts.get("frequent");
+		long[] common = counts.get("common");
+		// the counts are overestimated by at most their error
+		assertTrue(frequent[0] >= 500 && frequent[0] - frequent[1] <= 500);
+		assertTrue(common[0] >= 250 && common[0] - common[1] <= 250);
+	}
+
+	@Test
+	public void testTopOverWindow() {
+
+		LiveStatistics statistics = new LiveStatistics();
+		statistics.configure(60 * MINUTE, 100);
+		long now = 1000 * 60 * MINUTE;
+
+		List<Map<String, Object>> logs = new ArrayList<Map<String, Object>>();
+		logs.add(log("user1", "psc", "topp:states", now - 2 * MINUTE));
+		logs.add(log("user1", "psc", "topp:states", now - MINUTE));
+		logs.add(log("user2", "", "tiger:roads", now - MINUTE));
+		statistics.add(logs, now);
+
+		List<Map<String, Object>> layers = statistics.mostConsultedLayers(10, now);
+		assertEquals(2, layers.size());
+		assertEquals("topp:states", layers.get(0).get(OGCServiceParser.LAYER_COLUMN));
+		assertEquals(2L, layers.get(0).get(LiveStatistics.CONNECTIONS_COLUMN));
+		assertEquals("tiger:roads", layers.get(1).get(OGCServiceParser.LAYER_COLUMN));
+
+		// the empty org is not counted
+		List<Map<String, Object>> orgs = statistics.mostActiveOrgs(10, now);
+		assertEquals(1, orgs.size());
+
+		// the limit is applied
+		assertEquals(1, statistics.mostActiveUsers(1, now).size());
+
+		// an hour later, the logs are out of the window
+		assertTrue(statistics.mostConsultedLayers(10, now + 61 * MINUTE).isEmpty());
+	}
+
+	@Test
+	public void testErrorOfUnmonitoredKeys() {
+
+		LiveStatistics statistics = new LiveStatistics();
+		statistics.configure(60 * MINUTE, 2);
+		long now = 1000 * 60 * MINUTE;
+
+		List<Map<String, Object>> logs = new ArrayList<Map<String, Object>>();
+		// the first bucket is full, "roads" replaces "states"
+		for (int i = 0; i < 5; i++) {
+			logs.add(log("user1", "psc", "topp:world", now - 20 * MINUTE));
+		}
+		for (int i = 0; i < 3; i++) {
+			logs.add(log("user1", "psc", "topp:states", now - 20 * MINUTE));
+		}
+		logs.add(log("user1", "psc", "tiger:roads", now - 20 * MINUTE));
+		logs.add(log("user1", "psc", "topp:states", now - MINUTE));
+		statistics.add(logs, now);
+
+		Map<String, Long> exact = new HashMap<String, Long>();
+		exact.put("topp:world", 5L);
+		exact.put("topp:states", 4L);
+		exact.put("tiger:roads", 1L);
+		List<Map<String, Object>> layers = statistics.mostConsultedLayers(10, now);
+		assertEquals(3, layers.size());
+		for (Map<String, Object> layer : layers) {
+			long connections = (Long) layer.get(LiveStatistics.CONNECTIONS_COLUMN);
+			long error = (Long) layer.get(LiveStatistics.ERROR_COLUMN);
+			long count = exact.get(layer.get(OGCServiceParser.LAYER_COLUMN));
+			// the exact count is within the error of the connections
+			assertTrue(Math.abs(connections - count) <= error);
+		}
+	}
+
+	@Test
+	public void testDisabled() {
+
+		LiveStatistics statistics = new LiveStatistics();
+		statistics.configure(0, 100);
+		List<Map<String, Object>> logs = new ArrayList<Map<String, Object>>();
+		logs.add(log("user1", "psc", "topp:states", System.currentTimeMillis()));
+		statistics.add(logs);
+
+		assertTrue(!statistics.isEnabled());
+		assertTrue(statistics.mostConsultedLayers(10).isEmpty());
+	}
+
+	private static Map<String, Object> log(String user, String org, String layer, long time) {
+		Map<String, Object> log = new HashMap<String, Object>();
+		log.put(OGCServiceParser.USER_COLUMN, user);
+		log.put(OGCServiceParser.ORG_COLUMN, org);
+		log.put(OGCServiceParser.LAYER_COLUMN, layer);
+		log.put(OGCServiceParser.DATE_COLUMN, new Date(time));
+		return log;
+	}
+}
@@ -3,9 +3,11 @@
  */
 package org.georchestra.ogcservstatistics.calculations;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.sql.Connection;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -46,8 +48,10 @@ public class OGCServiceStatisticsTest {
 			// the log table Initialize
 			
 			DeleteAllCommand cmd = new DeleteAllCommand();
-			cmd.setConnection(DataServicesConfiguration.getInstance().getConnection());
+			Connection connection = DataServicesConfiguration.getInstance().getConnection();
+			cmd.setConnection(connection);
 			cmd.execute();
+			connection.close();
 			
 			// add the initial logs
 
@@ -302,4 +306,25 @@ public class OGCServiceStatisticsTest {
 		}
 		
 	}
+
+	/**
+	 * The counts read from the daily rollup are the ones of the raw logs
+	 */
+	@Test
+	public void testRollupMatchesLogs() throws OGCServStatisticsException{
+
+		DataServicesConfiguration configuration = DataServicesConfiguration.getInstance();
+		boolean rollupEnabled = configuration.isRollupEnabled();
+		try {
+			configuration.setRollupEnabled(false);
+			List<Map<String,Object>> fromLogs = OGCServiceStatistics.retrieveUserConnectionsForLayer(getYear(this.time),getMonth(this.time));
+
+			configuration.setRollupEnabled(true);
+			List<Map<String,Object>> fromRollup = OGCServiceStatistics.retrieveUserConnectionsForLayer(getYear(this.time),getMonth(this.time));
+
+			assertEquals(fromLogs, fromRollup);
+		} finally {
+			configuration.setRollupEnabled(rollupEnabled);
+		}
+	}
 }
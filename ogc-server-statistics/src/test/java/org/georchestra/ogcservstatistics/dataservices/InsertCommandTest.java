@@ -0,0 +1,125 @@
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.georchestra.ogcservstatistics.log4j.OGCServiceParser;
+import org.junit.Test;
+
+/**
+ * Tests the transaction of the {@link InsertCommand}, against a connection
+ * recording the JDBC calls.
+ */
+public class InsertCommandTest {
+
+	/** JDBC calls, the statements being named by their first words */
+	private final List<String> calls = new ArrayList<String>();
+
+	private boolean rollupTableMissing = false;
+
+	private Connection connection() {
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("prepareStatement")) {
+							return statement((String) args[0]);
+						}
+						calls.add(name);
+						if (name.equals("setSavepoint")) {
+							return Proxy.newProxyInstance(getClass().getClassLoader(),
+									new Class<?>[] { Savepoint.class }, this);
+						}
+						return null;
+					}
+				});
+	}
+
+	private PreparedStatement statement(String sql) {
+		final String table = sql.split("[ (]")[2];
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+						if (method.getName().equals("executeBatch")) {
+							calls.add("executeBatch " + table);
+							if (rollupTableMissing && table.equals(AbstractQueryCommand.ROLLUP_TABLE)) {
+								throw new SQLException("relation \"" + table + "\" does not exist");
+							}
+							return new int[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	private static Map<String, Object> row(String user, String layer) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put(OGCServiceParser.DATE_COLUMN, new Date());
+		row.put(OGCServiceParser.USER_COLUMN, user);
+		row.put(OGCServiceParser.SERVICE_COLUMN, "WMS");
+		row.put(OGCServiceParser.LAYER_COLUMN, layer);
+		row.put(OGCServiceParser.REQUEST_COLUMN, "getmap");
+		row.put(OGCServiceParser.ORG_COLUMN, "c2c");
+		row.put(OGCServiceParser.SECROLE_COLUMN, "ROLE_USER");
+		return row;
+	}
+
+	private InsertCommand command(boolean rollup) {
+		InsertCommand cmd = new InsertCommand();
+		cmd.setConnection(connection());
+		cmd.setRows(Arrays.asList(row("user1", "layer1"), row("user2", "layer1")));
+		cmd.setRollup(rollup);
+		return cmd;
+	}
+
+	@Test
+	public void testLogsWithoutRollup() throws Exception {
+		InsertCommand cmd = command(false);
+		cmd.execute();
+
+		assertEquals(Arrays.asList("setAutoCommit", "executeBatch ogcstatistics.ogc_services_log", "commit",
+				"setAutoCommit"), calls);
+		assertNull(cmd.getRollupFailure());
+	}
+
+	@Test
+	public void testLogsWithRollup() throws Exception {
+		InsertCommand cmd = command(true);
+		cmd.execute();
+
+		assertEquals(Arrays.asList("setAutoCommit", "executeBatch ogcstatistics.ogc_services_log", "setSavepoint",
+				"executeBatch " + AbstractQueryCommand.ROLLUP_TABLE, "commit", "setAutoCommit"), calls);
+		assertNull(cmd.getRollupFailure());
+	}
+
+	/**
+	 * The logs are committed even if the rollup table is missing
+	 */
+	@Test
+	public void testLogsKeptIfRollupFails() throws Exception {
+		rollupTableMissing = true;
+		InsertCommand cmd = command(true);
+		cmd.execute();
+
+		assertEquals(Arrays.asList("setAutoCommit", "executeBatch ogcstatistics.ogc_services_log", "setSavepoint",
+				"executeBatch " + AbstractQueryCommand.ROLLUP_TABLE, "rollback", "commit", "setAutoCommit"), calls);
+		assertNotNull(cmd.getRollupFailure());
+	}
+}
@@ -0,0 +1,179 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.net.URLDecoder;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link OGCServiceParser} with the parser it replaced (URL
+ * decoding and upper casing the whole request, then searching each keyword),
+ * on a corpus of messages as logged by the security proxy.
+ *
+ * Run with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.georchestra.ogcservstatistics.log4j.OGCServiceParserBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OGCServiceParserBenchmark {
+
+	private static final String[] REQUESTS = {
+		"http://localhost:8380/geoserver/wms?SERVICE=WMS&VERSION=1.3.0&REQUEST=GetMap&FORMAT=image%2Fpng&TRANSPARENT=true&LAYERS=topp%3Astates%2Ctiger%3Apoi&STYLES=&CRS=EPSG%3A3857&WIDTH=256&HEIGHT=256&BBOX=-10018754.17%2C5009377.08%2C-7514065.62%2C7514065.62",
+		"http://localhost:8380/geoserver/ows?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetFeatureInfo&LAYERS=topp:states&QUERY_LAYERS=topp:states&STYLES=&BBOX=-125,24,-66,50&FEATURE_COUNT=10&HEIGHT=550&WIDTH=1100&FORMAT=image/png&INFO_FORMAT=application/vnd.ogc.gml&SRS=EPSG:4326&X=550&Y=275",
+		"http://localhost:8380/geoserver/wfs?service=WFS&version=1.1.0&request=GetFeature&typeName=tiger:roads&outputFormat=application/json&maxFeatures=50",
+		"http://localhost:8380/geoserver/wfs?SERVICE=WFS&VERSION=1.0.0&REQUEST=GetFeature&TYPENAME=topp:states&FILTER=<Filter><PropertyIsEqualTo><PropertyName>STATE_NAME</PropertyName><Literal>Texas</Literal></PropertyIsEqualTo></Filter>",
+		"http://localhost:8380/geoserver/gwc/service/wmts?SERVICE=WMTS&REQUEST=GetTile&VERSION=1.0.0&LAYER=ign:ortho&STYLE=normal&TILEMATRIXSET=PM&TILEMATRIX=14&TILEROW=5806&TILECOL=8282&FORMAT=image/jpeg",
+		"http://localhost:8380/geoserver/ows?SERVICE=WCS&VERSION=2.0.1&REQUEST=GetCoverage&COVERAGEID=nurc__mosaic&FORMAT=image/tiff&SUBSET=Long(5,10)&SUBSET=Lat(40,45)",
+		"http://localhost:8380/geoserver/wms?REQUEST=GetLegendGraphic&VERSION=1.0.0&FORMAT=image/png&WIDTH=20&HEIGHT=20&LAYER=topp:states",
+		"http://localhost:8380/geoserver/ows?SERVICE=WMS&REQUEST=GetCapabilities&VERSION=1.3.0",
+		"http://localhost:8280/geonetwork/srv/eng/q?_content_type=json&bucket=s101&facet.q=&fast=index&from=1&resultType=details&sortBy=relevance&to=20",
+		"http://localhost:8280/mapfishapp/ws/wmc/?_dc=1520000000000"
+	};
+
+	private String[] messages;
+
+	@Setup
+	public void setUp() {
+		messages = new String[REQUESTS.length];
+		for (int i = 0; i < REQUESTS.length; i++) {
+			messages[i] = "testuser|2018/03/02 10:45:12|" + REQUESTS[i] + "|psc|ROLE_USER,ROLE_GN_EDITOR";
+		}
+	}
+
+	@Benchmark
+	public void legacyParseLog(Blackhole blackhole) throws Exception {
+		for (String message : messages) {
+			blackhole.consume(LegacyParser.parseLog(message));
+		}
+	}
+
+	@Benchmark
+	public void parseLog(Blackhole blackhole) throws Exception {
+		for (String message : messages) {
+			blackhole.consume(OGCServiceParser.parseLog(message));
+		}
+	}
+
+	/**
+	 * OGCServiceParser.parseLog, before the single pass scanner (the
+	 * operation and layer lists are unchanged)
+	 */
+	private static final class LegacyParser {
+
+		private static final String[] SERVICE_TYPE_PATTERNS = {
+			"SERVICE=WFS", "SERVICE=WCS", "SERVICE=WMS", "SERVICE=WMTS"
+		};
+		private static final String[] OPERATION_NAME_PATTERNS = {
+			"REQUEST=GETCAPABILITIES", "REQUEST=GETMAP", "REQUEST=GETLEGENDGRAPHIC",
+			"REQUEST=GETFEATUREINFO", "REQUEST=DESCRIBELAYER", "REQUEST=GETFEATURE",
+			"REQUEST=DESCRIBEFEATURETYPE", "REQUEST=GETCOVERAGE", "REQUEST=DESCRIBECOVERAGE",
+			"REQUEST=GETTILE", "REQUEST=GETSTYLES", "REQUEST=GETPROPERTYVALUE",
+			"REQUEST=LOCKFEATURE", "REQUEST=GETFEATUREWITHLOCK", "REQUEST=LISTSTOREDQUERIES",
+			"REQUEST=DESCRIBESTOREDQUERIES", "REQUEST=CREATESTOREDQUERY", "REQUEST=DROPSTOREDQUERY"
+		};
+		private static final String[] LAYER_KEYWORD = {
+			"LAYERS=", "LAYER=", "TYPENAME=", "QUERY_LAYERS=", "COVERAGEID="
+		};
+		private static final char[] DELIMITER = { '&', ' ', '\r', '\t', '>' };
+		// not thread safe, the benchmark runs a single thread
+		private static final DateFormat DATE_FORMAT = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT);
+
+		static {
+			Arrays.sort(DELIMITER);
+		}
+
+		static List<Map<String, Object>> parseLog(final String message) throws Exception {
+			List<Map<String, Object>> logList = new LinkedList<Map<String, Object>>();
+			String[] splittedMessage = message.split("[" + OGCServiceMessageFormatter.SEPARATOR + "]");
+
+			String request = URLDecoder.decode(splittedMessage[2], "UTF-8").toUpperCase();
+			String service = "";
+			for (String pattern : SERVICE_TYPE_PATTERNS) {
+				if (request.contains(pattern)) {
+					service = pattern.substring("SERVICE=".length());
+					break;
+				}
+			}
+			if ("".equals(service) && request.contains("GETLEGENDGRAPHIC")) {
+				service = "WMS";
+			}
+			String ogcReq = "";
+			for (String pattern : OPERATION_NAME_PATTERNS) {
+				if (request.contains(pattern)) {
+					ogcReq = pattern.substring("REQUEST=".length()).toLowerCase();
+					break;
+				}
+			}
+			if ("".equals(service)) {
+				return logList;
+			}
+			Date date = DATE_FORMAT.parse(splittedMessage[1]);
+			String org = (splittedMessage.length == 5) ? splittedMessage[3] : "";
+			String roles = (splittedMessage.length == 5) ? splittedMessage[4] : "";
+
+			List<String> layerList = Arrays.asList(new String[] { "" });
+			for (String layerKeyword : LAYER_KEYWORD) {
+				if (request.contains(layerKeyword)) {
+					String layers = request.substring(request.indexOf(layerKeyword) + layerKeyword.length());
+					int end = layers.length();
+					for (int i = 0; i < layers.length(); i++) {
+						if (Arrays.binarySearch(DELIMITER, layers.charAt(i)) >= 0) {
+							end = i;
+							break;
+						}
+					}
+					layerList = new LinkedList<String>();
+					for (String layer : layers.substring(0, end).split(",")) {
+						layerList.add(layer.replace('\"', ' ').trim());
+					}
+				}
+			}
+			for (String layer : layerList) {
+				Map<String, Object> log = new HashMap<String, Object>(6);
+				log.put(OGCServiceParser.USER_COLUMN, splittedMessage[0]);
+				log.put(OGCServiceParser.DATE_COLUMN, date);
+				log.put(OGCServiceParser.SERVICE_COLUMN, service);
+				log.put(OGCServiceParser.LAYER_COLUMN, layer.toLowerCase());
+				log.put(OGCServiceParser.REQUEST_COLUMN, ogcReq);
+				log.put(OGCServiceParser.ORG_COLUMN, org);
+				log.put(OGCServiceParser.SECROLE_COLUMN, roles);
+				logList.add(log);
+			}
+			return logList;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(OGCServiceParserBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -3,8 +3,11 @@ package org.georchestra.ogcservstatistics.log4j;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -69,4 +72,76 @@ public class OGCServiceParserTest {
 		assertEquals("", logEntries.get(0).get("layer"));
 	}
 
+	@Test
+	public void parseGetFeatureWithLock() throws Exception {
+		String REQUEST = "anonymousUser|2013/12/18 12:37:00|http://localhost/geoserver/wfs?SERVICE=WFS&REQUEST=GetFeatureWithLock&TYPENAME=topp:states";
+		List<Map<String, Object>> logEntries = OGCServiceParser.parseLog(REQUEST);
+		assertEquals(1, logEntries.size());
+		assertEquals("WFS", logEntries.get(0).get("service"));
+		assertEquals("getfeaturewithlock", logEntries.get(0).get("request"));
+		assertEquals("topp:states", logEntries.get(0).get("layer"));
+	}
+
+	@Test
+	public void parseGetFeatureInfoQueryLayers() throws Exception {
+		String REQUEST = "testadmin|2013/12/18 12:37:00|http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetFeatureInfo&LAYERS=a,b&QUERY_LAYERS=b&X=1|psc|ROLE_ADMINISTRATOR";
+		List<Map<String, Object>> logEntries = OGCServiceParser.parseLog(REQUEST);
+		assertEquals(1, logEntries.size());
+		assertEquals("getfeatureinfo", logEntries.get(0).get("request"));
+		assertEquals("b", logEntries.get(0).get("layer"));
+		assertEquals("testadmin", logEntries.get(0).get("user_name"));
+		assertEquals("psc", logEntries.get(0).get("org"));
+		assertEquals("ROLE_ADMINISTRATOR", logEntries.get(0).get("roles"));
+	}
+
+	@Test
+	public void parseEncodedRequest() throws Exception {
+		String REQUEST = "anonymousUser|2013/12/18 12:37:00|http://localhost/geoserver/wfs?service=wfs&request=GetFeature&typeName=%22topp%3Astates%22,tiger%3Aroads&FILTER=%3CFilter%3E";
+		List<Map<String, Object>> logEntries = OGCServiceParser.parseLog(REQUEST);
+		assertEquals(2, logEntries.size());
+		assertEquals("getfeature", logEntries.get(0).get("request"));
+		assertEquals("topp:states", logEntries.get(0).get("layer"));
+		assertEquals("tiger:roads", logEntries.get(1).get("layer"));
+	}
+
+	@Test
+	public void parseGetLegendGraphicWithoutService() throws Exception {
+		String REQUEST = "anonymousUser|2013/12/18 12:37:00|http://localhost/geoserver/wms?REQUEST=GetLegendGraphic&LAYER=topp:states&FORMAT=image/png";
+		List<Map<String, Object>> logEntries = OGCServiceParser.parseLog(REQUEST);
+		assertEquals(1, logEntries.size());
+		assertEquals("WMS", logEntries.get(0).get("service"));
+		assertEquals("getlegendgraphic", logEntries.get(0).get("request"));
+		assertEquals("topp:states", logEntries.get(0).get("layer"));
+	}
+
+	@Test
+	public void parseFromSeveralThreads() throws Exception {
+		final String REQUEST = "anonymousUser|2013/12/18 12:37:00|http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetMap&LAYERS=a,b";
+		final Date expected = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT).parse("2013/12/18 12:37:00");
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 1000; j++) {
+							List<Map<String, Object>> logEntries = OGCServiceParser.parseLog(REQUEST);
+							if (logEntries.size() != 2 || !expected.equals(logEntries.get(1).get("date"))) {
+								failures.incrementAndGet();
+							}
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, failures.get());
+	}
+
 }
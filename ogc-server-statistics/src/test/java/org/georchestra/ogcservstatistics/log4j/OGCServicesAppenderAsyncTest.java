@@ -0,0 +1,204 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the background writer of the {@link OGCServicesAppender}, the rows
+ * being collected instead of inserted in the database.
+ */
+public class OGCServicesAppenderAsyncTest {
+
+	private static final String REQUEST = "http://www.someserver.com/geoserver/wms?SERVICE=WMS&LAYERS=fond_gip&VERSION=1.1.1&FORMAT=image%2Fpng&REQUEST=GetMap&SRS=EPSG%3A2154&BBOX=358976,6395407,430656,6467087&WIDTH=512&HEIGHT=512";
+
+	/**
+	 * Collects the inserted batches, the first insertion waiting until the
+	 * writer is released.
+	 */
+	private static class TestAppender extends OGCServicesAppender {
+
+		final BlockingQueue<Integer> batches = new LinkedBlockingQueue<Integer>();
+		final CountDownLatch firstInsertStarted = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+
+		TestAppender(int queueSize, int batchSize, long flushInterval) {
+			setActivated(true);
+			setAsynchronous(true);
+			setQueueSize(queueSize);
+			setBatchSize(batchSize);
+			setFlushInterval(flushInterval);
+		}
+
+		@Override
+		protected void insert(List<Map<String, Object>> ogcServiceRecords) {
+			firstInsertStarted.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			batches.add(ogcServiceRecords.size());
+		}
+
+		void log(int count) {
+			for (int i = 0; i < count; i++) {
+				doAppend(new LoggingEvent(Logger.class.getName(), Logger.getLogger(OGCServicesAppenderAsyncTest.class),
+						Level.INFO, OGCServiceMessageFormatter.format("user" + i, REQUEST, "c2c", new String[] {}), null));
+			}
+		}
+
+		/**
+		 * Blocks the writer in the insertion of the first message.
+		 */
+		void blockWriter() throws InterruptedException {
+			log(1);
+			assertTrue(firstInsertStarted.await(5, TimeUnit.SECONDS));
+		}
+
+		List<Integer> insertedBatches() {
+			List<Integer> sizes = new ArrayList<Integer>();
+			batches.drainTo(sizes);
+			return sizes;
+		}
+	}
+
+	private TestAppender appender;
+
+	@After
+	public void tearDown() {
+		if (appender != null) {
+			appender.released.countDown();
+			appender.close();
+		}
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		appender = new TestAppender(100, 4, 100);
+		appender.startWriter();
+		appender.blockWriter();
+		appender.log(10);
+		appender.released.countDown();
+		appender.close();
+
+		assertEquals(Arrays.asList(1, 4, 4, 2), appender.insertedBatches());
+		assertEquals(0, appender.getDroppedMessages());
+	}
+
+	@Test
+	public void testFlushInterval() throws Exception {
+		appender = new TestAppender(100, 100, 500);
+		appender.released.countDown();
+		appender.startWriter();
+
+		// written together, once the flush interval has elapsed, without
+		// waiting for a full batch
+		long start = System.currentTimeMillis();
+		appender.log(1);
+		Thread.sleep(100);
+		appender.log(1);
+		Integer batch = appender.batches.poll(5, TimeUnit.SECONDS);
+		assertNotNull(batch);
+		assertEquals(2, batch.intValue());
+		assertTrue(System.currentTimeMillis() - start >= 400);
+		assertNull(appender.batches.poll(700, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testDropWhenFull() throws Exception {
+		appender = new TestAppender(2, 100, 100);
+		appender.startWriter();
+		appender.blockWriter();
+
+		appender.log(5);
+		assertEquals(3, appender.getDroppedMessages());
+
+		appender.released.countDown();
+		appender.close();
+		assertEquals(Arrays.asList(1, 2), appender.insertedBatches());
+	}
+
+	@Test
+	public void testBlockWhenFull() throws Exception {
+		appender = new TestAppender(2, 100, 100);
+		appender.setBlockWhenFull(true);
+		appender.startWriter();
+		appender.blockWriter();
+
+		Thread logging = new Thread() {
+			@Override
+			public void run() {
+				appender.log(5);
+			}
+		};
+		logging.start();
+		logging.join(500);
+		assertTrue("the logging thread waits for room in the queue", logging.isAlive());
+
+		appender.released.countDown();
+		logging.join(5000);
+		appender.close();
+		int inserted = 0;
+		for (Integer batch : appender.insertedBatches()) {
+			inserted += batch;
+		}
+		assertEquals(6, inserted);
+		assertEquals(0, appender.getDroppedMessages());
+	}
+
+	@Test
+	public void testDrainedByBatchesOnClose() throws Exception {
+		appender = new TestAppender(1000, 5, 100);
+		appender.startWriter();
+		appender.blockWriter();
+		appender.log(100);
+
+		Thread closing = new Thread() {
+			@Override
+			public void run() {
+				appender.close();
+			}
+		};
+		closing.start();
+		// the writer is released once the appender is being closed
+		Thread.sleep(200);
+		appender.released.countDown();
+		closing.join(5000);
+
+		List<Integer> batches = appender.insertedBatches();
+		assertEquals(1, batches.get(0).intValue());
+		assertEquals(Collections.nCopies(20, 5), batches.subList(1, batches.size()));
+	}
+
+	@Test
+	public void testCloseTimeout() throws Exception {
+		appender = new TestAppender(100, 100, 100);
+		appender.setCloseTimeout(200);
+		appender.startWriter();
+		appender.blockWriter();
+		appender.log(10);
+
+		long start = System.currentTimeMillis();
+		appender.close();
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(10, appender.getDroppedMessages());
+	}
+}
@@ -56,6 +56,7 @@ public class OGCServicesAppenderTest {
 			Connection connection = DataServicesConfiguration.getInstance().getConnection();
 			cmd.setConnection(connection);
 			cmd.execute();
+			connection.close();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
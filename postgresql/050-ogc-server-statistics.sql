@@ -19,6 +19,22 @@ CREATE TABLE ogc_services_log(
   roles text[]
 );
 
+-- Daily rollup of ogc_services_log, maintained by the OGCServicesAppender along
+-- with the raw logs, and read by the statistics queries
+CREATE TABLE ogc_services_log_daily(
+  day date NOT NULL,
+  user_name character varying(255) NOT NULL DEFAULT '',
+  org character varying(255) NOT NULL DEFAULT '',
+  service character varying(5) NOT NULL DEFAULT '',
+  layer character varying(255) NOT NULL DEFAULT '',
+  request character varying(20) NOT NULL DEFAULT '',
+  -- the NULL columns of the logs (user_name 1, org 2, service 4, layer 8,
+  -- request 16), which hold '' in this table
+  null_columns smallint NOT NULL DEFAULT 0,
+  connections bigint NOT NULL DEFAULT 0,
+  PRIMARY KEY (day, layer, user_name, org, service, request, null_columns)
+);
+
 -- Return name of table that correspond to specified date, also create table if it does
 -- not exists and indexes on table of previous month
 CREATE OR REPLACE FUNCTION get_partition_table(my_date timestamp without time zone)
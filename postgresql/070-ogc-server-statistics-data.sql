@@ -4692,3 +4692,13 @@ INSERT INTO ogc_services_log(date, user_name, service, layer, id, request, org,
 INSERT INTO ogc_services_log(date, user_name, service, layer, id, request, org, roles) VALUES ('2017-10-31 09:16:10.848335'::timestamp without time zone + (NOW() - '2017-10-31 10:35:36'::timestamp without time zone),'anonymousUser',  'WMS', 'fond_gip', 2783, 'getmap', '', NULL);
 INSERT INTO ogc_services_log(date, user_name, service, layer, id, request, org, roles) VALUES ('2017-10-31 09:20:24.999977'::timestamp without time zone + (NOW() - '2017-10-31 10:35:36'::timestamp without time zone),'anonymousUser',  'WMS', 'fond_gip', 3243, 'getmap', '', NULL);
 UPDATE  ogc_services_log SET user_name = 'testuser', roles = '{ROLE_GN_ADMIN,ROLE_CMS_ADMIN,ROLE_SUPERUSER,ROLE_SP_URBANISME,ROLE_ADMINISTRATOR}' WHERE id < 2000;
+
+-- Fills the daily rollup from the raw logs
+INSERT INTO ogc_services_log_daily(day, user_name, org, service, layer, request, null_columns, connections)
+  SELECT date::date, coalesce(user_name, ''), coalesce(org, ''), coalesce(service, ''), coalesce(layer, ''), coalesce(request, ''),
+    (CASE WHEN user_name IS NULL THEN 1 ELSE 0 END) + (CASE WHEN org IS NULL THEN 2 ELSE 0 END)
+      + (CASE WHEN service IS NULL THEN 4 ELSE 0 END) + (CASE WHEN layer IS NULL THEN 8 ELSE 0 END)
+      + (CASE WHEN request IS NULL THEN 16 ELSE 0 END),
+    count(*)
+  FROM ogc_services_log
+  GROUP BY 1, 2, 3, 4, 5, 6, 7;
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Non-blocking counterpart of the {@link Proxy} request handling.
+ * <p>
+ * The request to the downstream server is sent by a non-blocking http client,
+ * and its response is streamed back to the client using the Servlet 3.1 async
+ * I/O, so that no servlet thread is held while waiting for (or transferring)
+ * large responses, such as WFS GetFeature or WCS GetCoverage downloads.
+ * </p>
+ * <p>
+ * The downstream connection is suspended whenever the client cannot keep up,
+ * and resumed once the servlet output stream is writable again.
+ * </p>
+ * <p>
+ * Only the requests without body are handled here: the servlet input stream
+ * is blocking, and reading it from the I/O reactor thread would stall all the
+ * other connections while a client uploads slowly.
+ * </p>
+ *
+ * The request headers, permissions and statistics are handled by the
+ * {@link Proxy} before handing the request over, the response headers are
+ * copied using the same {@link HeadersManagementStrategy}.
+ */
+public class AsyncProxy implements Closeable {
+    protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
+
+    private final Proxy proxy;
+    private final CloseableHttpAsyncClient httpClient;
+
+    public AsyncProxy(Proxy proxy, CloseableHttpAsyncClient httpClient) {
+        this.proxy = proxy;
+        this.httpClient = httpClient;
+    }
+
+    public void start() {
+        httpClient.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    /**
+     * Sends the already configured proxying request and streams the response
+     * back asynchronously. The method returns immediately, the servlet
+     * request being put in asynchronous mode.
+     *
+     * @param request the original request
+     * @param finalResponse the servlet response
+     * @param proxyingRequest the request to the downstream server, headers
+     *            already set
+     * @param sURL the url to proxify onto
+     * @param call the metrics of the request, ended once the response has
+     *            been streamed
+     */
+    public void handleRequest(HttpServletRequest request, HttpServletResponse finalResponse,
+            HttpRequestBase proxyingRequest, String sURL, ProxyMetrics.Call call) throws IOException {
+        final AsyncContext asyncContext = request.startAsync(request, finalResponse);
+        // downloads may last for a long time, stalled connections are
+        // detected by the http client socket timeout instead
+        asyncContext.setTimeout(0);
+
+        final ProxyResponseConsumer consumer = new ProxyResponseConsumer(request, finalResponse, sURL,
+                asyncContext, call);
+        finalResponse.getOutputStream().setWriteListener(consumer);
+
+        final Future<Void> future = httpClient.execute(HttpAsyncMethods.create(proxyingRequest), consumer,
+                new FutureCallback<Void>() {
+                    @Override
+                    public void completed(Void result) {
+                        consumer.complete();
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        // connection problem with the host
+                        logger.error("Exception occured when trying to connect to the remote host: ", e);
+                        consumer.call.failed();
+                        consumer.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        consumer.complete();
+                    }
+                });
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                logger.error("Timeout while proxying request to " + proxyingRequestURI(event));
+                future.cancel(true);
+                consumer.fail(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                // most likely the client went away, no need to go on
+                future.cancel(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+
+            private String proxyingRequestURI(AsyncEvent event) {
+                return ((HttpServletRequest) event.getSuppliedRequest()).getRequestURI();
+            }
+        });
+    }
+
+    /**
+     * Streams the downstream response onto the servlet output stream,
+     * following the servlet non-blocking write readiness. Package private to
+     * allow unit test to drive it.
+     */
+    class ProxyResponseConsumer extends AbstractAsyncResponseConsumer<Void> implements WriteListener {
+
+        private final HttpServletRequest request;
+        private final HttpServletResponse finalResponse;
+        private final String sURL;
+        private final AsyncContext asyncContext;
+        private final ProxyMetrics.Call call;
+
+        private final byte[] buf = proxy.getBufferPool().acquire();
+        private final ByteBuffer buffer = ByteBuffer.wrap(buf);
+        private boolean bufferReleased = false;
+
+        private ServletOutputStream output;
+        private volatile IOControl ioControl;
+        private boolean discardContent = false;
+        private boolean completed = false;
+
+        /** bytes kept aside until the charset has been detected */
+        private byte[] prefix;
+        /** end of the content, waiting for the output to be ready */
+        private byte[] pending;
+        private boolean completeRequested = false;
+        private int prefixLength;
+        private String contentType;
+        private String contentEncoding;
+
+        ProxyResponseConsumer(HttpServletRequest request, HttpServletResponse finalResponse, String sURL,
+                AsyncContext asyncContext, ProxyMetrics.Call call) {
+            this.request = request;
+            this.finalResponse = finalResponse;
+            this.sURL = sURL;
+            this.asyncContext = asyncContext;
+            this.call = call;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws IOException {
+            call.responseReceived(response.getStatusLine().getStatusCode());
+            if (!proxy.prepareFinalResponse(request, finalResponse, response, sURL)) {
+                discardContent = true;
+                return;
+            }
+            finalResponse.setStatus(response.getStatusLine().getStatusCode());
+            output = finalResponse.getOutputStream();
+
+            Header contentTypeHeader = response.getFirstHeader("Content-Type");
+            if (contentTypeHeader != null) {
+                contentType = contentTypeHeader.getValue();
+                logger.debug("content-type detected: " + contentType);
+            }
+            if (proxy.isCharsetRequiredForContentType(contentType) && !contentType.toLowerCase().contains("charset")) {
+                contentEncoding = proxy.getContentEncoding(response.getHeaders("Content-Encoding"));
+                if (contentEncoding == null) {
+                    prefix = new byte[Proxy.CHARSET_PREFIX_LENGTH];
+                } else if (proxy.isInflatable(contentEncoding)) {
+                    // compressed content is forwarded as is, only its
+                    // beginning is inflated to find the charset
+                    prefix = new byte[XmlEncodingScanner.COMPRESSED_PREFIX_LENGTH];
+                } else {
+                    proxy.setResponseCharset(finalResponse, contentType, proxy.guessCharset(request));
+                }
+            }
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            this.ioControl = ioctrl;
+            if (discardContent) {
+                buffer.clear();
+                while (decoder.read(buffer) > 0) {
+                    buffer.clear();
+                }
+                return;
+            }
+            while (output.isReady()) {
+                buffer.clear();
+                int len = decoder.read(buffer);
+                if (len <= 0) {
+                    return;
+                }
+                write(buf, len);
+            }
+            // the client is not able to receive more data for now, stop
+            // reading from the downstream server until onWritePossible()
+            ioctrl.suspendInput();
+            if (output.isReady()) {
+                ioctrl.requestInput();
+            }
+        }
+
+        private void write(byte[] buf, int len) throws IOException {
+            call.addBytesOut(len);
+            if (prefix == null) {
+                output.write(buf, 0, len);
+                return;
+            }
+            int copied = Math.min(len, prefix.length - prefixLength);
+            System.arraycopy(buf, 0, prefix, prefixLength, copied);
+            prefixLength += copied;
+            if (prefixLength == prefix.length) {
+                // a single write, as the output may not be ready for a second
+                // one
+                output.write(prefixContent(buf, copied, len - copied));
+            }
+        }
+
+        /**
+         * Detects the charset from the beginning of the content.
+         *
+         * @return the beginning of the content along with the remaining bytes
+         *         of the current chunk
+         */
+        private byte[] prefixContent(byte[] buf, int offset, int len) {
+            String charset = (contentEncoding == null) ? XmlEncodingScanner.scan(prefix, 0, prefixLength)
+                    : XmlEncodingScanner.scanCompressed(prefix, 0, prefixLength, contentEncoding);
+            if (charset == null) {
+                charset = proxy.guessCharset(request);
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("found charset: " + charset);
+            }
+            proxy.setResponseCharset(finalResponse, contentType, charset);
+
+            byte[] content = new byte[prefixLength + len];
+            System.arraycopy(prefix, 0, content, 0, prefixLength);
+            System.arraycopy(buf, offset, content, prefixLength, len);
+            prefix = null;
+            return content;
+        }
+
+        @Override
+        protected Void buildResult(HttpContext context) throws Exception {
+            if (prefix != null) {
+                // the content is shorter than the charset detection prefix,
+                // written now if the output is ready, else by
+                // onWritePossible()
+                synchronized (this) {
+                    pending = prefixContent(buf, 0, 0);
+                }
+                writePending();
+            }
+            return null;
+        }
+
+        /**
+         * @return true if there is nothing left to write
+         */
+        private synchronized boolean writePending() throws IOException {
+            if (pending != null && output.isReady()) {
+                byte[] content = pending;
+                pending = null;
+                output.write(content);
+            }
+            return pending == null;
+        }
+
+        @Override
+        protected synchronized void releaseResources() {
+            if (!bufferReleased) {
+                bufferReleased = true;
+                proxy.getBufferPool().release(buf);
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            if (!writePending()) {
+                return;
+            }
+            synchronized (this) {
+                if (completeRequested) {
+                    complete();
+                    return;
+                }
+            }
+            IOControl ioctrl = this.ioControl;
+            if (ioctrl != null) {
+                ioctrl.requestInput();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.error("Error while writing the proxied response to the client", t);
+            cancel();
+            synchronized (this) {
+                pending = null;
+                complete();
+            }
+        }
+
+        synchronized void fail(int status) {
+            pending = null;
+            if (!completed && !finalResponse.isCommitted()) {
+                try {
+                    finalResponse.sendError(status);
+                } catch (IOException e) {
+                    finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            }
+            complete();
+        }
+
+        /**
+         * Completes the request, once the end of the content has been written.
+         */
+        synchronized void complete() {
+            if (pending != null) {
+                completeRequested = true;
+                return;
+            }
+            if (!completed) {
+                completed = true;
+                call.end();
+                asyncContext.complete();
+            }
+        }
+    }
+}
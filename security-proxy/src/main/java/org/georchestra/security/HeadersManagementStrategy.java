@@ -39,6 +39,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -54,10 +55,17 @@ import org.apache.http.message.BasicHeader;
 import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
 
 /**
  * A strategy for copying headers from the request to the proxied request and
  * the same for the response headers.
+ * <p>
+ * The strategy is shared by all the proxied requests, hence it does not lock:
+ * its configuration is only replaced as a whole by the setters (with
+ * unmodifiable copies), everything else is request-scoped or stored in the
+ * user session.
+ * </p>
  *
  * @author jeichar
  */
@@ -67,18 +75,14 @@ public class HeadersManagementStrategy {
     /**
      * If true (default is false) AcceptEncoding headers are removed from request headers
      */
-    private boolean noAcceptEncoding = false;
-    private List<HeaderProvider> headerProviders = Collections.emptyList();
-    private List<HeaderFilter> filters = new ArrayList<HeaderFilter>(1);
-    private String referer = null;
+    private volatile boolean noAcceptEncoding = false;
+    private volatile List<HeaderProvider> headerProviders = Collections.emptyList();
+    private volatile List<HeaderFilter> filters = Collections.<HeaderFilter> singletonList(new SecurityRequestHeaderFilter());
+    private volatile String referer = null;
 
     @Autowired
     private GeorchestraConfiguration georchestraConfiguration;
 
-    public HeadersManagementStrategy() {
-        filters.add(new SecurityRequestHeaderFilter());
-    }
-
     public void init() {
         if ((georchestraConfiguration != null) && (georchestraConfiguration.activated())) {
             referer = georchestraConfiguration.getProperty("public.host");
@@ -90,7 +94,7 @@ public class HeadersManagementStrategy {
      * headers slightly
      */
     @SuppressWarnings("unchecked")
-    public synchronized void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
+    public void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
                                                      boolean localProxy) {
         Enumeration<String> headerNames = originalRequest.getHeaderNames();
         String headerName = null;
@@ -272,7 +276,7 @@ public class HeadersManagementStrategy {
     /**
      * Copy headers from the proxy response to the final response
      */
-    public synchronized void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse,
+    public void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse,
             Map<String,String> proxyTargets) {
         HttpSession session = originalRequest.getSession(true);
         Collection<String> protectedHeaders = finalResponse.getHeaderNames();
@@ -341,10 +345,14 @@ public class HeadersManagementStrategy {
     }
 
     private void storeJsessionHeader(HttpSession session, String path, String cookie) {
-        Map<String,String> map = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
-        if(map==null) {
-            map = new HashMap<String,String>();
-            session.setAttribute(HeaderNames.JSESSION_ID, map);
+        Map<String,String> map;
+        // concurrent requests of the same user may reach this point together
+        synchronized (WebUtils.getSessionMutex(session)) {
+            map = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
+            if(map==null) {
+                map = new ConcurrentHashMap<String,String>();
+                session.setAttribute(HeaderNames.JSESSION_ID, map);
+            }
         }
         if(path.length() > 0) {
             // clean out session IDs with longer path since this should supercede them
@@ -369,11 +377,11 @@ public class HeadersManagementStrategy {
     }
 
     public void setHeaderProviders(List<HeaderProvider> headerProviders) {
-        this.headerProviders = headerProviders;
+        this.headerProviders = Collections.unmodifiableList(new ArrayList<HeaderProvider>(headerProviders));
     }
 
     public void setFilters(List<HeaderFilter> filters) {
-        this.filters = filters;
+        this.filters = Collections.unmodifiableList(new ArrayList<HeaderFilter>(filters));
     }
 
     public void setReferer(String referer){
@@ -23,8 +23,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,12 +41,12 @@ import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
 import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.ldap.core.ContextMapper;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.ldap.search.FilterBasedLdapUserSearch;
 import org.springframework.security.ldap.search.LdapUserSearch;
 import org.springframework.util.Assert;
 
@@ -58,11 +60,23 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
 
     protected static final Log logger = LogFactory.getLog(LdapUserDetailsRequestHeaderProvider.class.getPackage().getName());
 
+    private static final String[] MEMBER_OF_ATTRIBUTES = { "memberOf" };
+
+    private static final ContextMapper<DirContextOperations> CONTEXT_OPERATIONS_MAPPER = new ContextMapper<DirContextOperations>() {
+        @Override
+        public DirContextOperations mapFromContext(Object ctx) {
+            return (DirContextOperations) ctx;
+        }
+    };
+
     private LdapUserSearch      _userSearch;
     private Map<String, String> _headerMapping;
     private Pattern pattern;
     private String orgSearchBaseDN;
 
+    /** headers of the users, shared by all the sessions */
+    private UserHeadersCache headersCache = new UserHeadersCache();
+
     @Autowired
     private LdapTemplate ldapTemplate;
 
@@ -89,8 +103,7 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
         }
     }
 
-    @SuppressWarnings("unchecked")
-	@Override
+    @Override
     protected Collection<Header> getCustomRequestHeaders(HttpSession session, HttpServletRequest originalRequest) {
 
         // Don't use this provider for trusted request
@@ -102,99 +115,86 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
         if(authentication instanceof AnonymousAuthenticationToken){
             return Collections.emptyList();
         }
-        String username = authentication.getName();
-        DirContextOperations userData;
-
-        Collection<Header> headers = Collections.emptyList();
-
-		synchronized (session) {
-
-            if (session.getAttribute("security-proxy-cached-attrs") != null) {
-				try {
-					headers = (Collection<Header>) session.getAttribute("security-proxy-cached-attrs");
-					String expectedUsername = (String) session.getAttribute("security-proxy-cached-username");
-
-					if (username.equals(expectedUsername)) {
-						return headers;
-					}
-				} catch (Exception e) {
-					logger.info("Unable to lookup cached user's attributes for user :" + username, e);
-				}
-			} else {
-				try {
-					userData = _userSearch.searchForUser(username);
-				} catch (Exception e) {
-					logger.info("Unable to lookup user:" + username, e);
-					return Collections.emptyList();
-				}
-				headers = new ArrayList<Header>();
-				for (Map.Entry<String, String> entry : _headerMapping
-						.entrySet()) {
-					try {
-						Attribute attributes = userData.getAttributes().get(
-								entry.getValue());
-						if (attributes != null) {
-							NamingEnumeration<?> all = attributes.getAll();
-							StringBuilder value = new StringBuilder();
-							while (all.hasMore()) {
-								if (value.length() > 0) {
-									value.append(',');
-								}
-								value.append(all.next());
-							}
-							headers.add(new BasicHeader(entry.getKey(), value
-									.toString()));
-						}
-					} catch (javax.naming.NamingException e) {
-						logger.error("problem adding headers for request:"
-								+ entry.getKey(), e);
-                    }
-                }
+        final String username = authentication.getName();
+        return headersCache.get(username, new Callable<Collection<Header>>() {
+            @Override
+            public Collection<Header> call() throws Exception {
+                return loadHeaders(username);
+            }
+        });
+    }
 
-                // Add user organization
-                String orgCn = null;
-                try {
-                    // Retreive memberOf attributes
-                    String[] attrs = {"memberOf"};
-                    ((FilterBasedLdapUserSearch) this._userSearch).setReturningAttributes(attrs);
-                    userData = _userSearch.searchForUser(username);
-                    Attribute attributes = userData.getAttributes().get("memberOf");
-                    if (attributes != null) {
-                        NamingEnumeration<?> all = attributes.getAll();
-
-                        while (all.hasMore()) {
-                            String memberOf = all.next().toString();
-                            Matcher m = this.pattern.matcher(memberOf);
-                            if (m.matches()) {
-                                orgCn = m.group(2);
-                                headers.add(new BasicHeader("sec-org", orgCn));
-                                break;
-                            }
+    /**
+     * Computes the headers of the user from its LDAP entry and organization.
+     *
+     * @throws Exception if the user cannot be looked up
+     */
+    private Collection<Header> loadHeaders(String username) throws Exception {
+        DirContextOperations userData = _userSearch.searchForUser(username);
+
+        List<Header> headers = new ArrayList<Header>();
+        for (Map.Entry<String, String> entry : _headerMapping.entrySet()) {
+            try {
+                Attribute attributes = userData.getAttributes().get(entry.getValue());
+                if (attributes != null) {
+                    NamingEnumeration<?> all = attributes.getAll();
+                    StringBuilder value = new StringBuilder();
+                    while (all.hasMore()) {
+                        if (value.length() > 0) {
+                            value.append(',');
                         }
+                        value.append(all.next());
                     }
-                } catch (javax.naming.NamingException e) {
-                    logger.error("problem adding headers for request: organization", e);
-                } finally {
-                    // restore standard attribute list
-                    ((FilterBasedLdapUserSearch) this._userSearch).setReturningAttributes(null);
+                    headers.add(new BasicHeader(entry.getKey(), value.toString()));
                 }
+            } catch (javax.naming.NamingException e) {
+                logger.error("problem adding headers for request:" + entry.getKey(), e);
+            }
+        }
 
-                // add sec-orgname
-                if(orgCn != null) {
-                    try {
-                        DirContextOperations ctx = this.ldapTemplate.lookupContext("cn=" + orgCn + "," + this.orgSearchBaseDN);
-                        headers.add(new BasicHeader("sec-orgname", ctx.getStringAttribute("o")));
-                    }catch (RuntimeException ex){
-                        logger.warn("Cannot find associated org with cn " + orgCn);
+        // Add user organization
+        String orgCn = null;
+        try {
+            // Retreive memberOf attributes, looking the user entry up
+            // again rather than altering the returning attributes of
+            // the user search, which is shared by concurrent requests
+            DirContextOperations memberOfData = this.ldapTemplate.lookup(userData.getDn(),
+                    MEMBER_OF_ATTRIBUTES, CONTEXT_OPERATIONS_MAPPER);
+            Attribute attributes = memberOfData.getAttributes().get("memberOf");
+            if (attributes != null) {
+                NamingEnumeration<?> all = attributes.getAll();
+
+                while (all.hasMore()) {
+                    String memberOf = all.next().toString();
+                    Matcher m = this.pattern.matcher(memberOf);
+                    if (m.matches()) {
+                        orgCn = m.group(2);
+                        headers.add(new BasicHeader("sec-org", orgCn));
+                        break;
                     }
                 }
+            }
+        } catch (javax.naming.NamingException e) {
+            logger.error("problem adding headers for request: organization", e);
+        } catch (RuntimeException e) {
+            logger.error("problem adding headers for request: organization", e);
+        }
 
-                logger.info("Storing attributes into session for user :" + username);
-                session.setAttribute("security-proxy-cached-username", username);
-                session.setAttribute("security-proxy-cached-attrs", headers);
-			}
-		}
+        // add sec-orgname
+        if(orgCn != null) {
+            try {
+                DirContextOperations ctx = this.ldapTemplate.lookupContext("cn=" + orgCn + "," + this.orgSearchBaseDN);
+                headers.add(new BasicHeader("sec-orgname", ctx.getStringAttribute("o")));
+            }catch (RuntimeException ex){
+                logger.warn("Cannot find associated org with cn " + orgCn);
+            }
+        }
+
+        logger.info("Caching attributes for user :" + username);
+        return Collections.unmodifiableList(headers);
+    }
 
-        return headers;
+    public void setHeadersCache(UserHeadersCache headersCache) {
+        this.headersCache = headersCache;
     }
 }
@@ -28,8 +28,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.ProxySelector;
 import java.net.URI;
@@ -41,15 +41,13 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
@@ -61,6 +59,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
@@ -76,20 +75,33 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
+import org.georchestra.security.permissions.HostResolver;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.cas.ServiceProperties;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.DefaultRedirectStrategy;
 import org.springframework.security.web.RedirectStrategy;
@@ -98,6 +110,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheStats;
 import com.google.common.io.Closer;
 
 /**
@@ -144,6 +157,10 @@ public class Proxy {
     private String publicHostname = "https://georchestra.mydomain.org";
 
     private Map<String, String> targets = Collections.emptyMap();
+    /**
+     * targets compiled for the lookups made on each request
+     */
+    private volatile TargetRoutes routes = compileRoutes(targets);
     private HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
     private FilterRequestsStrategy strategyForFilteringRequests = new AcceptAllRequests();
     private List<String> requireCharsetContentTypes = Collections.emptyList();
@@ -158,12 +175,99 @@ public class Proxy {
 
     private Integer httpClientTimeout = 300000;
 
+    /**
+     * Connection pool settings of the http clients used to reach the targets.
+     * Each target gets its own pooled client, requests made through the
+     * /proxy/?url= entrypoint share a default one.
+     */
+    private Integer maxConnectionsPerRoute = 50;
+    private Integer maxConnectionsTotal = 500;
+    private Integer idleConnectionTimeout = 30000;
+    private Integer keepAliveTimeout = 60000;
+    private Map<String, Integer> targetsMaxConnections = Collections.emptyMap();
+
+    private final ConcurrentMap<String, CloseableHttpClient> targetHttpClients = new ConcurrentHashMap<String, CloseableHttpClient>();
+    private volatile CloseableHttpClient defaultHttpClient;
+    /** connection pools of the http clients, for the metrics */
+    private final ConcurrentMap<String, ConnPoolControl<HttpRoute>> connectionPools = new ConcurrentHashMap<String, ConnPoolControl<HttpRoute>>();
+
+    /**
+     * Counters of the forwarded requests, exposed on /metrics
+     */
+    private final ProxyMetrics metrics = new ProxyMetrics();
+    /** role required to read the metrics, whatever the security mappings */
+    static final String METRICS_ROLE = "ROLE_SUPERUSER";
+
+    @Autowired(required = false)
+    private UserHeadersCache userHeadersCache;
+
+    /**
+     * If true, the downstream responses are streamed back asynchronously
+     * without holding a servlet thread, see {@link AsyncProxy}.
+     */
+    private boolean asyncMode = false;
+    private AsyncProxy asyncProxy;
+
+    /**
+     * If true, compressed downstream responses are forwarded as is instead of
+     * being inflated by the http client.
+     */
+    private boolean compressedPassThrough = false;
+
     private final static String setCookieHeader = "Set-Cookie";
 
+    /**
+     * Name of the connection pool of the asynchronous http client in the
+     * metrics
+     */
+    private final static String ASYNC_POOL = "_async";
+
+    /**
+     * Buffers used to stream the downstream responses back to the client
+     */
+    private final BufferPool bufferPool = new BufferPool(64 * 1024, 256);
+
+    /**
+     * Number of bytes read before looking for the xml encoding declaration
+     */
+    static final int CHARSET_PREFIX_LENGTH = 200;
+
     public void setHttpClientTimeout(Integer timeout) {
         this.httpClientTimeout = timeout;
     }
 
+    public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsTotal(Integer maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    public void setIdleConnectionTimeout(Integer idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    public void setKeepAliveTimeout(Integer keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public void setAsyncMode(boolean asyncMode) {
+        this.asyncMode = asyncMode;
+    }
+
+    public void setCompressedPassThrough(boolean compressedPassThrough) {
+        this.compressedPassThrough = compressedPassThrough;
+    }
+
+    /**
+     * Overrides the maximum number of pooled connections for some targets,
+     * keys being the target names as defined in the targets map.
+     */
+    public void setTargetsMaxConnections(Map<String, Integer> targetsMaxConnections) {
+        this.targetsMaxConnections = targetsMaxConnections;
+    }
+
     public void setPublicHostname(String publicHostname) {
         this.publicHostname = publicHostname;
     }
@@ -192,6 +296,7 @@ public class Proxy {
             for (String target : pTargets.stringPropertyNames()) {
                 this.targets.put(target, pTargets.getProperty(target));
             }
+            this.routes = compileRoutes(this.targets);
 
             // Configure proxy permissions based on proxy-permissions.xml file in datadir
             String datadirContext = georchestraConfiguration.getContextDataDir();
@@ -238,6 +343,149 @@ public class Proxy {
                 closer.close();
             }
         }
+
+        if (asyncMode) {
+            this.asyncProxy = new AsyncProxy(this, createAsyncHttpClient());
+            this.asyncProxy.start();
+        }
+    }
+
+    /**
+     * Releases the pooled http clients, called by Spring when the context is
+     * shut down.
+     */
+    public void destroy() {
+        for (CloseableHttpClient client : targetHttpClients.values()) {
+            close(client);
+        }
+        targetHttpClients.clear();
+        connectionPools.clear();
+        if (defaultHttpClient != null) {
+            close(defaultHttpClient);
+            defaultHttpClient = null;
+        }
+        if (asyncProxy != null) {
+            close(asyncProxy);
+            asyncProxy = null;
+        }
+    }
+
+    /**
+     * Gets the pooled http client dedicated to the given target, creating it
+     * on first use.
+     *
+     * @param target the target name, or null for requests not targeting a
+     *            security-proxified webapp
+     * @return a long-lived http client, which must not be closed by the caller
+     */
+    private CloseableHttpClient getHttpClient(String target) {
+        if (target == null) {
+            CloseableHttpClient client = defaultHttpClient;
+            if (client == null) {
+                synchronized (this) {
+                    client = defaultHttpClient;
+                    if (client == null) {
+                        PoolingHttpClientConnectionManager connectionManager = createConnectionManager(maxConnectionsPerRoute);
+                        client = createHttpClient(connectionManager);
+                        connectionPools.put(ProxyMetrics.URL_PARAM_TARGET, connectionManager);
+                        defaultHttpClient = client;
+                    }
+                }
+            }
+            return client;
+        }
+        CloseableHttpClient client = targetHttpClients.get(target);
+        if (client == null) {
+            Integer maxConnections = targetsMaxConnections.get(target);
+            PoolingHttpClientConnectionManager connectionManager = createConnectionManager(
+                    maxConnections == null ? maxConnectionsPerRoute : maxConnections);
+            CloseableHttpClient created = createHttpClient(connectionManager);
+            client = targetHttpClients.putIfAbsent(target, created);
+            if (client == null) {
+                client = created;
+                connectionPools.put(target, connectionManager);
+            } else {
+                close(created);
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Default for testing purposes
+     *
+     * @param target the target name, or null for the default http client
+     * @return the connection pool of the http client, null if it has not been
+     *         created yet
+     */
+    ConnPoolControl<HttpRoute> getConnectionPool(String target) {
+        return connectionPools.get((target == null) ? ProxyMetrics.URL_PARAM_TARGET : target);
+    }
+
+    private PoolingHttpClientConnectionManager createConnectionManager(int maxPerRoute) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setMaxTotal(Math.max(maxPerRoute, maxConnectionsTotal));
+        return connectionManager;
+    }
+
+    private CloseableHttpClient createHttpClient(PoolingHttpClientConnectionManager connectionManager) {
+        RequestConfig config = RequestConfig.custom()
+                .setSocketTimeout(this.httpClientTimeout)
+                .setContentCompressionEnabled(!compressedPassThrough)
+                .build();
+
+        return HttpClients.custom()
+                .disableRedirectHandling()
+                // the client is shared between users, cookies are handled
+                // by the HeadersManagementStrategy on a per-request basis
+                .disableCookieManagement()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(createKeepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS)
+                //
+                // Handle http proxy for external request.
+                // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .build();
+    }
+
+    private CloseableHttpAsyncClient createAsyncHttpClient() throws IOReactorException {
+        RequestConfig config = RequestConfig.custom()
+                .setSocketTimeout(this.httpClientTimeout)
+                .setRedirectsEnabled(false)
+                .build();
+
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor());
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(maxConnectionsTotal);
+        connectionPools.put(ASYNC_POOL, connectionManager);
+
+        return HttpAsyncClients.custom()
+                .disableCookieManagement()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(createKeepAliveStrategy())
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .build();
+    }
+
+    /**
+     * Keeps the connections alive as long as the remote server allows it, up
+     * to keepAliveTimeout.
+     */
+    private ConnectionKeepAliveStrategy createKeepAliveStrategy() {
+        final long keepAlive = keepAliveTimeout;
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return (duration > 0) ? Math.min(duration, keepAlive) : keepAlive;
+            }
+        };
     }
 
     /* ---------- start work around for no gateway option -------------- */
@@ -286,6 +534,61 @@ public class Proxy {
         this.servicesMonitoring.checkServices(request, response);
     }
 
+    /**
+     * Entrypoint exposing the proxy metrics (forwarded requests, upstream
+     * latencies, connection pools) in the Prometheus text format.
+     *
+     * The role is checked here as well, as a security-mappings.xml file of the
+     * datadir replaces the default mappings protecting /metrics.
+     *
+     * @param response
+     * @throws IOException
+     */
+    @RequestMapping(value = "/metrics", method = { GET })
+    public void metrics(HttpServletResponse response) throws IOException {
+        if (!hasRole(SecurityContextHolder.getContext().getAuthentication(), METRICS_ROLE)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter writer = response.getWriter();
+        metrics.write(writer);
+
+        Map<String, PoolStats> pools = new HashMap<String, PoolStats>();
+        for (Map.Entry<String, ConnPoolControl<HttpRoute>> pool : connectionPools.entrySet()) {
+            pools.put(pool.getKey(), pool.getValue().getTotalStats());
+        }
+        ProxyMetrics.writePoolStats(writer, pools);
+
+        if (userHeadersCache != null) {
+            CacheStats stats = userHeadersCache.getStats();
+            writer.println("# HELP security_proxy_user_headers_cache_requests_total Lookups of the LDAP user headers cache.");
+            writer.println("# TYPE security_proxy_user_headers_cache_requests_total counter");
+            writer.println("security_proxy_user_headers_cache_requests_total{result=\"hit\"} " + stats.hitCount());
+            writer.println("security_proxy_user_headers_cache_requests_total{result=\"miss\"} " + stats.missCount());
+            writer.println("# HELP security_proxy_user_headers_cache_size Users whose headers are cached.");
+            writer.println("# TYPE security_proxy_user_headers_cache_size gauge");
+            writer.println("security_proxy_user_headers_cache_size " + userHeadersCache.getSize());
+        }
+        writer.flush();
+    }
+
+    ProxyMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static boolean hasRole(Authentication authentication, String role) {
+        if (authentication == null || !authentication.isAuthenticated()) {
+            return false;
+        }
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            if (role.equals(authority.getAuthority())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Entrypoint used for login.
      *
@@ -326,7 +629,7 @@ public class Proxy {
             response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "URL is not allowed.");
             return;
         }
-        handleRequest(request, response, sURL, false);
+        handleRequest(request, response, sURL, null);
     }
 
     /**
@@ -372,16 +675,7 @@ public class Proxy {
      * @throws IOException
      */
     private boolean urlIsProtected(HttpServletRequest request, URL url) throws IOException {
-        if (isSameServer(request, url)) {
-            String requestURI = url.getPath();
-            String[] requestSegments = splitRequestPath(requestURI);
-            for (String target : targets.values()) {
-                if (samePathPrefix(requestSegments, target)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return isSameServer(request, url) && routes.isTargetPath(url.getPath());
     }
 
     /**
@@ -393,42 +687,14 @@ public class Proxy {
      */
     private boolean isSameServer(HttpServletRequest request, URL url) {
         try {
-            return InetAddress.getByName(request.getServerName()).equals(InetAddress.getByName(url.getHost()));
+            HostResolver resolver = HostResolver.getDefault();
+            return resolver.resolveFirst(request.getServerName()).equals(resolver.resolveFirst(url.getHost()));
         } catch (UnknownHostException e) {
             logger.error("Unknown host: " + request.getServerName());
             return false;
         }
     }
 
-    /**
-     * Check if the target url matches a security-proxified target.
-     *
-     * @param requestSegments
-     * @param target
-     * @return true if so, false otherwise.
-     * @throws MalformedURLException
-     */
-    private boolean samePathPrefix(String[] requestSegments, String target) throws MalformedURLException {
-        String[] targetSegments = splitRequestPath(new URL(target).getPath());
-        for (int i = 0; i < targetSegments.length; i++) {
-            String targetSegment = targetSegments[i];
-            if (!targetSegment.equals(requestSegments[i])) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private String[] splitRequestPath(String requestURI) {
-        String[] requestSegments;
-        if (requestURI.charAt(0) == '/') {
-            requestSegments = StringUtils.split(requestURI.substring(1), '/');
-        } else {
-            requestSegments = StringUtils.split(requestURI, '/');
-        }
-        return requestSegments;
-    }
-
     /**
      * Since the URL param can access any url we need to control what it can
      * request so it is not used for nefarious purposes. We are basing the
@@ -517,7 +783,7 @@ public class Proxy {
             }
             if(query != null)
                 sURL += "?" + query;
-            handleRequest(request, response, sURL, true);
+            handleRequest(request, response, sURL, findMatchingTarget(request));
         } catch (IOException e) {
             logger.error("Error connecting to client", e);
         }
@@ -528,64 +794,12 @@ public class Proxy {
     }
 
     private String findTarget(String requestURI) {
-        String[] segments;
-        if (requestURI.charAt(0) == '/') {
-            segments = requestURI.substring(1).split("/");
-        } else {
-            segments = requestURI.split("/");
-        }
-
-        if (segments.length == 0) {
-            return null;
-        }
-        String target = targets.get(segments[0]);
-        if (target == null) {
-            return null;
-        } else {
-            StringBuilder builder = new StringBuilder("/");
-            for (int i = 1; i < segments.length; i++) {
-                String segment = segments[i];
-                builder.append(segment);
-                if (i + 1 < segments.length)
-                    builder.append("/");
-            }
-
-            if (requestURI.endsWith("/") && builder.charAt(builder.length() - 1) != '/') {
-                builder.append('/');
-            }
-
-            return concat(target, builder);
-        }
-    }
-
-    private String concat(String target, StringBuilder builder) {
-        if (target == null) {
-            return null;
-        }
-        String target2 = target;
-        if (target.endsWith("/")) {
-            target2 = target.substring(0, target.length() - 1);
-        }
-        if (builder.charAt(0) != '/') {
-            builder.insert(0, '/');
-        }
-        return target2 + builder;
-
+        return routes.resolve(requestURI);
     }
 
     private String findMatchingTarget(HttpServletRequest request) {
-        String requestURI = buildForwardRequestURL(request);
-        String[] segments = splitRequestPath(requestURI);
-
-        if (segments.length == 0) {
-            return null;
-        }
-
-        if (targets.containsKey(segments[0])) {
-            return segments[0];
-        } else {
-            return null;
-        }
+        TargetRoutes.Route route = routes.match(buildForwardRequestURL(request), true);
+        return (route == null) ? null : route.getName();
     }
 
     /**
@@ -594,22 +808,15 @@ public class Proxy {
      * @param request the original request
      * @param finalResponse the servlet response
      * @param sURL the url to proxify onto
-     * @param localProxy true if the request targets a security-proxyfied webapp (e.g. mapfishapp, ...), false otherwise
+     * @param target the name of the security-proxyfied webapp (e.g. mapfishapp, ...) targeted by the request,
+     *            null if the request does not target one of them
      */
-    private void handleRequest(HttpServletRequest request, HttpServletResponse finalResponse, String sURL, boolean localProxy) {
-        HttpClientBuilder htb = HttpClients.custom().disableRedirectHandling();
-
-        RequestConfig config = RequestConfig.custom().setSocketTimeout(this.httpClientTimeout).build();
-        htb.setDefaultRequestConfig(config);
-
-        //
-        // Handle http proxy for external request.
-        // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
-        htb.setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()));
-        CloseableHttpClient httpclient = htb.build();
+    private void handleRequest(HttpServletRequest request, HttpServletResponse finalResponse, String sURL, String target) {
+        boolean localProxy = (target != null);
+        CloseableHttpClient httpclient = getHttpClient(target);
 
         HttpResponse proxiedResponse = null;
-        int statusCode = 500;
+        ProxyMetrics.Call call = null;
 
         try {
             URL url = null;
@@ -679,47 +886,37 @@ public class Proxy {
                 }
             }
 
-            proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
-            StatusLine statusLine = proxiedResponse.getStatusLine();
-            statusCode = statusLine.getStatusCode();
-            String reasonPhrase = statusLine.getReasonPhrase();
+            call = metrics.start(target);
+            call.addBytesIn(request.getContentLength());
 
-            if (reasonPhrase != null && statusCode >= 400) {
-                if (logger.isWarnEnabled()) {
-                    logger.warn("Downstream server returned a status code which could be an error. "
-                            + "Statuscode: " + statusCode + ", reason: " + reasonPhrase);
-                }
-
-                if (statusCode == 401) {
-                    //
-                    // Handle case of basic authentication.
-                    //
-                    Header authHeader = proxiedResponse.getFirstHeader("WWW-Authenticate");
-                    finalResponse.setHeader("WWW-Authenticate", (authHeader == null) ? "Basic realm=\"Authentication required\"" : authHeader.getValue());
-                }
-
-                // 403 and 404 are handled by specific JSP files provided by the
-                // security-proxy webapp
-                if ((statusCode == 404) || (statusCode == 403)) {
-                    // Hack for GN3.4: to protect against CSRF attacks, a token
-                    // is provided by the xml.info service. Even if the return
-                    // code is a 403, we are interested in getting the
-                    // Set-Cookie value.
-                    if (sURL.contains("/geonetwork/")) {
-                        Header setCookie = extractHeaderSetCookie(proxiedResponse);
-                        if (setCookie != null) {
-                            finalResponse.addHeader(setCookie.getName(), setCookie.getValue());
-                        }
-                    }
-                    finalResponse.sendError(statusCode);
-                    return;
+            // the requests with a body are sent by the blocking client, which
+            // reads the servlet input stream on the request thread
+            if (asyncProxy != null && request.isAsyncSupported()
+                    && !(proxyingRequest instanceof HttpEntityEnclosingRequest)) {
+                // the call is ended once the response has been streamed
+                ProxyMetrics.Call asyncCall = call;
+                call = null;
+                try {
+                    asyncProxy.handleRequest(request, finalResponse, proxyingRequest, sURL, asyncCall);
+                } catch (IOException e) {
+                    asyncCall.end();
+                    throw e;
+                } catch (RuntimeException e) {
+                    asyncCall.end();
+                    throw e;
                 }
+                return;
             }
 
-            headerManagement.copyResponseHeaders(request, request.getRequestURI(), proxiedResponse, finalResponse, this.targets);
-
-            if (statusCode == 302 || statusCode == 301) {
-                adjustLocation(request, proxiedResponse, finalResponse);
+            try {
+                proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
+            } catch (IOException e) {
+                call.failed();
+                throw e;
+            }
+            call.responseReceived(proxiedResponse.getStatusLine().getStatusCode());
+            if (!prepareFinalResponse(request, finalResponse, proxiedResponse, sURL)) {
+                return;
             }
             // get content type
             String contentType = null;
@@ -730,14 +927,18 @@ public class Proxy {
 
             // content type has to be valid
             if (isCharsetRequiredForContentType(contentType)) {
-                doHandleRequestCharsetRequired(request, finalResponse, proxiedResponse, contentType);
+                doHandleRequestCharsetRequired(request, finalResponse, proxiedResponse, contentType, call);
             } else {
                 logger.debug("charset not required for contentType: " + contentType);
-                doHandleRequest(request, finalResponse, proxiedResponse);
+                doHandleRequest(request, finalResponse, proxiedResponse, call);
             }
         } catch (IOException e) {
             // connection problem with the host
             logger.error("Exception occured when trying to connect to the remote host: ", e);
+            if (finalResponse.isCommitted()) {
+                // the response was cut short, its status is sent already
+                return;
+            }
             try {
                 finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             } catch (IOException e2) {
@@ -746,14 +947,74 @@ public class Proxy {
                 finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             }
         } finally {
-            try {
-                httpclient.close();
-            } catch (IOException e) {
-                logger.error("Unable to close the httpclient", e);
+            if (call != null) {
+                call.end();
+            }
+            // gives the connection back to the pool if the response has been
+            // fully consumed, discards it otherwise
+            if (proxiedResponse instanceof Closeable) {
+                IOException exc = close((Closeable) proxiedResponse);
+                if (exc != null) {
+                    logger.error("Unable to close the proxied response", exc);
+                }
             }
         }
     }
 
+    /**
+     * Copies the status and the headers of the downstream response onto the
+     * final response.
+     *
+     * @return false if the final response has already been sent (e.g. 403 and
+     *         404 errors), meaning that the downstream body must not be
+     *         forwarded, true otherwise.
+     */
+    boolean prepareFinalResponse(HttpServletRequest request, HttpServletResponse finalResponse,
+            HttpResponse proxiedResponse, String sURL) throws IOException {
+        StatusLine statusLine = proxiedResponse.getStatusLine();
+        int statusCode = statusLine.getStatusCode();
+        String reasonPhrase = statusLine.getReasonPhrase();
+
+        if (reasonPhrase != null && statusCode >= 400) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Downstream server returned a status code which could be an error. "
+                        + "Statuscode: " + statusCode + ", reason: " + reasonPhrase);
+            }
+
+            if (statusCode == 401) {
+                //
+                // Handle case of basic authentication.
+                //
+                Header authHeader = proxiedResponse.getFirstHeader("WWW-Authenticate");
+                finalResponse.setHeader("WWW-Authenticate", (authHeader == null) ? "Basic realm=\"Authentication required\"" : authHeader.getValue());
+            }
+
+            // 403 and 404 are handled by specific JSP files provided by the
+            // security-proxy webapp
+            if ((statusCode == 404) || (statusCode == 403)) {
+                // Hack for GN3.4: to protect against CSRF attacks, a token
+                // is provided by the xml.info service. Even if the return
+                // code is a 403, we are interested in getting the
+                // Set-Cookie value.
+                if (sURL.contains("/geonetwork/")) {
+                    Header setCookie = extractHeaderSetCookie(proxiedResponse);
+                    if (setCookie != null) {
+                        finalResponse.addHeader(setCookie.getName(), setCookie.getValue());
+                    }
+                }
+                finalResponse.sendError(statusCode);
+                return false;
+            }
+        }
+
+        headerManagement.copyResponseHeaders(request, request.getRequestURI(), proxiedResponse, finalResponse, this.targets);
+
+        if (statusCode == 302 || statusCode == 301) {
+            adjustLocation(request, proxiedResponse, finalResponse);
+        }
+        return true;
+    }
+
     /**
      * Extracts the set-cookie http header from the downstream response.
      *
@@ -784,26 +1045,20 @@ public class Proxy {
         if (logger.isDebugEnabled()) {
             logger.debug("adjustLocation called for request: " + request.getRequestURI());
         }
-        String target = findMatchingTarget(request);
+        TargetRoutes.Route route = routes.match(buildForwardRequestURL(request), true);
 
         if (logger.isDebugEnabled()) {
-            logger.debug("adjustLocation found target: " + target + " for request: " + request.getRequestURI());
+            logger.debug("adjustLocation found target: " + (route == null ? null : route.getName())
+                    + " for request: " + request.getRequestURI());
         }
 
-        if (target == null) {
+        if (route == null || route.getBaseURI() == null) {
             copyLocationHeaders(proxiedResponse, finalResponse);
             return;
         }
 
-        String baseURL = targets.get(target);
-        URI baseURI = null;
-
-        try {
-            baseURI = new URI(baseURL);
-        } catch (URISyntaxException e) {
-            copyLocationHeaders(proxiedResponse, finalResponse);
-            return;
-        }
+        String target = route.getName();
+        URI baseURI = route.getBaseURI();
 
         for (Header locationHeader : proxiedResponse.getHeaders("Location")) {
             if (logger.isDebugEnabled()) {
@@ -839,8 +1094,8 @@ public class Proxy {
     /**
      * Direct copy of response
      */
-    private void doHandleRequest(HttpServletRequest request, HttpServletResponse finalResponse, HttpResponse proxiedResponse)
-            throws IOException {
+    private void doHandleRequest(HttpServletRequest request, HttpServletResponse finalResponse, HttpResponse proxiedResponse,
+            ProxyMetrics.Call call) throws IOException {
 
         org.apache.http.StatusLine statusLine = proxiedResponse.getStatusLine();
 
@@ -849,16 +1104,43 @@ public class Proxy {
         HttpEntity entity = proxiedResponse.getEntity();
         if (entity != null) {
             // Send the Response
+            InputStream streamFromServer = entity.getContent();
             OutputStream outputStream = finalResponse.getOutputStream();
+            byte[] buf = bufferPool.acquire();
             try {
-                entity.writeTo(outputStream);
+                call.addBytesOut(copy(streamFromServer, outputStream, buf, 0));
             } finally {
+                bufferPool.release(buf);
+                IOException exc = close(streamFromServer);
                 outputStream.flush();
                 outputStream.close();
+                if (exc != null) {
+                    logger.error("Error closing streams", exc);
+                }
             }
         }
     }
 
+    /**
+     * Forwards the rest of the stream, the first bytes of the buffer being
+     * written first.
+     *
+     * @param pending the number of bytes already read into the buffer
+     * @return the number of bytes written
+     */
+    private long copy(InputStream from, OutputStream to, byte[] buf, int pending) throws IOException {
+        long count = pending;
+        if (pending > 0) {
+            to.write(buf, 0, pending);
+        }
+        int len;
+        while ((len = from.read(buf)) != -1) {
+            to.write(buf, 0, len);
+            count += len;
+        }
+        return count;
+    }
+
     private URI buildUri(URL url) throws URISyntaxException {
         // Let URI constructor encode Path part
         URI uri = new URI(url.getProtocol(),
@@ -1014,12 +1296,11 @@ public class Proxy {
     /**
      * For certain requests (OGC Web services mainly), the charset is absolutely
      * required. So for certain content types (xml-based normally) this method
-     * is called to detect the charset of the data. This method is a slow way of
-     * transferring data, so data of any significant size should not enter this
-     * method.
+     * is called to detect the charset of the data. Only the first bytes are
+     * inspected, the rest of the data is streamed as is.
      */
     private void doHandleRequestCharsetRequired(HttpServletRequest orignalRequest, HttpServletResponse finalResponse,
-            HttpResponse proxiedResponse, String contentType) {
+            HttpResponse proxiedResponse, String contentType, ProxyMetrics.Call call) {
 
         InputStream streamFromServer = null;
         OutputStream streamToClient = null;
@@ -1046,7 +1327,8 @@ public class Proxy {
              * the charset is appended.
              *
              * /!\ Special case: whenever data are compressed in gzip/deflate
-             * the stream has to be uncompressed and re-compressed
+             * only the first bytes are inflated to find the encoding, the
+             * compressed stream itself is forwarded untouched
              */
 
             boolean isCharsetKnown = proxiedResponse.getEntity().getContentType().getValue().toLowerCase().contains("charset");
@@ -1061,96 +1343,49 @@ public class Proxy {
                 logger.debug("Charset is required so verifying that it has been added to the headers\n" + cskString + "\n" + cEString);
             }
 
-            if (contentEncoding == null || isCharsetKnown) {
-                // A simple stream can do the job for data that is not in
-                // content encoded
-                // but also for data content encoded with a known charset
-                streamFromServer = proxiedResponse.getEntity().getContent();
-                streamToClient = finalResponse.getOutputStream();
-            } else if (!isCharsetKnown && ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding))) {
-                // the charset is unknown and the data are compressed in gzip
-                // we add the gzip wrapper to be able to read/write the stream
-                // content
-                streamFromServer = new GZIPInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new GZIPOutputStream(finalResponse.getOutputStream());
-            } else if ("deflate".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // same but with deflate
-                streamFromServer = new DeflaterInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new DeflaterOutputStream(finalResponse.getOutputStream());
-            } else {
-                doHandleRequest(orignalRequest, finalResponse, proxiedResponse);
+            if (contentEncoding != null && !isCharsetKnown && !isInflatable(contentEncoding)) {
+                doHandleRequest(orignalRequest, finalResponse, proxiedResponse, call);
                 return;
             }
+            // A simple stream can do the job for data that is not in
+            // content encoded, for data content encoded with a known charset
+            // but also for compressed data, which are sent back as is
+            streamFromServer = proxiedResponse.getEntity().getContent();
+            streamToClient = finalResponse.getOutputStream();
 
-            byte[] buf = new byte[1024]; // read maximum 1024 bytes
-            int len; // number of bytes read from the stream
-            boolean first = true; // helps to find the encoding once and only
-                                  // once
-            String s = ""; // piece of file that should contain the encoding
-            while ((len = streamFromServer.read(buf)) > 0) {
-
-                if (first && !isCharsetKnown) {
-                    // charset is unknown try to find it in the file content
-                    for (int i = 0; i < len; i++) {
-                        s += (char) buf[i]; // get the beginning of the file as
-                                            // ASCII
+            byte[] buf = bufferPool.acquire();
+            try {
+                int len = 0; // number of bytes read from the stream
+                if (!isCharsetKnown) {
+                    // charset is unknown try to find it in the file content:
+                    // the beginning of the file has to be long enough to
+                    // contain the encoding
+                    int prefixLength = (contentEncoding == null) ? CHARSET_PREFIX_LENGTH
+                            : XmlEncodingScanner.COMPRESSED_PREFIX_LENGTH;
+                    int read;
+                    while (len < prefixLength && (read = streamFromServer.read(buf, len, buf.length - len)) != -1) {
+                        len += read;
                     }
-                    // s has to be long enough to contain the encoding
-                    if (s.length() > 200) {
-
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("attempting to read charset from: " + s);
-                        }
-                        String charset = getCharset(s); // extract charset
-
-                        if (charset == null) {
-                            if (logger.isTraceEnabled()) {
-                                logger.trace("unable to find charset from raw ASCII data.  Trying to unzip it");
-                            }
+                    // extract charset
+                    String charset = (contentEncoding == null) ? XmlEncodingScanner.scan(buf, 0, len)
+                            : XmlEncodingScanner.scanCompressed(buf, 0, len, contentEncoding);
 
-                            // the charset cannot be found, IE users must be
-                            // warned
-                            // that the request cannot be fulfilled, nothing
-                            // good would happen otherwise
-                        }
-                        if (charset == null) {
-                            String guessedCharset = null;
-                            if (logger.isDebugEnabled()) {
-                                logger.debug("unable to find charset so using the first one from the accept-charset request header");
-                            }
-                            String calculateDefaultCharset = calculateDefaultCharset(orignalRequest);
-                            if (calculateDefaultCharset != null) {
-                                guessedCharset = calculateDefaultCharset;
-                                if (logger.isDebugEnabled()) {
-                                    logger.debug("hopefully the server responded with this charset: " + calculateDefaultCharset);
-                                }
-                            } else {
-                                guessedCharset = defaultCharset;
-                                if (logger.isDebugEnabled()) {
-                                    logger.debug("unable to find charset, so using default:" + defaultCharset);
-                                }
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + guessedCharset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try
-                                           // to do it again
-                            finalResponse.setCharacterEncoding(guessedCharset);
-
-                        } else {
-                            if (logger.isDebugEnabled()) {
-                                logger.debug("found charset: " + charset);
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + charset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try
-                                           // to do it again
-                            finalResponse.setCharacterEncoding(charset);
-                        }
+                    if (charset == null) {
+                        // the charset cannot be found, IE users must be
+                        // warned
+                        // that the request cannot be fulfilled, nothing
+                        // good would happen otherwise
+                        charset = guessCharset(orignalRequest);
+                    } else if (logger.isDebugEnabled()) {
+                        logger.debug("found charset: " + charset);
                     }
+                    setResponseCharset(finalResponse, proxiedResponse.getEntity().getContentType().getValue(), charset);
                 }
 
                 // for everyone, the stream is just forwarded to the client
-                streamToClient.write(buf, 0, len);
+                call.addBytesOut(copy(streamFromServer, streamToClient, buf, len));
+            } finally {
+                bufferPool.release(buf);
             }
 
         } catch (IOException e) {
@@ -1165,6 +1400,36 @@ public class Proxy {
         }
     }
 
+    /**
+     * Guesses the charset of a downstream response which does not declare it,
+     * using the first one from the accept-charset request header or the
+     * default charset.
+     */
+    String guessCharset(HttpServletRequest originalRequest) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("unable to find charset so using the first one from the accept-charset request header");
+        }
+        String calculateDefaultCharset = calculateDefaultCharset(originalRequest);
+        if (calculateDefaultCharset != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("hopefully the server responded with this charset: " + calculateDefaultCharset);
+            }
+            return calculateDefaultCharset;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("unable to find charset, so using default:" + defaultCharset);
+        }
+        return defaultCharset;
+    }
+
+    /**
+     * Appends the charset to the content type of the final response.
+     */
+    void setResponseCharset(HttpServletResponse finalResponse, String contentType, String charset) {
+        finalResponse.setHeader("Content-Type", contentType + ";charset=" + charset);
+        finalResponse.setCharacterEncoding(charset);
+    }
+
     private String calculateDefaultCharset(HttpServletRequest originalRequest) {
         String acceptCharset = originalRequest.getHeader("accept-charset");
 
@@ -1194,35 +1459,6 @@ public class Proxy {
         return null;
     }
 
-    /**
-     * Extract the encoding from a string which is the header node of an xml
-     * file
-     *
-     * @param header
-     *            String that should contain the encoding attribute and its
-     *            value
-     * @return the charset. null if not found
-     */
-    private String getCharset(String header) {
-        Pattern pattern = null;
-        String charset = null;
-        try {
-            // use a regexp but we could also use string functions such as
-            // indexOf...
-            pattern = Pattern.compile("encoding=(['\"])([A-Za-z]([A-Za-z0-9._]|-)*)");
-        } catch (Exception e) {
-            throw new RuntimeException("expression syntax invalid");
-        }
-
-        Matcher matcher = pattern.matcher(header);
-        if (matcher.find()) {
-            String encoding = matcher.group();
-            charset = encoding.split("['\"]")[1];
-        }
-
-        return charset;
-    }
-
     /**
      * Gets the encoding of the content sent by the remote host: extracts the
      * content-encoding header
@@ -1232,7 +1468,7 @@ public class Proxy {
      * @return null if not exists otherwise name of the encoding (gzip,
      *         deflate...)
      */
-    private String getContentEncoding(Header[] headers) {
+    String getContentEncoding(Header[] headers) {
         if (headers == null || headers.length == 0) {
             if (logger.isDebugEnabled()) {
                 logger.debug("No content-encoding header for this request.");
@@ -1253,6 +1489,15 @@ public class Proxy {
         return null;
     }
 
+    /**
+     * @return true if the charset of content compressed with the given content
+     *         encoding can be detected
+     */
+    boolean isInflatable(String contentEncoding) {
+        return "gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)
+                || "deflate".equalsIgnoreCase(contentEncoding);
+    }
+
     /**
      * Check if the content type is accepted by the proxy
      *
@@ -1316,6 +1561,15 @@ public class Proxy {
 
     public void setTargets(Map<String, String> targets) {
         this.targets = targets;
+        this.routes = compileRoutes(targets);
+    }
+
+    private static TargetRoutes compileRoutes(Map<String, String> targets) {
+        try {
+            return new TargetRoutes(targets);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid target url: " + e.getMessage(), e);
+        }
     }
 
     public void setContextpath(String contextpath) {
@@ -1359,4 +1613,8 @@ public class Proxy {
         return proxyPermissions;
     }
 
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
 }
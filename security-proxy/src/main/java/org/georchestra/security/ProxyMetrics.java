@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Counters of the requests forwarded by the {@link Proxy}, per target:
+ * request counts, response status codes, upstream latency histogram, bytes
+ * transferred and in-flight requests. Written in the Prometheus text format by
+ * {@link #write(PrintWriter)}.
+ *
+ * Requests made through the /proxy/?url= entrypoint are accounted for under
+ * the {@link #URL_PARAM_TARGET} target.
+ */
+public class ProxyMetrics {
+
+    public static final String URL_PARAM_TARGET = "_proxy";
+
+    /** upper bounds (ms) of the latency histogram buckets */
+    static final long[] LATENCY_BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final ConcurrentMap<String, TargetMetrics> targets = new ConcurrentHashMap<String, TargetMetrics>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    static class TargetMetrics {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+        /** one more bucket for the latencies above the last bound */
+        final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        final AtomicLong latencySum = new AtomicLong();
+
+        void recordStatus(int status) {
+            AtomicLong count = statuses.get(status);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = statuses.putIfAbsent(status, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        void recordLatency(long millis) {
+            int i = 0;
+            while (i < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[i]) {
+                i++;
+            }
+            latencyBuckets.incrementAndGet(i);
+            latencySum.addAndGet(millis);
+        }
+    }
+
+    /**
+     * A request being forwarded, to be ended exactly once.
+     */
+    public class Call {
+        private final TargetMetrics metrics;
+        private final long start = System.nanoTime();
+        private boolean ended = false;
+
+        Call(TargetMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Records the upstream latency and status, once the response headers
+         * have been received.
+         */
+        public void responseReceived(int status) {
+            metrics.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            metrics.recordStatus(status);
+        }
+
+        /**
+         * The upstream server could not be reached or did not answer.
+         */
+        public void failed() {
+            metrics.failures.incrementAndGet();
+        }
+
+        public void addBytesIn(long count) {
+            if (count > 0) {
+                metrics.bytesIn.addAndGet(count);
+            }
+        }
+
+        public void addBytesOut(long count) {
+            metrics.bytesOut.addAndGet(count);
+        }
+
+        public synchronized void end() {
+            if (!ended) {
+                ended = true;
+                metrics.inFlight.decrementAndGet();
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param target the target name, null for the /proxy/?url= requests
+     * @return the call, which has to be ended
+     */
+    public Call start(String target) {
+        String name = (target == null) ? URL_PARAM_TARGET : target;
+        TargetMetrics metrics = targets.get(name);
+        if (metrics == null) {
+            TargetMetrics created = new TargetMetrics();
+            metrics = targets.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        metrics.requests.incrementAndGet();
+        metrics.inFlight.incrementAndGet();
+        inFlight.incrementAndGet();
+        return new Call(metrics);
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Writes the counters in the Prometheus text exposition format.
+     */
+    public void write(PrintWriter writer) {
+        Map<String, TargetMetrics> sorted = new TreeMap<String, TargetMetrics>(targets);
+
+        writer.println("# HELP security_proxy_in_flight_requests Requests being forwarded.");
+        writer.println("# TYPE security_proxy_in_flight_requests gauge");
+        for (Map.Entry<String, TargetMetrics> e : sorted.entrySet()) {
+            writer.println("security_proxy_in_flight_requests{target=\"" + escape(e.getKey()) + "\"} "
+                    + e.getValue().inFlight.get());
+        }
+
+        writer.println("# HELP security_proxy_requests_total Requests forwarded to the targets.");
+        writer.println("# TYPE security_proxy_requests_total counter");
+        for (Map.Entry<String, TargetMetrics> e : sorted.entrySet()) {
+            writer.println("security_proxy_requests_total{target=\"" + escape(e.getKey()) + "\"} "
+                    + e.getValue().requests.get());
+        }
+
+        writer.println("# HELP security_proxy_failures_total Requests whose target could not be reached.");
+        writer.println("# TYPE security_proxy_failures_total counter");
+        for (Map.Entry<String, TargetMetrics> e : sorted.entrySet()) {
+            writer.println("security_proxy_failures_total{target=\"" + escape(e.getKey()) + "\"} "
+                    + e.getValue().failures.get());
+        }
+
+        writer.println("# HELP security_proxy_responses_total Responses received from the targets, by status code.");
+        writer.println("# TYPE security_proxy_responses_total counter");
+        for (Map.Entry<String, TargetMetrics> e : sorted.entrySet()) {
+            Map<Integer, AtomicLong> statuses = new TreeMap<Integer, AtomicLong>(e.getValue().statuses);
+            for (Map.Entry<Integer, AtomicLong> status : statuses.entrySet()) {
+                writer.println("security_proxy_responses_total{target=\"" + escape(e.getKey()) + "\",status=\""
+                        + status.getKey() + "\"} " + status.getValue().get());
+            }
+        }
+
+        writer.println("# HELP security_proxy_upstream_latency_seconds Time until the target response headers are received.");
+        writer.println("# TYPE security_proxy_upstream_latency_seconds histogram");
+        for (Map.Entry<String, TargetMetrics> e : sorted.entrySet()) {
+            String target = escape(e.getKey());
+            TargetMetrics metrics = e.getValue();
+            long cumulated = 0;
+            for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+                cumulated += metrics.latencyBuckets.get(i);
+                String le = (i < LATENCY_BUCKETS.length) ? seconds(LATENCY_BUCKETS[i]) : "+Inf";
+                writer.println("security_proxy_upstream_latency_seconds_bucket{target=\"" + target + "\",le=\"" + le
+                        + "\"} " + cumulated);
+            }
+            writer.println("security_proxy_upstream_latency_seconds_sum{target=\"" + target + "\"} "
+                    + seconds(metrics.latencySum.get()));
+            writer.println("security_proxy_upstream_latency_seconds_count{target=\"" + target + "\"} " + cumulated);
+        }
+
+        writer.println("# HELP security_proxy_request_bytes_total Request body bytes sent to the targets.");
+        writer.println("# TYPE security_proxy_request_bytes_total counter");
+        for (Map.Entry<String, TargetMetrics> e : sorted.entrySet()) {
+            writer.println("security_proxy_request_bytes_total{target=\"" + escape(e.getKey()) + "\"} "
+                    + e.getValue().bytesIn.get());
+        }
+
+        writer.println("# HELP security_proxy_response_bytes_total Response body bytes sent back to the clients.");
+        writer.println("# TYPE security_proxy_response_bytes_total counter");
+        for (Map.Entry<String, TargetMetrics> e : sorted.entrySet()) {
+            writer.println("security_proxy_response_bytes_total{target=\"" + escape(e.getKey()) + "\"} "
+                    + e.getValue().bytesOut.get());
+        }
+    }
+
+    /**
+     * Writes the connection pool usage of the http clients, per target.
+     */
+    public static void writePoolStats(PrintWriter writer, Map<String, PoolStats> pools) {
+        Map<String, PoolStats> sorted = new TreeMap<String, PoolStats>(pools);
+        writer.println("# HELP security_proxy_pool_connections Pooled connections to the targets, by state.");
+        writer.println("# TYPE security_proxy_pool_connections gauge");
+        for (Map.Entry<String, PoolStats> e : sorted.entrySet()) {
+            String target = escape(e.getKey());
+            PoolStats stats = e.getValue();
+            writer.println("security_proxy_pool_connections{target=\"" + target + "\",state=\"leased\"} " + stats.getLeased());
+            writer.println("security_proxy_pool_connections{target=\"" + target + "\",state=\"available\"} " + stats.getAvailable());
+            writer.println("security_proxy_pool_connections{target=\"" + target + "\",state=\"pending\"} " + stats.getPending());
+        }
+        writer.println("# HELP security_proxy_pool_max_connections Maximum number of pooled connections.");
+        writer.println("# TYPE security_proxy_pool_max_connections gauge");
+        for (Map.Entry<String, PoolStats> e : sorted.entrySet()) {
+            writer.println("security_proxy_pool_max_connections{target=\"" + escape(e.getKey()) + "\"} " + e.getValue().getMax());
+        }
+    }
+
+    private static String seconds(long millis) {
+        return String.valueOf(millis / 1000.0);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
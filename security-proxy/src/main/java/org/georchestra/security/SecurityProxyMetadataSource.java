@@ -20,12 +20,19 @@
 package org.georchestra.security;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.parsers.DocumentBuilder;
@@ -54,6 +61,11 @@ import org.w3c.dom.NodeList;
  * Spring security docs warns users who want to achieve this to think twice or
  * more before doing so, but we do need to have it separated from the webapp.
  *
+ * The rules are indexed by the literal prefix of their pattern, so that only
+ * the regexes which may match the request url are evaluated, still in the
+ * order they are declared. The security-mappings.xml file from the datadir is
+ * reloaded when it changes (checked every reloadInterval seconds).
+ *
  * @author pmauduit
  */
 
@@ -61,14 +73,32 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
 
     private static final Log LOGGER = LogFactory.getLog(SecurityProxyMetadataSource.class.getPackage().getName());
 
-    private Map<RequestMatcher, Collection<ConfigAttribute>> requestMap = new LinkedHashMap<RequestMatcher, Collection<ConfigAttribute>>();
+    private volatile Map<RequestMatcher, Collection<ConfigAttribute>> requestMap = new LinkedHashMap<RequestMatcher, Collection<ConfigAttribute>>();
+
+    private volatile RuleIndex rules = new RuleIndex(Collections.<String> emptyList(),
+            Collections.<Collection<ConfigAttribute>> emptyList());
+
+    private long reloadInterval = 10;
+    private volatile File securityMappings;
+    private volatile long securityMappingsLastModified;
+    private final AtomicLong nextReloadCheck = new AtomicLong();
 
     public void setRequestMap(Map map) {
-        requestMap.clear();
+        List<String> patterns = new ArrayList<String>();
+        List<Collection<ConfigAttribute>> attributes = new ArrayList<Collection<ConfigAttribute>>();
         for (String entry: (Set<String>) map.keySet()) {
-            this.requestMap.put(new RegexRequestMatcher(entry, null),
-                    SecurityConfig.createListFromCommaDelimitedString(map.get(entry).toString()));
+            patterns.add(entry);
+            attributes.add(SecurityConfig.createListFromCommaDelimitedString(map.get(entry).toString()));
         }
+        setRules(patterns, attributes);
+    }
+
+    /**
+     * @param reloadInterval delay in seconds between two checks for changes
+     *            of security-mappings.xml, 0 or less to disable the reloading
+     */
+    public void setReloadInterval(long reloadInterval) {
+        this.reloadInterval = reloadInterval;
     }
 
     public void remap() {
@@ -94,8 +124,11 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
         }
 
         try {
-            requestMap.clear();
+            long lastModified = securityMappings.lastModified();
             loadSecurityRules(securityMappings);
+            this.securityMappingsLastModified = lastModified;
+            this.securityMappings = securityMappings;
+            scheduleReloadCheck(System.currentTimeMillis());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -109,14 +142,56 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
         XPath xPath = XPathFactory.newInstance().newXPath();
         NodeList l = (NodeList) xPath.compile("//http/intercept-url").evaluate(doc, XPathConstants.NODESET);
 
+        List<String> patterns = new ArrayList<String>(l.getLength());
+        List<Collection<ConfigAttribute>> attributes = new ArrayList<Collection<ConfigAttribute>>(l.getLength());
         for (int i = 0; i < l.getLength(); ++i) {
-            RequestMatcher rm = new RegexRequestMatcher(l.item(i).getAttributes().getNamedItem("pattern")
-                    .getTextContent(), null);
-            List<ConfigAttribute> lca = SecurityConfig.createListFromCommaDelimitedString(l.item(i).getAttributes()
-                    .getNamedItem("access").getTextContent());
-            requestMap.put(rm, lca);
+            patterns.add(l.item(i).getAttributes().getNamedItem("pattern").getTextContent());
+            attributes.add(SecurityConfig.createListFromCommaDelimitedString(l.item(i).getAttributes()
+                    .getNamedItem("access").getTextContent()));
         }
+        setRules(patterns, attributes);
+    }
+
+    /**
+     * Compiles the rules, then replaces the current ones at once: requests
+     * being checked meanwhile keep using the previous rules.
+     */
+    private void setRules(List<String> patterns, List<Collection<ConfigAttribute>> attributes) {
+        Map<RequestMatcher, Collection<ConfigAttribute>> map = new LinkedHashMap<RequestMatcher, Collection<ConfigAttribute>>();
+        for (int i = 0; i < patterns.size(); i++) {
+            map.put(new RegexRequestMatcher(patterns.get(i), null), attributes.get(i));
+        }
+        RuleIndex index = new RuleIndex(patterns, attributes);
+        this.requestMap = map;
+        this.rules = index;
+    }
+
+    private void scheduleReloadCheck(long now) {
+        nextReloadCheck.set(now + TimeUnit.SECONDS.toMillis(reloadInterval));
+    }
 
+    /**
+     * Reloads security-mappings.xml if it has been modified. Only one request
+     * thread does the check, the others go on with the current rules.
+     */
+    private void reloadIfModified() {
+        long next = nextReloadCheck.get();
+        long now = System.currentTimeMillis();
+        if (now < next || !nextReloadCheck.compareAndSet(next, now + TimeUnit.SECONDS.toMillis(reloadInterval))) {
+            return;
+        }
+        long lastModified = securityMappings.lastModified();
+        if (lastModified == securityMappingsLastModified) {
+            return;
+        }
+        try {
+            loadSecurityRules(securityMappings);
+            securityMappingsLastModified = lastModified;
+            LOGGER.info("Reloaded the security rules from " + securityMappings.getPath());
+        } catch (Exception e) {
+            // most likely a file being edited, it will be reloaded once fixed
+            LOGGER.error("Unable to reload " + securityMappings.getPath() + ", keeping the current rules", e);
+        }
     }
 
     public Collection<ConfigAttribute> getAllConfigAttributes() {
@@ -131,16 +206,138 @@ public class SecurityProxyMetadataSource implements FilterInvocationSecurityMeta
     }
 
     public Collection<ConfigAttribute> getAttributes(Object object) {
+        if (securityMappings != null && reloadInterval > 0) {
+            reloadIfModified();
+        }
         final HttpServletRequest request = ((FilterInvocation) object).getRequest();
-        for (Map.Entry<RequestMatcher, Collection<ConfigAttribute>> entry : requestMap.entrySet()) {
-            if (entry.getKey().matches(request)) {
-                return entry.getValue();
+        return rules.match(requestUrl(request));
+    }
+
+    /**
+     * @return the string the rules are matched against, built the same way
+     *         RegexRequestMatcher does
+     */
+    private static String requestUrl(HttpServletRequest request) {
+        String url = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        String query = request.getQueryString();
+        if (pathInfo != null || query != null) {
+            StringBuilder sb = new StringBuilder(url);
+            if (pathInfo != null) {
+                sb.append(pathInfo);
+            }
+            if (query != null) {
+                sb.append('?').append(query);
             }
+            url = sb.toString();
         }
-        return null;
+        return url;
     }
 
     public boolean supports(Class<?> clazz) {
         return FilterInvocation.class.isAssignableFrom(clazz);
     }
+
+    /**
+     * Rules indexed by the literal prefix of their patterns (e.g. /console/private/
+     * for /console/private/.*) in a character trie. The rules whose pattern
+     * does not start with a literal are candidates for every url.
+     */
+    static class RuleIndex {
+
+        private static class Node {
+            char[] keys = new char[0];
+            Node[] children = new Node[0];
+            /** rules whose prefix ends on this node */
+            int[] rules = new int[0];
+
+            Node child(char c) {
+                int i = Arrays.binarySearch(keys, c);
+                return (i < 0) ? null : children[i];
+            }
+
+            Node getOrCreateChild(char c) {
+                int i = Arrays.binarySearch(keys, c);
+                if (i >= 0) {
+                    return children[i];
+                }
+                int insert = -i - 1;
+                char[] newKeys = new char[keys.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, insert);
+                System.arraycopy(children, 0, newChildren, 0, insert);
+                newKeys[insert] = c;
+                newChildren[insert] = new Node();
+                System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+                System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+                keys = newKeys;
+                children = newChildren;
+                return newChildren[insert];
+            }
+        }
+
+        private final Node root = new Node();
+        private final Pattern[] patterns;
+        private final List<Collection<ConfigAttribute>> attributes;
+
+        RuleIndex(List<String> patterns, List<Collection<ConfigAttribute>> attributes) {
+            this.patterns = new Pattern[patterns.size()];
+            this.attributes = new ArrayList<Collection<ConfigAttribute>>(attributes);
+            for (int i = 0; i < patterns.size(); i++) {
+                String pattern = patterns.get(i);
+                this.patterns[i] = Pattern.compile(pattern);
+                String prefix = literalPrefix(pattern);
+                Node node = root;
+                for (int j = 0; j < prefix.length(); j++) {
+                    node = node.getOrCreateChild(prefix.charAt(j));
+                }
+                node.rules = Arrays.copyOf(node.rules, node.rules.length + 1);
+                node.rules[node.rules.length - 1] = i;
+            }
+        }
+
+        /**
+         * @return the attributes of the first rule (in declaration order)
+         *         matching the url, null if none does
+         */
+        Collection<ConfigAttribute> match(String url) {
+            BitSet candidates = new BitSet(patterns.length);
+            Node node = root;
+            for (int i = 0; node != null; i++) {
+                for (int rule : node.rules) {
+                    candidates.set(rule);
+                }
+                node = (i < url.length()) ? node.child(url.charAt(i)) : null;
+            }
+            for (int rule = candidates.nextSetBit(0); rule >= 0; rule = candidates.nextSetBit(rule + 1)) {
+                if (patterns[rule].matcher(url).matches()) {
+                    return attributes.get(rule);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the characters any string matching the whole pattern has to
+         *         start with, empty if it cannot be told without a regex
+         */
+        static String literalPrefix(String pattern) {
+            if (pattern.indexOf('|') >= 0) {
+                // alternatives may start with anything
+                return "";
+            }
+            int i = 0;
+            for (; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (".[]{}()\\*+?^$".indexOf(c) >= 0) {
+                    if ((c == '*' || c == '?' || c == '{') && i > 0) {
+                        // the preceding character is optional
+                        i--;
+                    }
+                    break;
+                }
+            }
+            return pattern.substring(0, i);
+        }
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Routing table of the {@link Proxy}, compiled once from the targets map.
+ * <p>
+ * The target names (first segment of the request path) are stored in a
+ * character trie, so that resolving the target of a request only walks the
+ * first segment of its path, without splitting it nor allocating anything.
+ * The target URLs are parsed once, their path segments being kept to tell
+ * whether an URL is protected by the proxy.
+ * </p>
+ */
+public class TargetRoutes {
+
+    /**
+     * A target of the proxy, e.g. geoserver=http://localhost:8080/geoserver/
+     */
+    public static class Route {
+        private final String name;
+        private final String url;
+        /** url without its trailing slash, prefix of the forwarded urls */
+        private final String baseUrl;
+        private final URI baseURI;
+        private final String[] pathSegments;
+
+        Route(String name, String url) throws MalformedURLException {
+            this.name = name;
+            this.url = url;
+            this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+            String path = new URL(url).getPath();
+            this.pathSegments = StringUtils.split(path, '/');
+            URI uri;
+            try {
+                uri = new URI(url);
+            } catch (URISyntaxException e) {
+                uri = null;
+            }
+            this.baseURI = uri;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the target url as an URI, null if it is not a valid one
+         */
+        public URI getBaseURI() {
+            return baseURI;
+        }
+    }
+
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Route route;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return (i < 0) ? null : children[i];
+        }
+
+        Node getOrCreateChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insert = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            newKeys[insert] = c;
+            newChildren[insert] = new Node();
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[insert];
+        }
+    }
+
+    private final Node root = new Node();
+    private final List<Route> routes;
+
+    /**
+     * @param targets target names to target urls
+     * @throws MalformedURLException if one of the target urls is invalid
+     */
+    public TargetRoutes(Map<String, String> targets) throws MalformedURLException {
+        List<Route> compiled = new ArrayList<Route>(targets.size());
+        for (Map.Entry<String, String> target : targets.entrySet()) {
+            Route route = new Route(target.getKey(), target.getValue());
+            compiled.add(route);
+            Node node = root;
+            for (int i = 0; i < route.name.length(); i++) {
+                node = node.getOrCreateChild(route.name.charAt(i));
+            }
+            node.route = route;
+        }
+        this.routes = Collections.unmodifiableList(compiled);
+    }
+
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Finds the route whose name is the first segment of the path.
+     *
+     * @param path the request path
+     * @param skipAllSlashes if true, all the leading slashes are ignored,
+     *            else only the first one
+     * @return the route, null if the first segment is not a target name
+     */
+    public Route match(String path, boolean skipAllSlashes) {
+        int start = segmentStart(path, skipAllSlashes);
+        Node node = root;
+        int i = start;
+        for (; i < path.length() && path.charAt(i) != '/'; i++) {
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                return null;
+            }
+        }
+        return (i == start) ? null : node.route;
+    }
+
+    /**
+     * Builds the url of the request forwarded to the target matching the
+     * first segment of the path: e.g. /geoserver/wms gives
+     * http://localhost:8080/geoserver/wms for
+     * geoserver=http://localhost:8080/geoserver/
+     *
+     * @return the url to forward to, null if the path does not match any
+     *         target
+     */
+    public String resolve(String path) {
+        Route route = match(path, false);
+        if (route == null) {
+            return null;
+        }
+        int end = path.length();
+        // trailing slashes are collapsed into one
+        while (end > 1 && path.charAt(end - 1) == '/' && path.charAt(end - 2) == '/') {
+            end--;
+        }
+        int restStart = segmentStart(path, false) + route.name.length();
+        if (restStart >= end) {
+            return route.baseUrl + "/";
+        }
+        return route.baseUrl + path.substring(restStart, end);
+    }
+
+    /**
+     * @return true if the path starts with the path of one of the target
+     *         urls, segment-wise
+     */
+    public boolean isTargetPath(String path) {
+        for (Route route : routes) {
+            if (startsWithSegments(path, route.pathSegments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWithSegments(String path, String[] segments) {
+        int pos = 0;
+        for (String segment : segments) {
+            while (pos < path.length() && path.charAt(pos) == '/') {
+                pos++;
+            }
+            if (!path.regionMatches(pos, segment, 0, segment.length())) {
+                return false;
+            }
+            pos += segment.length();
+            if (pos < path.length() && path.charAt(pos) != '/') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int segmentStart(String path, boolean skipAllSlashes) {
+        int start = 0;
+        if (skipAllSlashes) {
+            while (start < path.length() && path.charAt(start) == '/') {
+                start++;
+            }
+        } else if (path.length() > 0 && path.charAt(0) == '/') {
+            start = 1;
+        }
+        return start;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.springframework.context.ApplicationListener;
+import org.springframework.security.authentication.event.InteractiveAuthenticationSuccessEvent;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * JVM-wide cache of the headers computed from the LDAP for each user, so that
+ * clients which do not keep a session (basic auth, impersonation, desktop GIS)
+ * do not trigger LDAP searches on each request.
+ * <p>
+ * The headers of a user are computed again once the time to live has
+ * elapsed, or as soon as the user logs in interactively (e.g. through CAS), so
+ * that a user whose roles or organization changed only has to log in again.
+ * </p>
+ */
+public class UserHeadersCache implements ApplicationListener<InteractiveAuthenticationSuccessEvent> {
+
+    protected static final Log logger = LogFactory.getLog(UserHeadersCache.class.getPackage().getName());
+
+    private volatile Cache<String, Collection<Header>> cache;
+    private long maxSize = 10000;
+    private long timeToLive = 300;
+
+    public UserHeadersCache() {
+        init();
+    }
+
+    /**
+     * (Re)creates the cache once the properties are set, cached headers are
+     * discarded.
+     */
+    public void init() {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+        if (timeToLive > 0) {
+            builder.maximumSize(maxSize).expireAfterWrite(timeToLive, TimeUnit.SECONDS);
+        } else {
+            // disabled, the headers are computed for each request
+            builder.maximumSize(0);
+        }
+        this.cache = builder.build();
+    }
+
+    /**
+     * Returns the cached headers of the user, computing them if needed.
+     * Concurrent requests of the same user wait for a single computation.
+     *
+     * @param username the user name
+     * @param loader computes the headers of the user, an exception means they
+     *            cannot be computed for now and nothing is cached
+     * @return the headers, empty if they could not be computed
+     */
+    public Collection<Header> get(String username, Callable<Collection<Header>> loader) {
+        try {
+            return cache.get(username, loader);
+        } catch (ExecutionException e) {
+            logger.info("Unable to lookup user:" + username, e.getCause());
+        } catch (UncheckedExecutionException e) {
+            logger.info("Unable to lookup user:" + username, e.getCause());
+        }
+        return Collections.emptyList();
+    }
+
+    public void invalidate(String username) {
+        cache.invalidate(username);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public void onApplicationEvent(InteractiveAuthenticationSuccessEvent event) {
+        String username = event.getAuthentication().getName();
+        if (logger.isDebugEnabled()) {
+            logger.debug("User " + username + " logged in, discarding its cached headers");
+        }
+        invalidate(username);
+    }
+
+    /**
+     * @return hit, miss and load counts since the cache was created
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    /**
+     * @param maxSize maximum number of users whose headers are kept
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param timeToLive duration in seconds the headers of a user are kept, 0
+     *            to disable the cache
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+}
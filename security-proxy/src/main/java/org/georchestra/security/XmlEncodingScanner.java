@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Extracts the encoding declared in the xml header of a document, reading the
+ * raw bytes as ASCII (which is common to many charsets).
+ * <p>
+ * The scan works directly on the bytes of the buffer and only allocates the
+ * returned charset name, it matches {@code encoding=(['"])([A-Za-z][A-Za-z0-9._-]*)\1}.
+ * </p>
+ */
+public final class XmlEncodingScanner {
+
+    private static final byte[] ENCODING = { 'e', 'n', 'c', 'o', 'd', 'i', 'n', 'g', '=' };
+
+    /**
+     * Number of compressed bytes which should be given to
+     * {@link #scanCompressed(byte[], int, int, String)}, large enough to
+     * inflate the xml declaration
+     */
+    public static final int COMPRESSED_PREFIX_LENGTH = 4096;
+
+    private static final int INFLATED_PREFIX_LENGTH = 1024;
+
+    private XmlEncodingScanner() {
+    }
+
+    /**
+     * @param buf the beginning of the document
+     * @param offset the offset of the first byte to scan
+     * @param length the number of bytes to scan
+     * @return the charset, null if not found or if its closing quote is beyond
+     *         the scanned bytes
+     */
+    public static String scan(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i + ENCODING.length + 1 < end; i++) {
+            if (!startsWith(buf, i, ENCODING)) {
+                continue;
+            }
+            int quote = i + ENCODING.length;
+            if (buf[quote] != '\'' && buf[quote] != '"') {
+                continue;
+            }
+            int start = quote + 1;
+            if (!isLetter(buf[start])) {
+                continue;
+            }
+            int pos = start + 1;
+            while (pos < end && isCharsetChar(buf[pos])) {
+                pos++;
+            }
+            if (pos == end || buf[pos] != buf[quote]) {
+                // truncated or malformed
+                continue;
+            }
+            char[] charset = new char[pos - start];
+            for (int j = 0; j < charset.length; j++) {
+                charset[j] = (char) buf[start + j];
+            }
+            return new String(charset);
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] buf, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+    }
+
+    private static boolean isCharsetChar(byte b) {
+        return isLetter(b) || (b >= '0' && b <= '9') || b == '.' || b == '_' || b == '-';
+    }
+
+    /**
+     * Same as {@link #scan(byte[], int, int)} for gzip or deflate compressed
+     * content: only the given first bytes are inflated, which may be a
+     * truncated compressed stream.
+     *
+     * @param contentEncoding the http content encoding (gzip, x-gzip or
+     *            deflate)
+     * @return the charset, null if not found or if the content cannot be
+     *         inflated
+     */
+    public static String scanCompressed(byte[] buf, int offset, int length, String contentEncoding) {
+        byte[] inflated = new byte[INFLATED_PREFIX_LENGTH];
+        int len;
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            try {
+                len = inflate(new GZIPInputStream(new ByteArrayInputStream(buf, offset, length)), inflated);
+            } catch (IOException e) {
+                // not even a gzip header
+                return null;
+            }
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            // deflate should be zlib wrapped, but some servers send raw
+            // deflate data
+            len = inflate(buf, offset, length, false, inflated);
+            if (len == 0) {
+                len = inflate(buf, offset, length, true, inflated);
+            }
+        } else {
+            return null;
+        }
+        return scan(inflated, 0, len);
+    }
+
+    private static int inflate(byte[] buf, int offset, int length, boolean nowrap, byte[] inflated) {
+        Inflater inflater = new Inflater(nowrap);
+        try {
+            return inflate(new InflaterInputStream(new ByteArrayInputStream(buf, offset, length), inflater), inflated);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Fills the inflated buffer as much as possible.
+     *
+     * @return the number of inflated bytes
+     */
+    private static int inflate(InputStream in, byte[] inflated) {
+        int len = 0;
+        try {
+            int read;
+            while (len < inflated.length && (read = in.read(inflated, len, inflated.length - len)) != -1) {
+                len += read;
+            }
+        } catch (ZipException e) {
+            // corrupted data, keep what has been inflated so far
+        } catch (IOException e) {
+            // end of the truncated compressed stream
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // in-memory stream
+            }
+        }
+        return len;
+    }
+}
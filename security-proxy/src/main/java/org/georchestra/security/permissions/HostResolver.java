@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2009-2018 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.security.permissions;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of host name resolutions, shared by all the {@link UriMatcher}s
+ * (and the proxy itself) so that checking an url against the permissions does
+ * not block on a DNS lookup for each matcher and each request.
+ * <p>
+ * Resolutions are kept for the duration the JVM is configured to cache them
+ * (<code>networkaddress.cache.ttl</code> and
+ * <code>networkaddress.cache.negative.ttl</code> security properties), so that
+ * DNS changes are picked up as they would be without this cache.
+ * </p>
+ */
+public class HostResolver {
+    protected static final Log logger = LogFactory.getLog(HostResolver.class.getPackage().getName());
+
+    private static final InetAddress[] UNKNOWN = new InetAddress[0];
+
+    private static final HostResolver DEFAULT = new HostResolver(10000,
+            ttlProperty("networkaddress.cache.ttl", 30), ttlProperty("networkaddress.cache.negative.ttl", 10));
+
+    private static class Resolution {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        Resolution(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Cache<String, Resolution> cache;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+
+    /**
+     * @param maxSize maximum number of host names kept
+     * @param ttlSeconds how long a successful resolution is kept
+     * @param negativeTtlSeconds how long an unknown host is kept
+     */
+    public HostResolver(long maxSize, long ttlSeconds, long negativeTtlSeconds) {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.negativeTtlMillis = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize)
+                .expireAfterWrite(Math.max(ttlSeconds, negativeTtlSeconds), TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * @return the resolver shared by the whole webapp
+     */
+    public static HostResolver getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return all the addresses of the host, an empty array if it is unknown
+     */
+    public InetAddress[] resolve(String host) {
+        if (host == null) {
+            return UNKNOWN;
+        }
+        String key = host.toLowerCase();
+        Resolution resolution = cache.getIfPresent(key);
+        long now = System.currentTimeMillis();
+        if (resolution == null || resolution.expiresAt <= now) {
+            // concurrent lookups of the same host may both hit the DNS, which
+            // is harmless and cheaper than holding a lock during the lookup
+            InetAddress[] addresses;
+            long ttl;
+            try {
+                addresses = InetAddress.getAllByName(host);
+                ttl = ttlMillis;
+            } catch (UnknownHostException e) {
+                addresses = UNKNOWN;
+                ttl = negativeTtlMillis;
+            }
+            resolution = new Resolution(addresses, now + ttl);
+            cache.put(key, resolution);
+        }
+        return resolution.addresses;
+    }
+
+    /**
+     * @return the first address of the host, as InetAddress.getByName would
+     *         do
+     * @throws UnknownHostException if the host is unknown
+     */
+    public InetAddress resolveFirst(String host) throws UnknownHostException {
+        InetAddress[] addresses = resolve(host);
+        if (addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        return addresses[0];
+    }
+
+    /**
+     * Forgets all the resolutions, e.g. after a network configuration change.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static long ttlProperty(String name, long defaultValue) {
+        String value = Security.getProperty(name);
+        if (value != null) {
+            try {
+                long ttl = Long.parseLong(value.trim());
+                // a negative value means "forever" for the JVM, the cache
+                // still has to be refreshed now and then
+                return (ttl < 0) ? TimeUnit.DAYS.toSeconds(1) : ttl;
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+}
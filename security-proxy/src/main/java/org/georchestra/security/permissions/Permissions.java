@@ -41,43 +41,64 @@ public class Permissions {
     private boolean allowByDefault = false;
     private boolean initialized = false;
 
+    /**
+     * allowed and denied matchers merged in evaluation order, the first
+     * matching one deciding whether the url is denied. Built by init().
+     */
+    private transient volatile Rule[] rules;
+
+    private static class Rule {
+        final UriMatcher matcher;
+        final boolean denied;
+
+        Rule(UriMatcher matcher, boolean denied) {
+            this.matcher = matcher;
+            this.denied = denied;
+        }
+    }
+
     public Permissions setAllowed(List<UriMatcher> allowed) {
         this.allowed = allowed;
+        this.rules = null;
         return this;
     }
 
     public Permissions setDenied(List<UriMatcher> denied) {
         this.denied = denied;
+        this.rules = null;
         return this;
     }
 
     public boolean isDenied(URL url) {
-        if (allowByDefault) {
-            if (checkIfAllowed(url)) return false;
-            if (checkIfDenied(url)) return true;
-        } else {
-            if (checkIfDenied(url)) return true;
-            if (checkIfAllowed(url)) return false;
+        Rule[] rules = this.rules;
+        if (rules == null) {
+            rules = compile();
         }
-        return !allowByDefault;
-    }
-
-    private boolean checkIfDenied(URL url) {
-        for (UriMatcher uriMatcher : denied) {
-            if (uriMatcher.matches(url)) {
-                return true;
+        for (Rule rule : rules) {
+            if (rule.matcher.matches(url)) {
+                return rule.denied;
             }
         }
-        return false;
+        return !allowByDefault;
     }
 
-    private boolean checkIfAllowed(URL url) {
-        for (UriMatcher uriMatcher : allowed) {
-            if (uriMatcher.matches(url)) {
-                return true;
-            }
+    /**
+     * Merges the allowed and denied lists: when allowing by default, an
+     * allowed url wins over a denied one, and the other way around otherwise.
+     */
+    private Rule[] compile() {
+        List<UriMatcher> first = allowByDefault ? allowed : denied;
+        List<UriMatcher> second = allowByDefault ? denied : allowed;
+        Rule[] rules = new Rule[first.size() + second.size()];
+        int i = 0;
+        for (UriMatcher uriMatcher : first) {
+            rules[i++] = new Rule(uriMatcher, !allowByDefault);
+        }
+        for (UriMatcher uriMatcher : second) {
+            rules[i++] = new Rule(uriMatcher, allowByDefault);
         }
-        return false;
+        this.rules = rules;
+        return rules;
     }
 
     public List<UriMatcher> getAllowed() {
@@ -94,6 +115,7 @@ public class Permissions {
 
     public void setAllowByDefault(boolean allowByDefault) {
         this.allowByDefault = allowByDefault;
+        this.rules = null;
     }
 
     public synchronized void init() throws UnknownHostException {
@@ -104,6 +126,7 @@ public class Permissions {
         for (UriMatcher uriMatcher : denied) {
             uriMatcher.init();
         }
+        compile();
         initialized = true;
     }
 
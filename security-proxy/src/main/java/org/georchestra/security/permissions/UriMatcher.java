@@ -58,21 +58,27 @@ public class UriMatcher {
         if (this.domain != null) {
             this.domainPattern = Pattern.compile(this.domain, Pattern.CASE_INSENSITIVE);
         }
+        this.ipMatcher = null;
         if(this.network != null){
             this.ipMatcher = new IpAddressMatcher(network);
         }
     }
 
     public boolean matches(URL url) {
-        if (hostNames != null && !matchesHost(url))
+        // cheapest checks first, the host resolution is only needed when
+        // everything else matched
+        if (port != -1 && !matchesPort(url))
             return false;
-        if (domain != null && !matchesDomain(url))
+        if (domainPattern != null && !matchesDomain(url))
             return false;
-        if (port != -1 && !matchesPort(url))
+        if (pathPattern != null && !matchesPath(url))
             return false;
-        if (network != null && !matchesNetwork(url))
+        if (hostNames == null && ipMatcher == null)
+            return true;
+        InetAddress[] addresses = HostResolver.getDefault().resolve(url.getHost());
+        if (hostNames != null && !matchesHost(addresses))
             return false;
-        return !(pathPattern != null && !matchesPath(url));
+        return !(ipMatcher != null && !matchesNetwork(addresses));
     }
 
     private boolean matchesPath(URL url) {
@@ -86,15 +92,8 @@ public class UriMatcher {
         return url.getPort() == -1 && url.getDefaultPort() == this.port;
     }
 
-    private boolean matchesHost(URL url) {
-        final InetAddress[] allByName;
-        try {
-            allByName = InetAddress.getAllByName(url.getHost());
-        } catch (UnknownHostException e) {
-            return false;
-        }
-
-        for (InetAddress inetAddress : allByName) {
+    private boolean matchesHost(InetAddress[] addresses) {
+        for (InetAddress inetAddress : addresses) {
             if (this.hostNames.contains(inetAddress)) {
                 return true;
             }
@@ -102,15 +101,8 @@ public class UriMatcher {
         return false;
     }
 
-    private boolean matchesNetwork(URL url) {
-        final InetAddress[] allByName;
-        try {
-            allByName = InetAddress.getAllByName(url.getHost());
-        } catch (UnknownHostException e) {
-            return false;
-        }
-
-        for (InetAddress inetAddress : allByName) {
+    private boolean matchesNetwork(InetAddress[] addresses) {
+        for (InetAddress inetAddress : addresses) {
             if (this.ipMatcher.matches(inetAddress.getHostAddress())) {
                 return true;
             }
@@ -0,0 +1,391 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Drives the streaming of a downstream response by the {@link AsyncProxy} as
+ * the http client and the servlet container would, with a client which is not
+ * always able to receive more data.
+ */
+public class AsyncProxyTest {
+
+    /**
+     * Output stream which is only ready for a single write at a time, until
+     * {@link #becomeReady()} is called, as a slow client connection.
+     */
+    private static class SlowOutputStream extends ServletOutputStream {
+
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        boolean ready = true;
+        boolean singleWrite = false;
+        /**
+         * number of checks answering not ready before the output is ready again
+         * by itself, negative to wait for {@link #becomeReady()}
+         */
+        int readyAfter = -1;
+        private int notReadyChecks = 0;
+        WriteListener listener;
+
+        @Override
+        public boolean isReady() {
+            if (!ready && readyAfter >= 0 && notReadyChecks++ >= readyAfter) {
+                ready = true;
+            }
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!ready) {
+                throw new IllegalStateException("written while not ready");
+            }
+            written.write(b, off, len);
+            ready = !singleWrite;
+            notReadyChecks = 0;
+        }
+
+        void becomeReady() throws IOException {
+            ready = true;
+            listener.onWritePossible();
+        }
+    }
+
+    /**
+     * Content of which chunkSize bytes are available at a time.
+     */
+    private static class ChunkedDecoder implements ContentDecoder {
+
+        private final byte[] content;
+        private final int chunkSize;
+        private int position = 0;
+        private int available = 0;
+
+        ChunkedDecoder(byte[] content, int chunkSize) {
+            this.content = content;
+            this.chunkSize = chunkSize;
+        }
+
+        /** makes the next chunk available */
+        void receive() {
+            available = Math.min(chunkSize, content.length - position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position == content.length) {
+                return -1;
+            }
+            int len = Math.min(available, dst.remaining());
+            dst.put(content, position, len);
+            position += len;
+            available -= len;
+            return len;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return position == content.length;
+        }
+    }
+
+    private static class RecordingIOControl implements IOControl {
+
+        boolean suspended = false;
+        int suspensions = 0;
+
+        @Override
+        public void requestInput() {
+            suspended = false;
+        }
+
+        @Override
+        public void suspendInput() {
+            suspended = true;
+            suspensions++;
+        }
+
+        @Override
+        public void requestOutput() {
+        }
+
+        @Override
+        public void suspendOutput() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private Proxy proxy;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private SlowOutputStream output;
+    private RecordingIOControl ioControl;
+    private AtomicInteger ends;
+    private AtomicInteger completions;
+    private AsyncProxy.ProxyResponseConsumer consumer;
+
+    @Before
+    public void setUp() throws Exception {
+        proxy = new Proxy();
+        proxy.setProxyPermissionsFile("default-permissions.xml");
+        proxy.setRequireCharsetContentTypes(Arrays.asList("text/xml"));
+        proxy.init();
+        proxy.setTargets(Collections.singletonMap("geoserver", "http://localhost/geoserver/"));
+
+        request = new MockHttpServletRequest("GET", "/geoserver/wfs");
+        request.setAsyncSupported(true);
+        output = new SlowOutputStream();
+        response = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return output;
+            }
+        };
+        ioControl = new RecordingIOControl();
+
+        completions = new AtomicInteger();
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                completions.incrementAndGet();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        ends = new AtomicInteger();
+        ProxyMetrics metrics = new ProxyMetrics();
+        ProxyMetrics.Call call = metrics.new Call(new ProxyMetrics.TargetMetrics()) {
+            @Override
+            public synchronized void end() {
+                ends.incrementAndGet();
+                super.end();
+            }
+        };
+
+        consumer = new AsyncProxy(proxy, null).new ProxyResponseConsumer(request, response,
+                "http://localhost/geoserver/wfs", asyncContext, call);
+        output.setWriteListener(consumer);
+    }
+
+    private void responseReceived(String contentType) throws Exception {
+        responseReceived(200, "OK", contentType);
+    }
+
+    private void responseReceived(int status, String reason, String contentType) throws Exception {
+        BasicHttpResponse downstream = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, reason);
+        downstream.addHeader("Content-Type", contentType);
+        consumer.responseReceived(downstream);
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    @Test
+    public void testInputSuspendedWhileNotReady() throws Exception {
+        responseReceived("application/octet-stream");
+        output.singleWrite = true;
+        byte[] content = content(3000);
+        ChunkedDecoder decoder = new ChunkedDecoder(content, 1000);
+
+        decoder.receive();
+        consumer.consumeContent(decoder, ioControl);
+        decoder.receive();
+        consumer.consumeContent(decoder, ioControl);
+        // the second chunk is not read before the client is ready
+        assertTrue(ioControl.suspended);
+        assertEquals(1000, output.written.size());
+
+        output.becomeReady();
+        assertFalse(ioControl.suspended);
+        consumer.consumeContent(decoder, ioControl);
+        assertEquals(2000, output.written.size());
+        output.becomeReady();
+        decoder.receive();
+        consumer.consumeContent(decoder, ioControl);
+        assertTrue(decoder.isCompleted());
+
+        consumer.responseCompleted(new BasicHttpContext());
+        consumer.complete();
+        assertTrue(Arrays.equals(content, output.written.toByteArray()));
+        assertEquals(1, completions.get());
+        assertEquals(1, ends.get());
+    }
+
+    @Test
+    public void testInputRequestedIfReadyAgain() throws Exception {
+        responseReceived("application/octet-stream");
+        output.singleWrite = true;
+        output.readyAfter = 1;
+        ChunkedDecoder decoder = new ChunkedDecoder(content(3000), 1000);
+
+        // the output is ready again between the last check and the suspension
+        decoder.receive();
+        consumer.consumeContent(decoder, ioControl);
+        assertEquals(1, ioControl.suspensions);
+        assertFalse(ioControl.suspended);
+        assertEquals(1000, output.written.size());
+    }
+
+    @Test
+    public void testNothingAvailable() throws Exception {
+        responseReceived("application/octet-stream");
+        ChunkedDecoder decoder = new ChunkedDecoder(content(100), 100);
+
+        // nothing to read yet, the output is still ready
+        consumer.consumeContent(decoder, ioControl);
+        assertEquals(0, ioControl.suspensions);
+        assertEquals(0, output.written.size());
+    }
+
+    @Test
+    public void testNotFoundContentDiscarded() throws Exception {
+        responseReceived(404, "Not Found", "text/html");
+        ChunkedDecoder decoder = new ChunkedDecoder(content(3000), 3000);
+        decoder.receive();
+        consumer.consumeContent(decoder, ioControl);
+        assertTrue(decoder.isCompleted());
+        consumer.responseCompleted(new BasicHttpContext());
+        consumer.complete();
+
+        assertEquals(404, response.getStatus());
+        assertEquals(0, output.written.size());
+        assertEquals(1, completions.get());
+        assertEquals(1, ends.get());
+    }
+
+    @Test
+    public void testShortContentCharsetDetected() throws Exception {
+        responseReceived("text/xml");
+        byte[] content = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a/>".getBytes("ISO-8859-1");
+        assertTrue(content.length < Proxy.CHARSET_PREFIX_LENGTH);
+        ChunkedDecoder decoder = new ChunkedDecoder(content, 10);
+        while (!decoder.isCompleted()) {
+            decoder.receive();
+            consumer.consumeContent(decoder, ioControl);
+            // kept aside until the charset is known
+            assertEquals(0, output.written.size());
+        }
+
+        consumer.responseCompleted(new BasicHttpContext());
+        consumer.complete();
+        assertTrue(Arrays.equals(content, output.written.toByteArray()));
+        assertEquals("ISO-8859-1", response.getCharacterEncoding());
+        assertEquals(1, completions.get());
+        assertEquals(1, ends.get());
+    }
+
+    @Test
+    public void testEndWrittenOnceReady() throws Exception {
+        responseReceived("text/xml");
+        byte[] content = "<?xml version=\"1.0\"?><a/>".getBytes("UTF-8");
+        ChunkedDecoder decoder = new ChunkedDecoder(content, content.length);
+        decoder.receive();
+        consumer.consumeContent(decoder, ioControl);
+
+        // the client is busy when the downstream response ends
+        output.ready = false;
+        consumer.responseCompleted(new BasicHttpContext());
+        consumer.complete();
+        assertEquals(0, output.written.size());
+        assertEquals(0, completions.get());
+        assertEquals(0, ends.get());
+
+        // the end is written, then the request completed
+        output.becomeReady();
+        assertTrue(Arrays.equals(content, output.written.toByteArray()));
+        assertEquals(1, completions.get());
+        assertEquals(1, ends.get());
+    }
+
+    @Test
+    public void testFailBeforeCommit() throws Exception {
+        consumer.fail(503);
+
+        assertEquals(503, response.getStatus());
+        assertEquals(1, completions.get());
+        assertEquals(1, ends.get());
+    }
+
+    @Test
+    public void testFailAfterPartialCommit() throws Exception {
+        responseReceived("application/octet-stream");
+        ChunkedDecoder decoder = new ChunkedDecoder(content(3000), 1000);
+        decoder.receive();
+        consumer.consumeContent(decoder, ioControl);
+        response.setCommitted(true);
+
+        // the status has been sent already, the request is only completed
+        consumer.fail(504);
+        assertEquals(200, response.getStatus());
+        assertEquals(1000, output.written.size());
+        assertEquals(1, completions.get());
+        assertEquals(1, ends.get());
+    }
+
+    @Test
+    public void testSingleEnd() throws Exception {
+        responseReceived("application/octet-stream");
+        consumer.responseCompleted(new BasicHttpContext());
+
+        consumer.complete();
+        consumer.complete();
+        consumer.fail(503);
+        consumer.onError(new IOException("client gone"));
+        assertEquals(1, completions.get());
+        assertEquals(1, ends.get());
+    }
+}
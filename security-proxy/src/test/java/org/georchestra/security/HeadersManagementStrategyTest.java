@@ -1,15 +1,34 @@
 package org.georchestra.security;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
 import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 
-import java.util.Collections;
-
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -91,4 +110,65 @@ public class HeadersManagementStrategyTest {
         assertEquals(proxyRequest.getHeaders("sec-username")[0].getValue(), "jeichar");
     }
 
+    /**
+     * Header handling must not serialize the proxied requests: the header
+     * providers of concurrent requests, which may be as slow as an LDAP lookup,
+     * are called at the same time.
+     */
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        final int threads = 8;
+        final CyclicBarrier inProvider = new CyclicBarrier(threads);
+        final AtomicInteger concurrentCalls = new AtomicInteger();
+        final HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
+        headerManagement.setHeaderProviders(Collections.<HeaderProvider> singletonList(new HeaderProvider() {
+            @Override
+            protected Collection<Header> getCustomRequestHeaders(HttpSession session,
+                    HttpServletRequest originalRequest) {
+                // only released once all the threads are inside the provider,
+                // a global lock would make it time out
+                try {
+                    inProvider.await(10, TimeUnit.SECONDS);
+                    concurrentCalls.incrementAndGet();
+                } catch (Exception e) {
+                    // counted as a non concurrent call
+                }
+                return Collections.<Header> singletonList(new BasicHeader("sec-org", "psc"));
+            }
+        }));
+        final Authentication auth = new UsernamePasswordAuthenticationToken("jeichar", "random");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final int id = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        SecurityContextHolder.getContext().setAuthentication(auth);
+                        MockHttpServletRequest originalRequest = createTestRequest();
+                        HttpRequestBase proxyRequest = new HttpGet("http://sdi.georchestra.org/geonetwork");
+                        headerManagement.configureRequestHeaders(originalRequest, proxyRequest, true);
+                        assertTrue(hasHeader("sec-org", proxyRequest));
+
+                        HttpResponse proxyResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                        proxyResponse.addHeader("Content-Type", "text/xml");
+                        proxyResponse.addHeader("Set-Cookie", "JSESSIONID=" + id + "; Path=/geonetwork");
+                        MockHttpServletResponse finalResponse = new MockHttpServletResponse();
+                        headerManagement.copyResponseHeaders(originalRequest, "/geonetwork/srv", proxyResponse,
+                                finalResponse, Collections.<String, String> emptyMap());
+                        assertEquals("text/xml", finalResponse.getHeader("Content-Type"));
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(threads, concurrentCalls.get());
+    }
 }
@@ -0,0 +1,46 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.georchestra.security.permissions.HostResolver;
+import org.junit.Test;
+
+public class HostResolverTest {
+
+    @Test
+    public void testResolutionIsCached() throws Exception {
+        HostResolver resolver = new HostResolver(10, 60, 60);
+        InetAddress[] addresses = resolver.resolve("localhost");
+        assertTrue(addresses.length > 0);
+        assertSame(addresses, resolver.resolve("localhost"));
+        assertSame(addresses, resolver.resolve("LocalHost"));
+
+        resolver.invalidateAll();
+        assertNotSame(addresses, resolver.resolve("localhost"));
+    }
+
+    @Test
+    public void testExpiredResolution() throws Exception {
+        HostResolver resolver = new HostResolver(10, 0, 0);
+        InetAddress[] addresses = resolver.resolve("127.0.0.1");
+        assertNotSame(addresses, resolver.resolve("127.0.0.1"));
+    }
+
+    @Test
+    public void testUnknownHost() {
+        HostResolver resolver = new HostResolver(10, 60, 60);
+        assertEquals(0, resolver.resolve("unknown.host.invalid").length);
+        assertEquals(0, resolver.resolve(null).length);
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void testResolveFirstUnknownHost() throws Exception {
+        new HostResolver(10, 60, 60).resolveFirst("unknown.host.invalid");
+    }
+}
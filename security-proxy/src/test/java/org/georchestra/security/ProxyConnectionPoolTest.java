@@ -0,0 +1,177 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that the connections of the pooled http clients of the targets are
+ * given back to their pool, whatever the downstream response.
+ */
+public class ProxyConnectionPoolTest {
+
+    private HttpServer server;
+    private Proxy proxy;
+    /** client ports of the connections accepted by the server */
+    private final Set<Integer> connections = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                connections.add(exchange.getRemoteAddress().getPort());
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/truncated")) {
+                    // the connection is closed in the middle of the body
+                    exchange.sendResponseHeaders(200, 0);
+                    exchange.getResponseBody().write("partial".getBytes("UTF-8"));
+                    exchange.getResponseBody().flush();
+                    throw new IOException("connection lost");
+                }
+                int status = 200;
+                if (path.endsWith("/error")) {
+                    status = 500;
+                } else if (path.endsWith("/forbidden")) {
+                    status = 403;
+                } else if (path.endsWith("/missing")) {
+                    status = 404;
+                }
+                byte[] body = ("response to " + path).getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        String base = "http://localhost:" + server.getAddress().getPort();
+        Map<String, String> targets = Maps.newHashMap();
+        targets.put("geoserver", base + "/geoserver/");
+        targets.put("mapfishapp", base + "/mapfishapp/");
+        targets.put("down", "http://localhost:" + unusedPort() + "/down/");
+
+        proxy = new Proxy();
+        proxy.setProxyPermissionsFile("default-permissions.xml");
+        proxy.init();
+        proxy.setTargets(targets);
+    }
+
+    @After
+    public void tearDown() {
+        proxy.destroy();
+        server.stop(0);
+    }
+
+    private static int unusedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private MockHttpServletResponse get(String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.addHeader("Host", "localhost:" + server.getAddress().getPort());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        proxy.handleRequest(request, response);
+        return response;
+    }
+
+    private PoolStats stats(String target) {
+        ConnPoolControl<HttpRoute> pool = proxy.getConnectionPool(target);
+        assertNotNull(pool);
+        return pool.getTotalStats();
+    }
+
+    @Test
+    public void testConnectionReleasedAfterResponse() throws Exception {
+        MockHttpServletResponse response = get("/geoserver/ok");
+        assertEquals(200, response.getStatus());
+        assertEquals("response to /geoserver/ok", response.getContentAsString());
+        assertEquals(0, stats("geoserver").getLeased());
+        assertEquals(1, stats("geoserver").getAvailable());
+    }
+
+    @Test
+    public void testConnectionReleasedAfterError() throws Exception {
+        MockHttpServletResponse response = get("/geoserver/error");
+        assertEquals(500, response.getStatus());
+        assertEquals(0, stats("geoserver").getLeased());
+
+        assertEquals(403, get("/geoserver/forbidden").getStatus());
+        assertEquals(0, stats("geoserver").getLeased());
+
+        assertEquals(404, get("/geoserver/missing").getStatus());
+        assertEquals(0, stats("geoserver").getLeased());
+    }
+
+    @Test
+    public void testConnectionReleasedAfterException() throws Exception {
+        get("/geoserver/truncated");
+        assertEquals(0, stats("geoserver").getLeased());
+        // the broken connection is not reused
+        assertEquals(0, stats("geoserver").getAvailable());
+
+        assertEquals(503, get("/down/ows").getStatus());
+        assertEquals(0, stats("down").getLeased());
+    }
+
+    @Test
+    public void testClientReusedPerTarget() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, get("/geoserver/ok").getStatus());
+        }
+        assertEquals(1, connections.size());
+        assertEquals(1, stats("geoserver").getAvailable());
+
+        // each target has its own pool
+        assertEquals(200, get("/mapfishapp/ok").getStatus());
+        assertEquals(2, connections.size());
+        assertNotSame(proxy.getConnectionPool("geoserver"), proxy.getConnectionPool("mapfishapp"));
+        assertEquals(1, stats("geoserver").getAvailable());
+        assertEquals(1, stats("mapfishapp").getAvailable());
+        assertNull(proxy.getConnectionPool(null));
+    }
+
+    @Test
+    public void testDestroyReleasesClients() throws Exception {
+        get("/geoserver/ok");
+        get("/mapfishapp/ok");
+        ConnPoolControl<HttpRoute> geoserver = proxy.getConnectionPool("geoserver");
+        ConnPoolControl<HttpRoute> mapfishapp = proxy.getConnectionPool("mapfishapp");
+
+        proxy.destroy();
+        assertEquals(0, geoserver.getTotalStats().getAvailable());
+        assertEquals(0, mapfishapp.getTotalStats().getAvailable());
+        assertEquals(0, geoserver.getTotalStats().getLeased());
+        assertNull(proxy.getConnectionPool("geoserver"));
+        assertNull(proxy.getConnectionPool("mapfishapp"));
+    }
+}
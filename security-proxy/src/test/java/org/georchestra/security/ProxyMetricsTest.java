@@ -0,0 +1,85 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import org.apache.http.pool.PoolStats;
+import org.junit.Test;
+
+public class ProxyMetricsTest {
+
+    private String write(ProxyMetrics metrics) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        metrics.write(writer);
+        writer.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void testCalls() {
+        ProxyMetrics metrics = new ProxyMetrics();
+        ProxyMetrics.Call first = metrics.start("geoserver");
+        ProxyMetrics.Call second = metrics.start("geoserver");
+        ProxyMetrics.Call third = metrics.start(null);
+        assertEquals(3, metrics.getInFlight());
+
+        first.addBytesIn(100);
+        first.responseReceived(200);
+        first.addBytesOut(1024);
+        first.end();
+        first.end();
+        second.failed();
+        second.end();
+        third.responseReceived(404);
+        assertEquals(1, metrics.getInFlight());
+
+        String text = write(metrics);
+        assertTrue(text.contains("security_proxy_requests_total{target=\"geoserver\"} 2"));
+        assertTrue(text.contains("security_proxy_requests_total{target=\"_proxy\"} 1"));
+        assertTrue(text.contains("security_proxy_in_flight_requests{target=\"geoserver\"} 0"));
+        assertTrue(text.contains("security_proxy_in_flight_requests{target=\"_proxy\"} 1"));
+        // only the per target series, so that they can be summed
+        assertFalse(text.contains("security_proxy_in_flight_requests 1"));
+        assertTrue(text.contains("security_proxy_failures_total{target=\"geoserver\"} 1"));
+        assertTrue(text.contains("security_proxy_responses_total{target=\"geoserver\",status=\"200\"} 1"));
+        assertTrue(text.contains("security_proxy_responses_total{target=\"_proxy\",status=\"404\"} 1"));
+        assertTrue(text.contains("security_proxy_request_bytes_total{target=\"geoserver\"} 100"));
+        assertTrue(text.contains("security_proxy_response_bytes_total{target=\"geoserver\"} 1024"));
+        assertTrue(text.contains("security_proxy_upstream_latency_seconds_bucket{target=\"geoserver\",le=\"+Inf\"} 1"));
+        assertTrue(text.contains("security_proxy_upstream_latency_seconds_count{target=\"geoserver\"} 1"));
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        ProxyMetrics.TargetMetrics metrics = new ProxyMetrics.TargetMetrics();
+        metrics.recordLatency(0);
+        metrics.recordLatency(5);
+        metrics.recordLatency(6);
+        metrics.recordLatency(120000);
+
+        assertEquals(2, metrics.latencyBuckets.get(0));
+        assertEquals(1, metrics.latencyBuckets.get(1));
+        assertEquals(1, metrics.latencyBuckets.get(ProxyMetrics.LATENCY_BUCKETS.length));
+        assertEquals(120011, metrics.latencySum.get());
+    }
+
+    @Test
+    public void testPoolStats() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        ProxyMetrics.writePoolStats(writer, Collections.singletonMap("geoserver", new PoolStats(3, 1, 2, 50)));
+        writer.flush();
+
+        String text = out.toString();
+        assertTrue(text.contains("security_proxy_pool_connections{target=\"geoserver\",state=\"leased\"} 3"));
+        assertTrue(text.contains("security_proxy_pool_connections{target=\"geoserver\",state=\"pending\"} 1"));
+        assertTrue(text.contains("security_proxy_pool_connections{target=\"geoserver\",state=\"available\"} 2"));
+        assertTrue(text.contains("security_proxy_pool_max_connections{target=\"geoserver\"} 50"));
+    }
+}
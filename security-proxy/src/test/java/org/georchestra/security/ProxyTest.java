@@ -1,5 +1,6 @@
 package org.georchestra.security;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -21,6 +22,8 @@ import org.junit.Test;
 import org.springframework.http.HttpMethod;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.ReflectionUtils;
 
 import com.google.common.collect.Maps;
@@ -120,6 +123,44 @@ public class ProxyTest {
 
     }
 
+    @Test
+    public void testMetrics() throws Exception {
+        proxy.handleUrlParamRequest(request, httpResponse, "http://localhost:8080/path");
+        assertTrue(executed);
+
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "secret", Proxy.METRICS_ROLE));
+        try {
+            MockHttpServletResponse metricsResponse = new MockHttpServletResponse();
+            proxy.metrics(metricsResponse);
+            String metrics = metricsResponse.getContentAsString();
+            assertTrue(metrics.contains("security_proxy_requests_total{target=\"_proxy\"} 1"));
+            assertTrue(metrics.contains("security_proxy_responses_total{target=\"_proxy\",status=\"200\"} 1"));
+            assertTrue(metrics.contains("security_proxy_in_flight_requests{target=\"_proxy\"} 0"));
+            assertTrue(metrics.contains("security_proxy_upstream_latency_seconds_count{target=\"_proxy\"} 1"));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @Test
+    public void testMetricsRequiresRole() throws Exception {
+        MockHttpServletResponse metricsResponse = new MockHttpServletResponse();
+        proxy.metrics(metricsResponse);
+        assertEquals(403, metricsResponse.getStatus());
+
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("user", "secret", "ROLE_USER"));
+        try {
+            metricsResponse = new MockHttpServletResponse();
+            proxy.metrics(metricsResponse);
+            assertEquals(403, metricsResponse.getStatus());
+            assertEquals("", metricsResponse.getContentAsString());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
     @Test
     public void testGetUrlIllegalUrl() throws Exception {
         proxy.handleUrlParamRequest(request, httpResponse, "http://www.google.com:8080/path");
@@ -1,5 +1,6 @@
 package org.georchestra.security;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
@@ -8,10 +9,15 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.access.ConfigAttribute;
+import org.springframework.security.web.FilterInvocation;
 import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.springframework.util.ReflectionUtils;
 
@@ -36,9 +42,52 @@ public class SecurityProxyMetadataSourceTest {
         assertTrue("Expected 0 item, found " + map.keySet().size(), map.keySet().size() == 0);
 
         ReflectionUtils.invokeMethod(m, sp, f);
+        map = (Map<RequestMatcher, Collection<ConfigAttribute>>) ReflectionUtils.getField(rm, sp);
 
         // Checks that the requestMap has correctly been populated
         assertTrue("Expected 14 items, found " + map.keySet().size(), map.keySet().size() == 14);
     }
 
+    @Test
+    public void testFirstMatchingRuleWins() throws Exception {
+        Map<String, String> rules = new LinkedHashMap<String, String>();
+        rules.put(".*\\?.*login.*", "ROLE_USER");
+        rules.put("/extractorapp/admin/.*", "ROLE_ADMINISTRATOR");
+        rules.put("/extractorapp/.*", "ROLE_EXTRACTORAPP");
+        rules.put("/console/.*/emails", "ROLE_SUPERUSER");
+        rules.put("/console/account/userdetails", "IS_AUTHENTICATED_FULLY");
+        rules.put(".*/ogcproxy/.*", "ROLE_NO_ONE");
+        rules.put(".*", "IS_AUTHENTICATED_ANONYMOUSLY");
+        SecurityProxyMetadataSource sp = new SecurityProxyMetadataSource();
+        sp.setRequestMap(rules);
+
+        assertEquals("ROLE_ADMINISTRATOR", access(sp, "/extractorapp/admin/jobs", null));
+        assertEquals("ROLE_USER", access(sp, "/extractorapp/admin/jobs", "login"));
+        assertEquals("ROLE_EXTRACTORAPP", access(sp, "/extractorapp/", null));
+        assertEquals("ROLE_SUPERUSER", access(sp, "/console/private/emails", null));
+        assertEquals("IS_AUTHENTICATED_FULLY", access(sp, "/console/account/userdetails", null));
+        assertEquals("IS_AUTHENTICATED_ANONYMOUSLY", access(sp, "/console/account/userdetails/", null));
+        assertEquals("ROLE_NO_ONE", access(sp, "/mapfishapp/ogcproxy/", null));
+        assertEquals("IS_AUTHENTICATED_ANONYMOUSLY", access(sp, "/", null));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("/extractorapp/", SecurityProxyMetadataSource.RuleIndex.literalPrefix("/extractorapp/.*"));
+        assertEquals("/testPage", SecurityProxyMetadataSource.RuleIndex.literalPrefix("/testPage"));
+        assertEquals("/a", SecurityProxyMetadataSource.RuleIndex.literalPrefix("/ab?c"));
+        assertEquals("/ab", SecurityProxyMetadataSource.RuleIndex.literalPrefix("/ab+c"));
+        assertEquals("", SecurityProxyMetadataSource.RuleIndex.literalPrefix("/a|/b"));
+        assertEquals("", SecurityProxyMetadataSource.RuleIndex.literalPrefix(".*"));
+    }
+
+    private String access(SecurityProxyMetadataSource sp, String path, String query) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setServletPath(path);
+        request.setQueryString(query);
+        Collection<ConfigAttribute> attributes = sp.getAttributes(new FilterInvocation(request,
+                new MockHttpServletResponse(), new MockFilterChain()));
+        return attributes.iterator().next().getAttribute();
+    }
+
 }
@@ -0,0 +1,149 @@
+package org.georchestra.security;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the target lookups made by the {@link Proxy} on each request, as
+ * they were done before (splitting the path and parsing the target urls) and
+ * using the precompiled {@link TargetRoutes}.
+ *
+ * Run with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.georchestra.security.TargetRoutesBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetRoutesBenchmark {
+
+    @Param({ "10", "50", "200" })
+    public int targetCount;
+
+    private Map<String, String> targets;
+    private TargetRoutes routes;
+    private String[] paths;
+
+    @Setup
+    public void setUp() throws Exception {
+        targets = new HashMap<String, String>();
+        for (int i = 0; i < targetCount; i++) {
+            targets.put("webapp" + i, "http://localhost:8280/webapp" + i + "-private/");
+        }
+        targets.put("geoserver", "http://localhost:8380/geoserver/");
+        targets.put("geonetwork", "http://localhost:8280/geonetwork/");
+        routes = new TargetRoutes(targets);
+        paths = new String[] {
+                "/geoserver/wms",
+                "/geonetwork/srv/eng/catalog.search",
+                "/webapp" + (targetCount / 2) + "/some/deep/path/",
+                "/unmapped/path" };
+    }
+
+    @Benchmark
+    public void legacyFindTarget(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(legacyFindTarget(path));
+        }
+    }
+
+    @Benchmark
+    public void routesResolve(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(routes.resolve(path));
+        }
+    }
+
+    @Benchmark
+    public void legacyIsTargetPath(Blackhole blackhole) throws MalformedURLException {
+        for (String path : paths) {
+            blackhole.consume(legacyIsTargetPath(path));
+        }
+    }
+
+    @Benchmark
+    public void routesIsTargetPath(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(routes.isTargetPath(path));
+        }
+    }
+
+    /**
+     * Proxy.findTarget, before the targets were compiled
+     */
+    private String legacyFindTarget(String requestURI) {
+        String[] segments;
+        if (requestURI.charAt(0) == '/') {
+            segments = requestURI.substring(1).split("/");
+        } else {
+            segments = requestURI.split("/");
+        }
+        if (segments.length == 0) {
+            return null;
+        }
+        String target = targets.get(segments[0]);
+        if (target == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder("/");
+        for (int i = 1; i < segments.length; i++) {
+            builder.append(segments[i]);
+            if (i + 1 < segments.length)
+                builder.append("/");
+        }
+        if (requestURI.endsWith("/") && builder.charAt(builder.length() - 1) != '/') {
+            builder.append('/');
+        }
+        String target2 = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+        return target2 + builder;
+    }
+
+    /**
+     * Proxy.urlIsProtected / samePathPrefix, before the targets were compiled
+     */
+    private boolean legacyIsTargetPath(String path) throws MalformedURLException {
+        String[] requestSegments = StringUtils.split(path.substring(1), '/');
+        for (String target : targets.values()) {
+            String[] targetSegments = StringUtils.split(new URL(target).getPath().substring(1), '/');
+            boolean same = targetSegments.length <= requestSegments.length;
+            for (int i = 0; same && i < targetSegments.length; i++) {
+                same = targetSegments[i].equals(requestSegments[i]);
+            }
+            if (same) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(TargetRoutesBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,70 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TargetRoutesTest {
+
+    private TargetRoutes routes;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> targets = new HashMap<String, String>();
+        targets.put("geoserver", "http://localhost:8380/geoserver/");
+        targets.put("geo", "http://localhost:8280/geo");
+        targets.put("geonetwork", "http://localhost:8280/geonetwork-private/");
+        targets.put("root", "http://localhost:8480/");
+        routes = new TargetRoutes(targets);
+    }
+
+    @Test
+    public void testResolve() {
+        assertEquals("http://localhost:8380/geoserver/wms", routes.resolve("/geoserver/wms"));
+        assertEquals("http://localhost:8380/geoserver/", routes.resolve("/geoserver"));
+        assertEquals("http://localhost:8380/geoserver/", routes.resolve("/geoserver/"));
+        assertEquals("http://localhost:8380/geoserver/web/", routes.resolve("/geoserver/web//"));
+        assertEquals("http://localhost:8380/geoserver/a//b", routes.resolve("/geoserver/a//b"));
+        assertEquals("http://localhost:8280/geo/x", routes.resolve("/geo/x"));
+        assertEquals("http://localhost:8280/geonetwork-private/srv/eng/", routes.resolve("/geonetwork/srv/eng/"));
+        assertEquals("http://localhost:8480/", routes.resolve("/root"));
+        assertEquals("http://localhost:8380/geoserver/wms", routes.resolve("geoserver/wms"));
+
+        assertNull(routes.resolve("/geos/wms"));
+        assertNull(routes.resolve("/geoserverx/wms"));
+        assertNull(routes.resolve("/"));
+        assertNull(routes.resolve(""));
+        assertNull(routes.resolve("//geoserver/wms"));
+    }
+
+    @Test
+    public void testMatch() {
+        assertEquals("geoserver", routes.match("/geoserver/wms", true).getName());
+        assertEquals("geoserver", routes.match("//geoserver/wms", true).getName());
+        assertEquals("geo", routes.match("/geo", true).getName());
+        assertNull(routes.match("//geoserver/wms", false));
+        assertNull(routes.match("/ge/wms", true));
+    }
+
+    @Test
+    public void testIsTargetPath() throws Exception {
+        Map<String, String> targets = new HashMap<String, String>();
+        targets.put("geoserver", "http://localhost:8380/geoserver/");
+        targets.put("geonetwork", "http://localhost:8280/geonetwork-private/srv");
+        TargetRoutes routes = new TargetRoutes(targets);
+
+        assertTrue(routes.isTargetPath("/geoserver/wms"));
+        assertTrue(routes.isTargetPath("/geoserver"));
+        assertTrue(routes.isTargetPath("/geonetwork-private/srv/eng"));
+        assertFalse(routes.isTargetPath("/geonetwork-private/"));
+        assertFalse(routes.isTargetPath("/geoserverx/wms"));
+        assertFalse(routes.isTargetPath("/"));
+    }
+}
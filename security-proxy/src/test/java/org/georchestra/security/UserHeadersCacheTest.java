@@ -0,0 +1,84 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.event.InteractiveAuthenticationSuccessEvent;
+
+public class UserHeadersCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private Callable<Collection<Header>> loader(final String org) {
+        return new Callable<Collection<Header>>() {
+            @Override
+            public Collection<Header> call() throws Exception {
+                loads.incrementAndGet();
+                return Collections.<Header> singletonList(new BasicHeader("sec-org", org));
+            }
+        };
+    }
+
+    @Test
+    public void testHeadersAreCachedPerUser() {
+        UserHeadersCache cache = new UserHeadersCache();
+
+        assertEquals("psc", cache.get("testuser", loader("psc")).iterator().next().getValue());
+        assertEquals("psc", cache.get("testuser", loader("other")).iterator().next().getValue());
+        assertEquals("c2c", cache.get("testadmin", loader("c2c")).iterator().next().getValue());
+
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(2, cache.getStats().missCount());
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidation() {
+        UserHeadersCache cache = new UserHeadersCache();
+        cache.get("testuser", loader("psc"));
+
+        cache.invalidate("testuser");
+        assertEquals("c2c", cache.get("testuser", loader("c2c")).iterator().next().getValue());
+
+        cache.onApplicationEvent(new InteractiveAuthenticationSuccessEvent(
+                new UsernamePasswordAuthenticationToken("testuser", "secret"), getClass()));
+        assertEquals("camptocamp", cache.get("testuser", loader("camptocamp")).iterator().next().getValue());
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testFailedLookupIsNotCached() {
+        UserHeadersCache cache = new UserHeadersCache();
+        Collection<Header> headers = cache.get("testuser", new Callable<Collection<Header>>() {
+            @Override
+            public Collection<Header> call() throws Exception {
+                throw new IllegalStateException("LDAP unavailable");
+            }
+        });
+        assertTrue(headers.isEmpty());
+
+        cache.get("testuser", loader("psc"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testDisabledCache() {
+        UserHeadersCache cache = new UserHeadersCache();
+        cache.setTimeToLive(0);
+        cache.init();
+
+        cache.get("testuser", loader("psc"));
+        cache.get("testuser", loader("psc"));
+        assertEquals(2, loads.get());
+    }
+}
@@ -0,0 +1,88 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class XmlEncodingScannerTest {
+
+    @Test
+    public void testEncodingFound() throws Exception {
+        assertEquals("UTF-8", scan("<?xml version=\"1.0\" encoding=\"UTF-8\"?><wfs:FeatureCollection/>"));
+        assertEquals("ISO-8859-1", scan("<?xml version='1.0' encoding='ISO-8859-1'?>"));
+        assertEquals("windows-1252", scan("<?xml version=\"1.0\" encoding=\"windows-1252\" standalone=\"yes\"?>"));
+        assertEquals("x_mac.roman", scan("<?xml version=\"1.0\" encoding=\"x_mac.roman\""));
+    }
+
+    @Test
+    public void testEncodingNotFound() throws Exception {
+        assertNull(scan("<?xml version=\"1.0\"?><root/>"));
+        assertNull(scan("<?xml version=\"1.0\" encoding=UTF-8?>"));
+        assertNull(scan("<?xml version=\"1.0\" encoding=\"8bit\"?>"));
+        assertNull(scan("encoding=\""));
+        assertNull(scan("<?xml version=\"1.0\" encoding=\"UTF-8'?>"));
+        assertNull(scan("<?xml version=\"1.0\" encoding=\"UTF 8\"?>"));
+        assertNull(scan(""));
+    }
+
+    @Test
+    public void testBoundedScan() throws Exception {
+        byte[] content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes("US-ASCII");
+        assertNull(XmlEncodingScanner.scan(content, 0, 20));
+        // the charset is cut by the end of the scanned bytes
+        assertNull(XmlEncodingScanner.scan(content, 0, 34));
+        assertNull(XmlEncodingScanner.scan(content, 0, 35));
+        assertEquals("UTF-8", XmlEncodingScanner.scan(content, 0, 36));
+        assertEquals("UTF-8", XmlEncodingScanner.scan(content, 5, content.length - 5));
+    }
+
+    @Test
+    public void testCompressedEncoding() throws Exception {
+        StringBuilder content = new StringBuilder("<?xml version=\"1.0\" encoding=\"ISO-8859-15\"?><gml:featureMembers>");
+        for (int i = 0; i < 10000; i++) {
+            content.append("<gml:Point srsName=\"EPSG:4326\"><gml:pos>").append(i).append(" 45.2</gml:pos></gml:Point>");
+        }
+        byte[] raw = content.toString().getBytes("US-ASCII");
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(raw);
+        gzip.close();
+        assertEquals("ISO-8859-15", scanCompressed(gzipped.toByteArray(), "gzip"));
+        assertEquals("ISO-8859-15", scanCompressed(gzipped.toByteArray(), "x-gzip"));
+
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(zlib);
+        deflate.write(raw);
+        deflate.close();
+        assertEquals("ISO-8859-15", scanCompressed(zlib.toByteArray(), "deflate"));
+
+        ByteArrayOutputStream rawDeflated = new ByteArrayOutputStream();
+        deflate = new DeflaterOutputStream(rawDeflated, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        deflate.write(raw);
+        deflate.close();
+        assertEquals("ISO-8859-15", scanCompressed(rawDeflated.toByteArray(), "deflate"));
+
+        assertNull(scanCompressed(raw, "gzip"));
+        assertNull(scanCompressed(gzipped.toByteArray(), "br"));
+    }
+
+    /**
+     * Only the first bytes of the compressed stream are given to the scanner
+     */
+    private String scanCompressed(byte[] compressed, String contentEncoding) {
+        int length = Math.min(compressed.length, XmlEncodingScanner.COMPRESSED_PREFIX_LENGTH);
+        return XmlEncodingScanner.scanCompressed(compressed, 0, length, contentEncoding);
+    }
+
+    private String scan(String content) throws Exception {
+        byte[] bytes = content.getBytes("US-ASCII");
+        return XmlEncodingScanner.scan(bytes, 0, bytes.length);
+    }
+}